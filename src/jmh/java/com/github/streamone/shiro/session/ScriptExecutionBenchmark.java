@@ -0,0 +1,110 @@
+package com.github.streamone.shiro.session;
+
+import io.netty.buffer.ByteBuf;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.openjdk.jmh.annotations.*;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.codec.JsonJacksonCodec;
+import org.redisson.config.Config;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Compares running session scripts by EVAL and by EVALSHA.</p>
+ * <p>
+ *  Besides the latency, the {@code requestBytes} counter reports the size of the
+ *  RESP request sent for each operation.
+ *  Run with {@code ./gradlew jmh -Predis.url=redis://127.0.0.1:6379}.
+ * </p>
+ *
+ * @author streamone
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScriptExecutionBenchmark {
+
+    private RedissonClient redisson;
+
+    private RedissonSession evalSession;
+
+    private RedissonSession evalShaSession;
+
+    private long evalRequestBytes;
+
+    private long evalShaRequestBytes;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long requestBytes;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        Config config = new Config();
+        config.useSingleServer().setAddress(System.getProperty("redis.url", "redis://127.0.0.1:6379"));
+        this.redisson = Redisson.create(config);
+
+        RedissonSessionDao evalDao = new RedissonSessionDao();
+        evalDao.setRedisson(this.redisson);
+        RedissonSessionDao evalShaDao = new RedissonSessionDao();
+        evalShaDao.setRedisson(this.redisson);
+        evalShaDao.setScriptCacheEnabled(true);
+        evalShaDao.init();
+
+        Serializable sessionId = evalDao.create(new SimpleSession());
+        this.evalSession = (RedissonSession) evalDao.readSession(sessionId);
+        this.evalSession.setAttribute("foo", "bar");
+        this.evalShaSession = (RedissonSession) evalShaDao.readSession(sessionId);
+
+        String infoKey = RedissonSessionDao.SESSION_INFO_KEY_PREFIX + "{" + sessionId + "}";
+        String attrKey = RedissonSessionDao.SESSION_ATTR_KEY_PREFIX + "{" + sessionId + "}";
+        ByteBuf attributeKey = new JsonJacksonCodec().getValueEncoder().encode("foo");
+        byte[] encodedKey = new byte[attributeKey.readableBytes()];
+        attributeKey.readBytes(encodedKey);
+        attributeKey.release();
+
+        this.evalRequestBytes = requestSize("EVAL", RedissonSessionScript.GET_ATTR_SCRIPT, infoKey, attrKey, encodedKey);
+        this.evalShaRequestBytes = requestSize("EVALSHA",
+            RedissonSessionScriptRegistry.sha1(RedissonSessionScript.GET_ATTR_SCRIPT), infoKey, attrKey, encodedKey);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.evalSession.stop();
+        this.redisson.shutdown();
+    }
+
+    @Benchmark
+    public Object eval(Counters counters) {
+        counters.requestBytes += this.evalRequestBytes;
+        return this.evalSession.getAttribute("foo");
+    }
+
+    @Benchmark
+    public Object evalSha(Counters counters) {
+        counters.requestBytes += this.evalShaRequestBytes;
+        return this.evalShaSession.getAttribute("foo");
+    }
+
+    private static long requestSize(String command, String script, String infoKey, String attrKey, byte[] arg) {
+        byte[][] parts = {
+            command.getBytes(StandardCharsets.UTF_8), script.getBytes(StandardCharsets.UTF_8),
+            "2".getBytes(StandardCharsets.UTF_8), infoKey.getBytes(StandardCharsets.UTF_8),
+            attrKey.getBytes(StandardCharsets.UTF_8), arg
+        };
+        long size = ("*" + parts.length + "\r\n").length();
+        for (byte[] part : parts) {
+            size += ("$" + part.length + "\r\n").length() + part.length + 2;
+        }
+        return size;
+    }
+}
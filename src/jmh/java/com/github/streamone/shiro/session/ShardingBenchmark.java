@@ -0,0 +1,102 @@
+package com.github.streamone.shiro.session;
+
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.openjdk.jmh.annotations.*;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the throughput of session reads and writes spread over 1, 2 and 4 redis
+ * instances by {@link RedissonSessionRing}.</p>
+ * <p>
+ *  Start one redis instance per url, e.g. {@code redis-server --port 6380}, then run with
+ *  {@code ./gradlew jmh -Predis.urls=redis://127.0.0.1:6379,redis://127.0.0.1:6380,...}.
+ *  With enough client threads to saturate a single instance, the throughput should grow close
+ *  to linearly with the number of shards.
+ * </p>
+ *
+ * @author streamone
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(64)
+@State(Scope.Benchmark)
+public class ShardingBenchmark {
+
+    private static final int SESSIONS = 10000;
+
+    @Param({"1", "2", "4"})
+    private int shards;
+
+    private List<RedissonClient> clients;
+
+    private RedissonSession[] sessions;
+
+    @Setup
+    public void setup() {
+        String[] urls = System.getProperty("redis.urls",
+            "redis://127.0.0.1:6379,redis://127.0.0.1:6380,redis://127.0.0.1:6381,redis://127.0.0.1:6382")
+            .split(",");
+        if (urls.length < this.shards) {
+            throw new IllegalStateException(this.shards + " redis urls are required, got " + urls.length);
+        }
+
+        this.clients = new ArrayList<>(this.shards);
+        Map<String, RedissonClient> shardMap = new LinkedHashMap<>();
+        for (int i = 0; i < this.shards; i++) {
+            Config config = new Config();
+            config.useSingleServer().setAddress(urls[i].trim()).setConnectionPoolSize(64);
+            RedissonClient client = Redisson.create(config);
+            this.clients.add(client);
+            shardMap.put("shard-" + i, client);
+        }
+
+        RedissonSessionDao dao = new RedissonSessionDao();
+        dao.setShards(shardMap);
+        dao.setScriptCacheEnabled(true);
+        dao.init();
+
+        this.sessions = new RedissonSession[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            Serializable sessionId = dao.create(new SimpleSession());
+            this.sessions[i] = dao.getRedissonSession(sessionId);
+            this.sessions[i].setAttribute("foo", "bar");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (RedissonSession session : this.sessions) {
+            session.stop();
+        }
+        for (RedissonClient client : this.clients) {
+            client.shutdown();
+        }
+    }
+
+    @Benchmark
+    public Object getAttribute() {
+        return randomSession().getAttribute("foo");
+    }
+
+    @Benchmark
+    public void setAttribute() {
+        randomSession().setAttribute("foo", "baz");
+    }
+
+    private RedissonSession randomSession() {
+        return this.sessions[ThreadLocalRandom.current().nextInt(SESSIONS)];
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.streamone.shiro.session;
+
+import org.apache.shiro.session.ExpiredSessionException;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.openjdk.jmh.annotations.*;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+
+import java.io.Serializable;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Compares reading expired sessions through scripts returning error replies and through
+ * their status variants, see {@link RedissonSessionDao#setStatusProtocolEnabled(boolean)}.</p>
+ * <p>
+ *  The {@code gc.alloc.rate.norm} metric of the gc profiler reports the bytes allocated by
+ *  each read, including the redis exception of the error protocol and its stack trace. Reads
+ *  of a live session show the cost of the status wrapper on the common path.
+ *  Run with {@code ./gradlew jmh -Predis.url=redis://127.0.0.1:6379}.
+ * </p>
+ *
+ * @author streamone
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatusProtocolBenchmark {
+
+    @Param({"false", "true"})
+    private boolean statusProtocol;
+
+    private RedissonClient redisson;
+
+    private RedissonSession liveSession;
+
+    private RedissonSession expiredSession;
+
+    @Setup
+    public void setup() {
+        Config config = new Config();
+        config.useSingleServer().setAddress(System.getProperty("redis.url", "redis://127.0.0.1:6379"));
+        this.redisson = Redisson.create(config);
+
+        RedissonSessionDao dao = new RedissonSessionDao();
+        dao.setRedisson(this.redisson);
+        dao.setScriptCacheEnabled(true);
+        dao.setStatusProtocolEnabled(this.statusProtocol);
+        dao.init();
+
+        Serializable sessionId = dao.create(new SimpleSession());
+        this.liveSession = dao.getRedissonSession(sessionId);
+        this.liveSession.setAttribute("foo", "bar");
+        //the keys of an expired session are gone
+        this.expiredSession = dao.getRedissonSession(UUID.randomUUID().toString());
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.liveSession.stop();
+        this.redisson.shutdown();
+    }
+
+    @Benchmark
+    public Object getAttribute() {
+        return this.liveSession.getAttribute("foo");
+    }
+
+    @Benchmark
+    public Object getExpiredAttribute() {
+        try {
+            return this.expiredSession.getAttribute("foo");
+        } catch (ExpiredSessionException e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.github.streamone.shiro.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.*;
+import org.redisson.client.codec.Codec;
+import org.redisson.codec.JsonJacksonCodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Compares the CPU cost of encoding and decoding session attributes of various sizes with
+ * and without {@link CompressionCodec}, at the fastest and the default deflate level.</p>
+ * <p>
+ *  Besides the latency, the {@code storedBytes} and {@code savedBytes} counters report the size
+ *  written to redis and the bytes saved for each operation. No redis instance is required,
+ *  run with {@code ./gradlew jmh}.
+ * </p>
+ *
+ * @author streamone
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+
+    @Param({"none", "1", "6"})
+    private String level;
+
+    @Param({"10", "100", "1000"})
+    private int entries;
+
+    private Codec codec;
+
+    private Object value;
+
+    private int rawBytes;
+
+    private byte[] encoded;
+
+    private final org.redisson.client.handler.State decoderState = new org.redisson.client.handler.State();
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long storedBytes;
+        public long savedBytes;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        Codec json = new JsonJacksonCodec();
+        this.codec = "none".equals(this.level) ? json
+            : new CompressionCodec(json, CompressionCodec.DEFAULT_THRESHOLD, Integer.parseInt(this.level));
+
+        //a typical large attribute, e.g. cached authorization info
+        List<Map<String, Object>> records = new ArrayList<>(this.entries);
+        for (int i = 0; i < this.entries; i++) {
+            Map<String, Object> record = new LinkedHashMap<>();
+            record.put("id", i);
+            record.put("role", "role-" + (i % 7));
+            record.put("permission", "resource:" + (i % 13) + ":read,write");
+            records.add(record);
+        }
+        this.value = records;
+        this.rawBytes = encode(json, this.value).length;
+        this.encoded = encode(this.codec, this.value);
+    }
+
+    @Benchmark
+    public int encode(Counters counters) throws IOException {
+        ByteBuf buf = this.codec.getValueEncoder().encode(this.value);
+        int size = buf.readableBytes();
+        buf.release();
+        counters.storedBytes += size;
+        counters.savedBytes += this.rawBytes - size;
+        return size;
+    }
+
+    @Benchmark
+    public Object decode() throws IOException {
+        return this.codec.getValueDecoder().decode(Unpooled.wrappedBuffer(this.encoded), this.decoderState);
+    }
+
+    private static byte[] encode(Codec codec, Object value) throws IOException {
+        ByteBuf buf = codec.getValueEncoder().encode(value);
+        try {
+            byte[] bytes = new byte[buf.readableBytes()];
+            buf.readBytes(bytes);
+            return bytes;
+        } finally {
+            buf.release();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.streamone.shiro.session;
+
+import org.apache.shiro.session.Session;
+import org.redisson.api.RScoredSortedSet;
+import org.redisson.client.protocol.ScoredEntry;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * <p>A lazy view of the sessions in the active session index, i.e. whose expiry time has not
+ * passed yet.</p>
+ * <p>
+ *  The iterator reads the index page by page in expiry order with ZRANGEBYSCORE, so no more than
+ *  one page is held in memory, and {@link #size()} is a ZCOUNT. With several indexes, e.g. one per
+ *  shard, they are read one after another. Iteration is weakly consistent:
+ *  a session touched while iterating may be returned twice, and sessions created meanwhile may
+ *  or may not be returned.
+ * </p>
+ *
+ * @author streamone
+ */
+class RedissonActiveSessions extends AbstractCollection<Session> {
+
+    private final List<RScoredSortedSet<String>> indexes;
+    private final int pageSize;
+    private final Function<String, Session> sessionResolver;
+
+    /**
+     * @param indexes the active session indexes, info keys scored by their expiry time
+     * @param pageSize the number of sessions read per round trip
+     * @param sessionResolver resolves a session by its info key
+     */
+    RedissonActiveSessions(List<RScoredSortedSet<String>> indexes, int pageSize,
+        Function<String, Session> sessionResolver) {
+        this.indexes = indexes;
+        this.pageSize = pageSize;
+        this.sessionResolver = sessionResolver;
+    }
+
+    @Override
+    public Iterator<Session> iterator() {
+        long now = System.currentTimeMillis();
+        if (this.indexes.size() == 1) {
+            return new PageIterator(this.indexes.get(0), now);
+        }
+        Iterator<RScoredSortedSet<String>> indexIterator = this.indexes.iterator();
+        return new Iterator<Session>() {
+
+            private Iterator<Session> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!this.current.hasNext() && indexIterator.hasNext()) {
+                    this.current = new PageIterator(indexIterator.next(), now);
+                }
+                return this.current.hasNext();
+            }
+
+            @Override
+            public Session next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return this.current.next();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        long now = System.currentTimeMillis();
+        int size = 0;
+        for (RScoredSortedSet<String> index : this.indexes) {
+            size += index.count(now, true, Double.POSITIVE_INFINITY, true);
+        }
+        return size;
+    }
+
+    private class PageIterator implements Iterator<Session> {
+
+        private final RScoredSortedSet<String> index;
+        private double from;
+        private final Set<String> seenAtFrom = new HashSet<>();
+        private Iterator<ScoredEntry<String>> page;
+        private boolean lastPage = false;
+        private String next;
+
+        private PageIterator(RScoredSortedSet<String> index, double from) {
+            this.index = index;
+            this.from = from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.next == null) {
+                if (this.page == null || !this.page.hasNext()) {
+                    if (this.lastPage) {
+                        return false;
+                    }
+                    fetch();
+                    continue;
+                }
+                ScoredEntry<String> entry = this.page.next();
+                double score = entry.getScore();
+                if (score == this.from) {
+                    if (!this.seenAtFrom.add(entry.getValue())) {
+                        continue;
+                    }
+                } else {
+                    this.from = score;
+                    this.seenAtFrom.clear();
+                    this.seenAtFrom.add(entry.getValue());
+                }
+                this.next = entry.getValue();
+            }
+            return true;
+        }
+
+        @Override
+        public Session next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String infoKey = this.next;
+            this.next = null;
+            return sessionResolver.apply(infoKey);
+        }
+
+        private void fetch() {
+            //entries sharing the score of the last entry read are read again, then skipped
+            int count = pageSize + this.seenAtFrom.size();
+            Collection<ScoredEntry<String>> entries = this.index.entryRange(this.from, true,
+                Double.POSITIVE_INFINITY, true, 0, count);
+            this.lastPage = entries.size() < count;
+            this.page = entries.iterator();
+        }
+    }
+}
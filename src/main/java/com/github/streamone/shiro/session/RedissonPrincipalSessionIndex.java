@@ -0,0 +1,137 @@
+package com.github.streamone.shiro.session;
+
+import org.apache.shiro.subject.PrincipalCollection;
+import org.redisson.api.RScript;
+import org.redisson.api.RSet;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Sets of session ids by principal, so the sessions of a user can be listed, counted and
+ * invalidated without scanning the keyspace.</p>
+ * <p>
+ *  The set of a principal is a single key whose name is hash tagged by the principal, so every
+ *  operation on it is single-slot in redis cluster. It is updated after the principals of a
+ *  session are written, moving the session out of the set of the principals it replaced, and
+ *  cleaned up when the session is deleted. Ids of expired sessions are removed when the set is
+ *  read, see {@link RedissonSessionDao#getPrincipalSessions(Object)}.
+ * </p>
+ * <p>
+ *  A principal is indexed by the {@code toString()} of the primary principal, see
+ *  {@link #getPrincipalName(Object)}. It must be stable and unique per user, e.g. a user name,
+ *  not the default {@link Object#toString()} of a principal class, or sessions are indexed under
+ *  names that are never looked up again. Override {@link #getPrincipalName(Object)}, and
+ *  {@link RedissonSessionDao#getPrincipalIndex()} to create the subclass, for other principal
+ *  types.
+ * </p>
+ *
+ * @author streamone
+ */
+public class RedissonPrincipalSessionIndex {
+
+    public static final String DEFAULT_KEY_PREFIX = "session:principal:";
+
+    private static final String TAKE_SCRIPT =
+        "local sessionIds = redis.call('SMEMBERS', KEYS[1])\n" +
+        "redis.call('UNLINK', KEYS[1])\n" +
+        "return sessionIds";
+
+    private final RedissonClient redisson;
+    private final String keyPrefix;
+
+    public RedissonPrincipalSessionIndex(RedissonClient redisson, String keyPrefix) {
+        if (redisson == null || keyPrefix == null) {
+            throw new IllegalArgumentException("Arguments must not be null!");
+        }
+        this.redisson = redisson;
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     * @param principal a principal, or a {@link PrincipalCollection}
+     * @param sessionId the session id
+     */
+    public void add(Object principal, Serializable sessionId) {
+        getSet(principal).add(sessionId.toString());
+    }
+
+    /**
+     * @param principal a principal, or a {@link PrincipalCollection}
+     * @param sessionId the session id
+     */
+    public void remove(Object principal, Serializable sessionId) {
+        getSet(principal).remove(sessionId.toString());
+    }
+
+    /**
+     * @param principal a principal, or a {@link PrincipalCollection}
+     * @param sessionIds the session ids
+     */
+    public void removeAll(Object principal, Collection<String> sessionIds) {
+        if (!sessionIds.isEmpty()) {
+            getSet(principal).removeAllAsync(sessionIds);
+        }
+    }
+
+    /**
+     * @param principal a principal, or a {@link PrincipalCollection}
+     * @return the ids of the sessions of {@code principal}, including expired ones
+     */
+    public Collection<String> getSessionIds(Object principal) {
+        return getSet(principal).readAll();
+    }
+
+    /**
+     * <p>Remove the set of {@code principal} atomically, returning its session ids.</p>
+     *
+     * @param principal a principal, or a {@link PrincipalCollection}
+     * @return the ids of the sessions of {@code principal}, including expired ones
+     */
+    public Collection<String> takeSessionIds(Object principal) {
+        String key = getIndexKey(principal);
+        List<String> sessionIds = this.redisson.getScript(StringCodec.INSTANCE).eval(key,
+            RScript.Mode.READ_WRITE, TAKE_SCRIPT, RScript.ReturnType.MULTI, Collections.<Object>singletonList(key));
+        return sessionIds != null ? sessionIds : Collections.<String>emptyList();
+    }
+
+    /**
+     * @param principal a principal, or a {@link PrincipalCollection}
+     * @return the key name of the set of {@code principal}
+     */
+    public String getIndexKey(Object principal) {
+        StringBuilder name = new StringBuilder(this.keyPrefix);
+        name.append("{").append(getPrincipalName(principal)).append("}");
+        return name.toString();
+    }
+
+    /**
+     * <p>Get the name a principal is indexed by, the string value of the primary principal of a
+     * {@link PrincipalCollection}. The name must be the same for equal principals across
+     * processes and restarts.</p>
+     *
+     * @param principal a principal, or a {@link PrincipalCollection}
+     * @return the principal name
+     */
+    protected String getPrincipalName(Object principal) {
+        if (principal == null) {
+            throw new IllegalArgumentException("Principal must not be null!");
+        }
+        if (principal instanceof PrincipalCollection) {
+            Object primaryPrincipal = ((PrincipalCollection) principal).getPrimaryPrincipal();
+            if (primaryPrincipal == null) {
+                throw new IllegalArgumentException("Primary principal must not be null!");
+            }
+            return primaryPrincipal.toString();
+        }
+        return principal.toString();
+    }
+
+    private RSet<String> getSet(Object principal) {
+        return this.redisson.getSet(getIndexKey(principal), StringCodec.INSTANCE);
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.streamone.shiro.session;
+
+import reactor.core.publisher.Mono;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <p>Reactive view of a {@link RedissonSession}, built on its asynchronous methods.</p>
+ * <p>
+ *  Every method returns a lazy {@link Mono} which runs the script when subscribed. Attributes
+ *  which do not exist are signalled as an empty {@link Mono}, and session states are signalled
+ *  as the same {@link org.apache.shiro.session.InvalidSessionException} subclasses as the
+ *  blocking methods throw.
+ * </p>
+ *
+ * @author streamone
+ */
+public class RedissonReactiveSession {
+
+    private final RedissonSession session;
+
+    public RedissonReactiveSession(RedissonSession session) {
+        if (session == null) {
+            throw new IllegalArgumentException("Arguments must not be null!");
+        }
+        this.session = session;
+    }
+
+    public Serializable getId() {
+        return this.session.getId();
+    }
+
+    public Mono<Object> getAttribute(Object key) {
+        return Mono.defer(() -> Mono.fromCompletionStage(this.session.getAttributeAsync(key)));
+    }
+
+    public Mono<Map<Object, Object>> getAttributes() {
+        return Mono.defer(() -> Mono.fromCompletionStage(this.session.getAttributesAsync()));
+    }
+
+    public Mono<Map<Object, Object>> getAttributes(Collection<Object> attributeKeys) {
+        return Mono.defer(() -> Mono.fromCompletionStage(this.session.getAttributesAsync(attributeKeys)));
+    }
+
+    public Mono<Void> setAttribute(Object key, Object value) {
+        return Mono.defer(() -> Mono.fromCompletionStage(this.session.setAttributeAsync(key, value)));
+    }
+
+    public Mono<Object> removeAttribute(Object key) {
+        return Mono.defer(() -> Mono.fromCompletionStage(this.session.removeAttributeAsync(key)));
+    }
+
+    public Mono<Void> touch() {
+        return Mono.defer(() -> Mono.fromCompletionStage(this.session.touchAsync()));
+    }
+
+    /**
+     * @return the underlying session for blocking calls
+     */
+    public RedissonSession getSession() {
+        return this.session;
+    }
+}
@@ -1,19 +1,34 @@
 package com.github.streamone.shiro.session;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import org.apache.shiro.session.ExpiredSessionException;
 import org.apache.shiro.session.InvalidSessionException;
 import org.apache.shiro.session.Session;
 import org.apache.shiro.session.StoppedSessionException;
 import org.apache.shiro.session.mgt.AbstractSessionManager;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
 import org.redisson.RedissonScript;
+import org.redisson.api.RFuture;
 import org.redisson.api.RScript;
 import org.redisson.api.RedissonClient;
 import org.redisson.client.RedisException;
+import org.redisson.client.codec.ByteArrayCodec;
 import org.redisson.client.codec.Codec;
+import org.redisson.client.handler.State;
 import org.redisson.codec.JsonJacksonCodec;
+import org.redisson.misc.RPromise;
+import org.redisson.misc.RedissonPromise;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.github.streamone.shiro.session.RedissonSessionScript.*;
 
@@ -31,14 +46,42 @@ public class RedissonSession implements Session {
     public static final String INFO_TIMEOUT_KEY = "timeout";
     public static final String INFO_HOST_KEY = "host";
 
+    private static final byte[] LOAD_ALL = {'1'};
+    private static final byte[] LOAD_SOME = {'0'};
+
     private RedissonClient redisson;
-    private Codec infoCodec = new JsonJacksonCodec();
-    private Codec codec = infoCodec;
+    private Codec infoCodec = RedissonSessionInfoCodec.JSON;
+    private Codec codec = new JsonJacksonCodec();
     private String infoKey;
     private String attrKey;
 
     private Serializable id;
 
+    private RedissonSessionSnapshot snapshot;
+
+    private Map<Object, Object> pendingWrites;
+
+    private RedissonSessionScriptRegistry scriptRegistry;
+
+    private RedissonSessionNearCache nearCache;
+
+    private String indexKey;
+
+    private RedissonPrincipalSessionIndex principalIndex;
+
+    private long touchInterval = 0;
+    private Map<Serializable, Long> touchRecords;
+
+    private byte[] spillThreshold = {'0'};
+
+    private boolean statusProtocol = false;
+
+    private long replicaReadStaleness = 0;
+    private Map<Serializable, Long> writeRecords;
+
+    private boolean deferred = false;
+    private Consumer<Serializable> createListener;
+
     public RedissonSession(RedissonClient redisson, Codec codec, String infoKey, String attrKey,
         Serializable id) {
         if (redisson == null || infoKey == null || attrKey == null || id == null) {
@@ -74,8 +117,64 @@ public class RedissonSession implements Session {
         init(session);
     }
 
+    /**
+     * <p>Write {@code session} to redis. The attributes of a {@link SimpleSession} are written
+     * in the same script call.</p>
+     */
     protected void init(final Session session) {
-        final long timeout = session.getTimeout() > 0 ? session.getTimeout() :
+        RedissonSessionSnapshot info = toInfo(session);
+        Map<Object, Object> attributes = session instanceof SimpleSession ?
+            ((SimpleSession) session).getAttributes() : null;
+        init(info.getTimeout(), info.getStartTimestamp(), info.getHost(), attributes);
+    }
+
+    private void init(long timeout, Date startTimeStamp, String host, Map<Object, Object> attributes) {
+        List<Object> keys = new ArrayList<>(3);
+        keys.add(this.infoKey);
+        keys.add(this.attrKey);
+        addIndexKey(keys);
+
+        if (attributes == null || !hasValues(attributes)) {
+            eval(this.infoCodec, RScript.Mode.READ_WRITE, INIT_SCRIPT,
+                RScript.ReturnType.VALUE, keys, this.id, timeout, startTimeStamp,
+                host);
+            return;
+        }
+        eval(ByteArrayCodec.INSTANCE, RScript.Mode.READ_WRITE, CREATE_SCRIPT,
+            RScript.ReturnType.VALUE, keys, getCreateArgs(timeout, startTimeStamp, host, attributes));
+        indexPrincipals(attributes);
+    }
+
+    private Object[] getCreateArgs(long timeout, Date startTimeStamp, String host, Map<Object, Object> attributes) {
+        List<Object> args = new ArrayList<>(attributes.size() * 2 + 5);
+        args.add(encode(this.infoCodec, this.id));
+        args.add(encode(this.infoCodec, timeout));
+        args.add(encode(this.infoCodec, startTimeStamp));
+        args.add(encode(this.infoCodec, host));
+        args.add(this.spillThreshold);
+        for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+            //nothing to remove from a new session
+            if (entry.getValue() != null) {
+                args.add(encode(this.codec, entry.getKey()));
+                args.add(encode(this.codec, entry.getValue()));
+            }
+        }
+        return args.toArray();
+    }
+
+    private RFuture<Object> initAsync(long timeout, Date startTimeStamp, String host) {
+        List<Object> keys = new ArrayList<>(3);
+        keys.add(this.infoKey);
+        keys.add(this.attrKey);
+        addIndexKey(keys);
+
+        return evalAsync(this.infoCodec, RScript.Mode.READ_WRITE, INIT_SCRIPT,
+            RScript.ReturnType.VALUE, keys, this.id, timeout, startTimeStamp,
+            host);
+    }
+
+    private static RedissonSessionSnapshot toInfo(Session session) {
+        long timeout = session.getTimeout() > 0 ? session.getTimeout() :
             AbstractSessionManager.DEFAULT_GLOBAL_SESSION_TIMEOUT;
 
         Date startTimeStamp = session.getStartTimestamp();
@@ -84,13 +183,99 @@ public class RedissonSession implements Session {
         String host = session.getHost();
         host = host != null ? host : "";
 
-        List<Object> keys = new ArrayList<>(1);
-        keys.add(this.infoKey);
+        RedissonSessionSnapshot info = new RedissonSessionSnapshot(true);
+        info.setStartTimestamp(startTimeStamp);
+        info.setLastAccessTime(startTimeStamp);
+        info.setTimeout(timeout);
+        info.setHost(host);
+        return info;
+    }
 
-        RedissonScript script = (RedissonScript) this.redisson.getScript(this.infoCodec);
-        script.eval(this.infoKey, RScript.Mode.READ_WRITE, INIT_SCRIPT,
-            RScript.ReturnType.VALUE, keys, session.getId(), timeout, startTimeStamp,
-            host);
+    /**
+     * <p>Defer writing {@code session} to redis until the first attribute is written. Until then,
+     * the session is served from memory and touching it, changing its timeout or stopping it
+     * costs no round trip. A session which is never written is never stored.</p>
+     *
+     * @param session the new session, holding the id of this session
+     */
+    void defer(Session session) {
+        this.snapshot = toInfo(session);
+        this.deferred = true;
+    }
+
+    /**
+     * @return {@code true} if this session was {@link #defer(Session) deferred} and has not been
+     *  written to redis yet
+     */
+    public boolean isDeferred() {
+        return this.deferred;
+    }
+
+    /**
+     * <p>Write a deferred session to redis together with its first attributes.</p>
+     *
+     * @param attributes the attributes to write with the session
+     * @return {@code true} if the session was deferred, so the attributes have been written
+     */
+    private boolean create(Map<Object, Object> attributes) {
+        if (!this.deferred) {
+            return false;
+        }
+        checkSnapshotState();
+        try {
+            init(this.snapshot.getTimeout(), this.snapshot.getStartTimestamp(), this.snapshot.getHost(),
+                attributes);
+        } catch (RedisException e) {
+            convertException(e);
+        }
+        onCreated();
+        return true;
+    }
+
+    private <R> RFuture<R> createAsync(Supplier<RFuture<R>> next) {
+        if (!this.deferred) {
+            return next.get();
+        }
+        if (this.snapshot.isStopped()) {
+            return RedissonPromise.newFailedFuture(new StoppedSessionException());
+        }
+
+        RPromise<R> result = new RedissonPromise<>();
+        RFuture<Object> future = initAsync(this.snapshot.getTimeout(), this.snapshot.getStartTimestamp(),
+            this.snapshot.getHost());
+        future.onComplete((res, e) -> {
+            if (e != null) {
+                result.tryFailure(e instanceof RedisException ? toSessionException((RedisException) e) : e);
+                return;
+            }
+            onCreated();
+            next.get().onComplete((r, ex) -> {
+                if (ex != null) {
+                    result.tryFailure(ex);
+                } else {
+                    result.trySuccess(r);
+                }
+            });
+        });
+        return result;
+    }
+
+    private void onCreated() {
+        this.deferred = false;
+        if (this.touchRecords != null) {
+            this.touchRecords.put(this.id, this.snapshot.getStartTimestamp().getTime());
+        }
+        if (this.createListener != null) {
+            this.createListener.accept(this.id);
+        }
+    }
+
+    /**
+     * @param createListener called with the id of this session when it is written to redis after
+     *                       being {@link #defer(Session) deferred}, may be {@code null}
+     */
+    void setCreateListener(Consumer<Serializable> createListener) {
+        this.createListener = createListener;
     }
 
     @Override
@@ -100,13 +285,17 @@ public class RedissonSession implements Session {
 
     @Override
     public Date getStartTimestamp() {
+        if (this.snapshot != null) {
+            checkSnapshotState();
+            return this.snapshot.getStartTimestamp();
+        }
+
         List<Object> keys = new ArrayList<>(1);
         keys.add(this.infoKey);
 
-        RedissonScript script = (RedissonScript) this.redisson.getScript(this.infoCodec);
-        Date res = null;
+        Object res = null;
         try {
-            res = script.eval(this.infoKey, RScript.Mode.READ_ONLY,
+            res = eval(this.infoCodec, RScript.Mode.READ_ONLY,
                 GET_START_SCRIPT,
                 RScript.ReturnType.MAPVALUE, keys);
         } catch (RedisException e) {
@@ -116,19 +305,23 @@ public class RedissonSession implements Session {
         if (res == null) {
             throw new InvalidSessionException();
         } else {
-            return res;
+            return RedissonSessionInfoCodec.toDate(res);
         }
     }
 
     @Override
     public Date getLastAccessTime() {
+        if (this.snapshot != null) {
+            checkSnapshotState();
+            return this.snapshot.getLastAccessTime();
+        }
+
         List<Object> keys = new ArrayList<>(1);
         keys.add(this.infoKey);
 
-        RedissonScript script = (RedissonScript) this.redisson.getScript(this.infoCodec);
-        Date res = null;
+        Object res = null;
         try {
-            res = script.eval(this.infoKey, RScript.Mode.READ_ONLY,
+            res = eval(this.infoCodec, RScript.Mode.READ_ONLY,
                 GET_LAST_SCRIPT,
                 RScript.ReturnType.MAPVALUE, keys);
         } catch (RedisException e) {
@@ -138,19 +331,23 @@ public class RedissonSession implements Session {
         if (res == null) {
             throw new InvalidSessionException();
         } else {
-            return res;
+            return RedissonSessionInfoCodec.toDate(res);
         }
     }
 
     @Override
     public long getTimeout() throws InvalidSessionException {
+        if (this.snapshot != null) {
+            checkSnapshotState();
+            return this.snapshot.getTimeout();
+        }
+
         List<Object> keys = new ArrayList<>(1);
         keys.add(this.infoKey);
 
-        RedissonScript script = (RedissonScript) this.redisson.getScript(this.infoCodec);
-        Long res = null;
+        Object res = null;
         try {
-            res = script.eval(this.infoKey, RScript.Mode.READ_ONLY,
+            res = eval(this.infoCodec, RScript.Mode.READ_ONLY,
                 GET_TIMEOUT_SCRIPT,
                 RScript.ReturnType.MAPVALUE, keys);
         } catch (RedisException e) {
@@ -160,35 +357,50 @@ public class RedissonSession implements Session {
         if (res == null) {
             throw new InvalidSessionException();
         } else {
-            return res;
+            return RedissonSessionInfoCodec.toLong(res);
         }
     }
 
     @Override
     public void setTimeout(long maxIdleTimeInMillis) throws InvalidSessionException {
-        List<Object> keys = new ArrayList<>(1);
+        if (this.deferred) {
+            checkSnapshotState();
+            this.snapshot.setTimeout(maxIdleTimeInMillis);
+            return;
+        }
+
+        List<Object> keys = new ArrayList<>(3);
         keys.add(this.infoKey);
         keys.add(this.attrKey);
+        addIndexKey(keys);
 
-        RedissonScript script = (RedissonScript) this.redisson.getScript(this.infoCodec);
         try {
-            script.eval(this.infoKey, RScript.Mode.READ_WRITE,
+            eval(this.infoCodec, RScript.Mode.READ_WRITE,
                 SET_TIMEOUT_SCRIPT,
-                RScript.ReturnType.VALUE, keys, maxIdleTimeInMillis);
+                RScript.ReturnType.VALUE, keys, maxIdleTimeInMillis, new Date());
         } catch (RedisException e) {
             convertException(e);
         }
+        invalidateNearCache();
+
+        if (this.snapshot != null) {
+            this.snapshot.setTimeout(maxIdleTimeInMillis);
+        }
     }
 
     @Override
     public String getHost() {
+        if (this.snapshot != null) {
+            checkSnapshotState();
+            return this.snapshot.getHost();
+        }
+
         List<Object> keys = new ArrayList<>(1);
         keys.add(this.infoKey);
 
-        RedissonScript script = (RedissonScript) this.redisson.getScript(this.infoCodec);
-        String res = null;
+        Object res = null;
         try {
-            res = script.eval(this.infoKey, RScript.Mode.READ_ONLY,
+            res = eval(this.infoCodec, RScript.Mode.READ_ONLY,
                 GET_HOST_SCRIPT,
                 RScript.ReturnType.MAPVALUE, keys);
         } catch (RedisException e) {
@@ -198,49 +410,336 @@ public class RedissonSession implements Session {
         if (res == null) {
             throw new InvalidSessionException();
         } else {
-            return res;
+            return RedissonSessionInfoCodec.toText(res);
         }
     }
 
     @Override
     public void touch() throws InvalidSessionException {
-        List<Object> keys = new ArrayList<>(2);
+        Date now = new Date();
+        if (this.deferred) {
+            checkSnapshotState();
+            this.snapshot.setLastAccessTime(now);
+            return;
+        }
+        if (this.touchInterval > 0) {
+            Long lastTouch = getLastTouch();
+            if (lastTouch != null && now.getTime() - lastTouch < this.touchInterval) {
+                checkSkippedTouch(now);
+                return;
+            }
+        }
+
+        List<Object> keys = new ArrayList<>(3);
         keys.add(this.infoKey);
         keys.add(this.attrKey);
+        addIndexKey(keys);
 
-        RedissonScript script = (RedissonScript) this.redisson.getScript(this.infoCodec);
         try {
-            script.eval(this.infoKey, RScript.Mode.READ_WRITE,
-                TOUCH_SCRIPT, RScript.ReturnType.VALUE, keys, new Date());
+            eval(this.infoCodec, RScript.Mode.READ_WRITE,
+                TOUCH_SCRIPT, RScript.ReturnType.VALUE, keys, now);
         } catch (RedisException e) {
             convertException(e);
         }
+
+        if (this.snapshot != null) {
+            this.snapshot.setLastAccessTime(now);
+        }
+        if (this.touchRecords != null) {
+            this.touchRecords.put(this.id, now.getTime());
+        }
+    }
+
+    /**
+     * @param scriptRegistry the registry to run scripts by EVALSHA, {@code null} to use EVAL
+     */
+    void setScriptRegistry(RedissonSessionScriptRegistry scriptRegistry) {
+        this.scriptRegistry = scriptRegistry;
+    }
+
+    /**
+     * @param infoCodec the codec of the session info hash, e.g. {@link RedissonSessionInfoCodec}
+     */
+    void setInfoCodec(Codec infoCodec) {
+        this.infoCodec = infoCodec;
+    }
+
+    /**
+     * @param indexKey the key of the active session index, may be {@code null}
+     */
+    void setIndexKey(String indexKey) {
+        this.indexKey = indexKey;
+    }
+
+    private void addIndexKey(List<Object> keys) {
+        if (this.indexKey != null) {
+            keys.add(this.indexKey);
+        }
+    }
+
+    /**
+     * @param principalIndex the index to add this session to when its principals are written,
+     *                       may be {@code null}
+     */
+    void setPrincipalIndex(RedissonPrincipalSessionIndex principalIndex) {
+        this.principalIndex = principalIndex;
+    }
+
+    private boolean isIndexed(Object key) {
+        return this.principalIndex != null && DefaultSubjectContext.PRINCIPALS_SESSION_KEY.equals(key);
+    }
+
+    private void indexPrincipals(Map<Object, Object> attributes) {
+        if (this.principalIndex != null) {
+            Object key = DefaultSubjectContext.PRINCIPALS_SESSION_KEY;
+            reindexPrincipals(key, null, attributes.get(key));
+        }
+    }
+
+    /**
+     * <p>Move this session from the index of the principals it had to the one of its new
+     * principals, unless both are indexed by the same name.</p>
+     *
+     * @param key the attribute key written
+     * @param previous the encoded previous value, may be {@code null}
+     * @param value the new value, {@code null} if it was removed
+     */
+    private void reindexPrincipals(Object key, Object previous, Object value) {
+        if (!isIndexed(key)) {
+            return;
+        }
+        Object previousValue = decode(this.codec, (byte[]) previous);
+        if (previousValue != null && (value == null || !this.principalIndex.getIndexKey(previousValue)
+            .equals(this.principalIndex.getIndexKey(value)))) {
+            this.principalIndex.remove(previousValue, this.id);
+        }
+        if (value != null) {
+            this.principalIndex.add(value, this.id);
+        }
+    }
+
+    private void unindexPrincipals(Object key, Object previous) {
+        if (this.principalIndex != null && previous != null
+            && DefaultSubjectContext.PRINCIPALS_SESSION_KEY.equals(key)) {
+            this.principalIndex.remove(previous, this.id);
+        }
+    }
+
+    /**
+     * @param nearCache the near cache to invalidate on writes, may be {@code null}
+     */
+    void setNearCache(RedissonSessionNearCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    RedissonSessionSnapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    void setSnapshot(RedissonSessionSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    private void invalidateNearCache() {
+        if (this.nearCache != null) {
+            this.nearCache.invalidate(this.id);
+        }
+    }
+
+    /**
+     * <p>Skip {@link #touch()} if the last known access time is less than {@code touchInterval}
+     * milliseconds ago. The last access time is taken from the snapshot, or else from
+     * {@code touchRecords} shared by the sessions of a dao.</p>
+     *
+     * @param touchInterval the minimum interval between two writes of the last access time
+     * @param touchRecords last access times of sessions by id, may be {@code null}
+     */
+    void setTouchInterval(long touchInterval, Map<Serializable, Long> touchRecords) {
+        this.touchInterval = touchInterval;
+        this.touchRecords = touchRecords;
+    }
+
+    /**
+     * <p>Store encoded attribute values longer than {@code spillThreshold} bytes in side keys,
+     * so the attribute hash keeps its compact encoding, see {@link RedissonSessionScript}.</p>
+     *
+     * @param spillThreshold the length from which values are spilled, 0 to never spill
+     */
+    void setSpillThreshold(int spillThreshold) {
+        this.spillThreshold = String.valueOf(Math.max(spillThreshold, 0)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * <p>Run the {@link RedissonSessionScript#toStatusScript(String) status variants} of the
+     * scripts, so an expired or stopped session is reported without a redis exception.</p>
+     *
+     * @param statusProtocol whether to use the status script protocol
+     */
+    void setStatusProtocol(boolean statusProtocol) {
+        this.statusProtocol = statusProtocol;
+    }
+
+    /**
+     * <p>Let read-only scripts go to replicas, as routed by the read mode of the redisson client,
+     * unless this node wrote the session less than {@code replicaReadStaleness} milliseconds ago.
+     * A read of a session missing on a replica, i.e. failing as expired or invalid, is retried
+     * on the master. A {@code null} result is not, the scripts check that the session exists
+     * before reading, so it is an absent attribute.</p>
+     *
+     * @param replicaReadStaleness how long after a write reads of a session stay on the master
+     * @param writeRecords last write times of sessions by id, shared by the sessions of a dao,
+     *                     {@code null} to disable the policy, leaving the modes of the scripts to
+     *                     the read mode of the client
+     */
+    void setReplicaRead(long replicaReadStaleness, Map<Serializable, Long> writeRecords) {
+        this.replicaReadStaleness = replicaReadStaleness;
+        this.writeRecords = writeRecords;
+    }
+
+    private boolean isReplicaReadable() {
+        Long lastWrite = this.writeRecords.get(this.id);
+        return lastWrite == null || System.currentTimeMillis() - lastWrite >= this.replicaReadStaleness;
+    }
+
+    private void recordWrite(String script) {
+        //a replica missing a touch at worst reports an expired session, which is read again
+        if (!TOUCH_SCRIPT.equals(script)) {
+            this.writeRecords.put(this.id, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * <p>Whether a read from a replica failed as the session is missing there, which may be a
+     * creation or a touch the replica has not received yet. A stopped session can't be undone.</p>
+     */
+    private static boolean isReplicaMiss(Throwable e) {
+        if (e instanceof RedisException) {
+            return RETURN_CODE_EXPIRED.equals(e.getMessage()) || RETURN_CODE_INVALID.equals(e.getMessage());
+        }
+        //an expired session is a stopped session to shiro
+        return e instanceof ExpiredSessionException
+            || (e instanceof InvalidSessionException && !(e instanceof StoppedSessionException));
+    }
+
+    /**
+     * <p>A touch skipped by the touch interval still fails on an invalid session, like the touch
+     * it replaces. The state is checked against the snapshot if one is loaded, otherwise by a
+     * read-only script, which costs no write.</p>
+     */
+    private void checkSkippedTouch(Date now) {
+        if (this.snapshot != null) {
+            checkSnapshotExpiry(now);
+            return;
+        }
+
+        List<Object> keys = new ArrayList<>(1);
+        keys.add(this.infoKey);
+
+        Object res = null;
+        try {
+            res = eval(this.infoCodec, RScript.Mode.READ_ONLY,
+                GET_TIMEOUT_SCRIPT, RScript.ReturnType.VALUE, keys);
+        } catch (RedisException e) {
+            convertException(e);
+        }
+        if (res == null) {
+            throw new InvalidSessionException();
+        }
+    }
+
+    private RFuture<Void> checkSkippedTouchAsync(Date now) {
+        if (this.snapshot != null) {
+            try {
+                checkSnapshotExpiry(now);
+            } catch (InvalidSessionException e) {
+                return RedissonPromise.newFailedFuture(e);
+            }
+            return RedissonPromise.newSucceededFuture(null);
+        }
+
+        List<Object> keys = new ArrayList<>(1);
+        keys.add(this.infoKey);
+
+        RFuture<Object> future = evalAsync(this.infoCodec, RScript.Mode.READ_ONLY,
+            GET_TIMEOUT_SCRIPT, RScript.ReturnType.VALUE, keys);
+        return mapAsync(future, res -> {
+            if (res == null) {
+                throw new InvalidSessionException();
+            }
+            return null;
+        });
+    }
+
+    private void checkSnapshotExpiry(Date now) {
+        checkSnapshotState();
+        long timeout = this.snapshot.getTimeout();
+        if (timeout >= 0 && this.snapshot.getLastAccessTime().getTime() + timeout <= now.getTime()) {
+            throw new ExpiredSessionException();
+        }
+    }
+
+    private Long getLastTouch() {
+        if (this.snapshot != null) {
+            return this.snapshot.getLastAccessTime().getTime();
+        }
+        if (this.touchRecords != null) {
+            return this.touchRecords.get(this.id);
+        }
+        return null;
     }
 
     @Override
     public void stop() throws InvalidSessionException {
+        Date now = new Date();
+        if (this.deferred) {
+            checkSnapshotState();
+            this.snapshot.setStopTimestamp(now);
+            if (this.pendingWrites != null) {
+                this.pendingWrites.clear();
+            }
+            return;
+        }
+
         List<Object> keys = new ArrayList<>(1);
         keys.add(this.infoKey);
 
-        RedissonScript script = (RedissonScript) this.redisson.getScript(this.infoCodec);
         try {
-            script.eval(this.infoKey, RScript.Mode.READ_WRITE,
-                STOP_SCRIPT, RScript.ReturnType.VALUE, keys, new Date());
+            eval(this.infoCodec, RScript.Mode.READ_WRITE,
+                STOP_SCRIPT, RScript.ReturnType.VALUE, keys, now);
         } catch (RedisException e) {
             convertException(e);
         }
+        invalidateNearCache();
+        onStopped(now);
+    }
+
+    /**
+     * <p>Apply a stop done in redis, e.g. by {@link RedissonSessionDao#stopAndDelete(Session)},
+     * to the local state of this instance.</p>
+     */
+    void onStopped(Date stopTimestamp) {
+        if (this.snapshot != null) {
+            this.snapshot.setStopTimestamp(stopTimestamp);
+        }
+        if (this.pendingWrites != null) {
+            this.pendingWrites.clear();
+        }
     }
 
     @Override
     public Collection<Object> getAttributeKeys() throws InvalidSessionException {
+        if (this.snapshot != null && this.snapshot.isComplete()) {
+            checkSnapshotState();
+            return this.snapshot.getAttributeKeys();
+        }
+
         List<Object> keys = new ArrayList<>(2);
         keys.add(this.infoKey);
         keys.add(this.attrKey);
 
-        RedissonScript script = (RedissonScript) this.redisson.getScript(this.codec);
         Collection<Object> res = null;
         try {
-            res = script.eval(this.infoKey, RScript.Mode.READ_ONLY,
+            res = eval(this.codec, RScript.Mode.READ_ONLY,
                 GET_ATTRKEYS_SCRIPT, RScript.ReturnType.MAPVALUELIST, keys);
         } catch (RedisException e) {
             convertException(e);
@@ -248,21 +747,40 @@ public class RedissonSession implements Session {
 
         if (res == null) {
             throw new InvalidSessionException();
-        } else {
-            return res;
         }
+
+        if (this.pendingWrites != null && !this.pendingWrites.isEmpty()) {
+            Set<Object> merged = new LinkedHashSet<>(res);
+            for (Map.Entry<Object, Object> entry : this.pendingWrites.entrySet()) {
+                if (entry.getValue() != null) {
+                    merged.add(entry.getKey());
+                } else {
+                    merged.remove(entry.getKey());
+                }
+            }
+            return merged;
+        }
+        return res;
     }
 
     @Override
     public Object getAttribute(Object key) throws InvalidSessionException {
+        if (this.pendingWrites != null && this.pendingWrites.containsKey(key)) {
+            return this.pendingWrites.get(key);
+        }
+
+        if (this.snapshot != null && this.snapshot.isKnown(key)) {
+            checkSnapshotState();
+            return this.snapshot.getAttribute(key);
+        }
+
         List<Object> keys = new ArrayList<>(2);
         keys.add(this.infoKey);
         keys.add(this.attrKey);
 
-        RedissonScript script = (RedissonScript) this.redisson.getScript(this.codec);
         Object res = null;
         try {
-            res = script.eval(this.infoKey, RScript.Mode.READ_ONLY,
+            res = eval(this.codec, RScript.Mode.READ_ONLY,
                 GET_ATTR_SCRIPT, RScript.ReturnType.MAPVALUE, keys, key);
         } catch (RedisException e) {
             convertException(e);
@@ -273,47 +791,815 @@ public class RedissonSession implements Session {
 
     @Override
     public void setAttribute(Object key, Object value) throws InvalidSessionException {
+        if (this.pendingWrites != null) {
+            if (this.snapshot != null) {
+                checkSnapshotState();
+                this.snapshot.putAttribute(key, value);
+            }
+            this.pendingWrites.put(key, value);
+            return;
+        }
+        if (this.deferred && value == null) {
+            removeAttribute(key);
+            return;
+        }
+        if (!create(Collections.singletonMap(key, value))) {
+            List<Object> keys = new ArrayList<>(2);
+            keys.add(this.infoKey);
+            keys.add(this.attrKey);
+
+            Object previous = null;
+            try {
+                previous = eval(ByteArrayCodec.INSTANCE, RScript.Mode.READ_WRITE,
+                    SET_ATTR_SCRIPT, RScript.ReturnType.VALUE, keys, getSetArgs(key, value));
+            } catch (RedisException e) {
+                convertException(e);
+            }
+            invalidateNearCache();
+            reindexPrincipals(key, previous, value);
+        }
+
+        if (this.snapshot != null) {
+            this.snapshot.putAttribute(key, value);
+        }
+    }
+
+    @Override
+    public Object removeAttribute(Object key) throws InvalidSessionException {
+        if (this.pendingWrites != null) {
+            Object previous = getAttribute(key);
+            if (this.snapshot != null) {
+                this.snapshot.putAttribute(key, null);
+            }
+            this.pendingWrites.put(key, null);
+            return previous;
+        }
+        if (this.deferred) {
+            //a deferred session has no attributes
+            checkSnapshotState();
+            return null;
+        }
+
         List<Object> keys = new ArrayList<>(2);
         keys.add(this.infoKey);
         keys.add(this.attrKey);
 
-        RedissonScript script = (RedissonScript) this.redisson.getScript(this.codec);
+        Object res = null;
         try {
-            script.eval(this.infoKey, RScript.Mode.READ_WRITE,
-                SET_ATTR_SCRIPT, RScript.ReturnType.VALUE, keys, key, value);
+            res = eval(this.codec, RScript.Mode.READ_WRITE,
+                REMOVE_ATTR_SCRIPT, RScript.ReturnType.MAPVALUE, keys, key);
         } catch (RedisException e) {
             convertException(e);
         }
+        invalidateNearCache();
+        unindexPrincipals(key, res);
+
+        if (this.snapshot != null) {
+            this.snapshot.putAttribute(key, null);
+        }
+
+        return res;
     }
 
-    @Override
-    public Object removeAttribute(Object key) throws InvalidSessionException {
+    /**
+     * <p>Get several attributes in one script call. Attributes which do not exist are absent from
+     * the result.</p>
+     *
+     * @param attributeKeys keys of the attributes
+     * @return the attributes by key
+     * @throws InvalidSessionException if the session has expired or has been stopped
+     */
+    public Map<Object, Object> getAttributes(Collection<Object> attributeKeys) throws InvalidSessionException {
+        if (attributeKeys == null) {
+            throw new IllegalArgumentException("Attribute keys must not be null!");
+        }
+        return doGetAttributes(attributeKeys);
+    }
+
+    /**
+     * <p>Get all attributes in one script call.</p>
+     *
+     * @return the attributes by key
+     * @throws InvalidSessionException if the session has expired or has been stopped
+     */
+    public Map<Object, Object> getAllAttributes() throws InvalidSessionException {
+        return doGetAttributes(null);
+    }
+
+    private Map<Object, Object> doGetAttributes(Collection<Object> attributeKeys) {
+        if (isSnapshotKnown(attributeKeys)) {
+            checkSnapshotState();
+            return getSnapshotAttributes(attributeKeys);
+        }
+
         List<Object> keys = new ArrayList<>(2);
         keys.add(this.infoKey);
         keys.add(this.attrKey);
 
-        RedissonScript script = (RedissonScript) this.redisson.getScript(this.codec);
-        Object res = null;
+        List<byte[]> res = null;
         try {
-            res = script.eval(this.infoKey, RScript.Mode.READ_WRITE,
-                REMOVE_ATTR_SCRIPT, RScript.ReturnType.MAPVALUE, keys, key);
+            res = eval(ByteArrayCodec.INSTANCE, RScript.Mode.READ_ONLY,
+                GET_ATTRS_SCRIPT, RScript.ReturnType.MAPVALUELIST, keys, getLoadArgs(attributeKeys));
         } catch (RedisException e) {
             convertException(e);
         }
 
-        return res;
+        if (res == null) {
+            throw new InvalidSessionException();
+        }
+        return mergePendingWrites(toAttributes(res), attributeKeys);
     }
 
-    private void convertException(RedisException e) {
-        String errMsg = e.getMessage();
-        if (RETURN_CODE_EXPIRED.equals(errMsg)) {
-            throw new ExpiredSessionException();
-        } else if (RETURN_CODE_STOPPED.equals(errMsg)) {
-            throw new StoppedSessionException();
-        } else if (RETURN_CODE_INVALID.equals(errMsg)) {
+    /**
+     * <p>Set several attributes in one script call. A {@code null} value removes the attribute.</p>
+     *
+     * @param attributes the attributes by key
+     * @throws InvalidSessionException if the session has expired or has been stopped
+     */
+    public void setAttributes(Map<Object, Object> attributes) throws InvalidSessionException {
+        if (attributes == null) {
+            throw new IllegalArgumentException("Attributes must not be null!");
+        }
+        if (attributes.isEmpty()) {
+            return;
+        }
+
+        if (this.pendingWrites != null) {
+            if (this.snapshot != null) {
+                checkSnapshotState();
+                for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+                    this.snapshot.putAttribute(entry.getKey(), entry.getValue());
+                }
+            }
+            this.pendingWrites.putAll(attributes);
+            return;
+        }
+        if (this.deferred && !hasValues(attributes)) {
+            checkSnapshotState();
+            return;
+        }
+        if (!create(attributes)) {
+            List<Object> keys = new ArrayList<>(2);
+            keys.add(this.infoKey);
+            keys.add(this.attrKey);
+
+            Object previous = null;
+            try {
+                previous = eval(ByteArrayCodec.INSTANCE, RScript.Mode.READ_WRITE,
+                    UPDATE_ATTRS_SCRIPT, RScript.ReturnType.VALUE, keys, getUpdateArgs(attributes));
+            } catch (RedisException e) {
+                convertException(e);
+            }
+            invalidateNearCache();
+            Object principalsKey = DefaultSubjectContext.PRINCIPALS_SESSION_KEY;
+            reindexPrincipals(principalsKey, previous, attributes.get(principalsKey));
+        }
+
+        if (this.snapshot != null) {
+            for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+                this.snapshot.putAttribute(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private boolean isSnapshotKnown(Collection<Object> attributeKeys) {
+        if (this.snapshot == null) {
+            return false;
+        }
+        if (attributeKeys == null) {
+            return this.snapshot.isComplete();
+        }
+        for (Object attributeKey : attributeKeys) {
+            if (!this.snapshot.isKnown(attributeKey)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Map<Object, Object> getSnapshotAttributes(Collection<Object> attributeKeys) {
+        return this.snapshot.getAttributes(attributeKeys);
+    }
+
+    private Map<Object, Object> toAttributes(List<byte[]> res) {
+        RedissonSessionAttributes attributes = new RedissonSessionAttributes();
+        for (int i = 0; i + 1 < res.size(); i += 2) {
+            attributes.putEncoded(decode(this.codec, res.get(i)), res.get(i + 1), this.codec);
+        }
+        return attributes;
+    }
+
+    private Map<Object, Object> mergePendingWrites(Map<Object, Object> attributes, Collection<Object> attributeKeys) {
+        if (this.pendingWrites == null) {
+            return attributes;
+        }
+        for (Map.Entry<Object, Object> entry : this.pendingWrites.entrySet()) {
+            if (attributeKeys != null && !attributeKeys.contains(entry.getKey())) {
+                continue;
+            }
+            if (entry.getValue() != null) {
+                attributes.put(entry.getKey(), entry.getValue());
+            } else {
+                attributes.remove(entry.getKey());
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * <p>Asynchronous counterpart of {@link #getAttribute(Object)}.</p>
+     *
+     * @param key the attribute key
+     * @return a future of the attribute value, failing with an {@link InvalidSessionException}
+     *  if the session has expired or has been stopped
+     */
+    public RFuture<Object> getAttributeAsync(Object key) {
+        if (this.pendingWrites != null && this.pendingWrites.containsKey(key)) {
+            return RedissonPromise.newSucceededFuture(this.pendingWrites.get(key));
+        }
+        if (this.snapshot != null && this.snapshot.isKnown(key)) {
+            if (this.snapshot.isStopped()) {
+                return RedissonPromise.newFailedFuture(new StoppedSessionException());
+            }
+            return RedissonPromise.newSucceededFuture(this.snapshot.getAttribute(key));
+        }
+
+        List<Object> keys = new ArrayList<>(2);
+        keys.add(this.infoKey);
+        keys.add(this.attrKey);
+
+        RFuture<Object> future = evalAsync(this.codec, RScript.Mode.READ_ONLY,
+            GET_ATTR_SCRIPT, RScript.ReturnType.MAPVALUE, keys, key);
+        return mapAsync(future, res -> res);
+    }
+
+    /**
+     * <p>Asynchronous counterpart of {@link #getAllAttributes()}.</p>
+     *
+     * @return a future of the attributes by key
+     */
+    public RFuture<Map<Object, Object>> getAttributesAsync() {
+        return getAttributesAsync(null);
+    }
+
+    /**
+     * <p>Asynchronous counterpart of {@link #getAttributes(Collection)}.</p>
+     *
+     * @param attributeKeys keys of the attributes, {@code null} for all attributes
+     * @return a future of the attributes by key
+     */
+    public RFuture<Map<Object, Object>> getAttributesAsync(Collection<Object> attributeKeys) {
+        if (isSnapshotKnown(attributeKeys)) {
+            if (this.snapshot.isStopped()) {
+                return RedissonPromise.newFailedFuture(new StoppedSessionException());
+            }
+            return RedissonPromise.newSucceededFuture(getSnapshotAttributes(attributeKeys));
+        }
+
+        List<Object> keys = new ArrayList<>(2);
+        keys.add(this.infoKey);
+        keys.add(this.attrKey);
+
+        RFuture<List<byte[]>> future = evalAsync(ByteArrayCodec.INSTANCE, RScript.Mode.READ_ONLY,
+            GET_ATTRS_SCRIPT, RScript.ReturnType.MAPVALUELIST, keys, getLoadArgs(attributeKeys));
+        return mapAsync(future, res -> mergePendingWrites(toAttributes(res), attributeKeys));
+    }
+
+    /**
+     * <p>Asynchronous counterpart of {@link #setAttribute(Object, Object)}.</p>
+     *
+     * @param key the attribute key
+     * @param value the attribute value
+     * @return a future completed when the attribute is written
+     */
+    public RFuture<Void> setAttributeAsync(Object key, Object value) {
+        if (this.pendingWrites != null) {
+            try {
+                setAttribute(key, value);
+            } catch (InvalidSessionException e) {
+                return RedissonPromise.newFailedFuture(e);
+            }
+            return RedissonPromise.newSucceededFuture(null);
+        }
+
+        if (this.deferred && value == null) {
+            return mapAsync(removeAttributeAsync(key), res -> null);
+        }
+        return createAsync(() -> doSetAttributeAsync(key, value));
+    }
+
+    private RFuture<Void> doSetAttributeAsync(Object key, Object value) {
+        List<Object> keys = new ArrayList<>(2);
+        keys.add(this.infoKey);
+        keys.add(this.attrKey);
+
+        RFuture<Object> future = evalAsync(ByteArrayCodec.INSTANCE, RScript.Mode.READ_WRITE,
+            SET_ATTR_SCRIPT, RScript.ReturnType.VALUE, keys, getSetArgs(key, value));
+        return mapAsync(future, res -> {
+            invalidateNearCache();
+            reindexPrincipals(key, res, value);
+            if (this.snapshot != null) {
+                this.snapshot.putAttribute(key, value);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * <p>Asynchronous counterpart of {@link #removeAttribute(Object)}.</p>
+     *
+     * @param key the attribute key
+     * @return a future of the removed value
+     */
+    public RFuture<Object> removeAttributeAsync(Object key) {
+        if (this.pendingWrites != null) {
+            return mapAsync(getAttributeAsync(key), res -> {
+                if (this.snapshot != null) {
+                    this.snapshot.putAttribute(key, null);
+                }
+                this.pendingWrites.put(key, null);
+                return res;
+            });
+        }
+        if (this.deferred) {
+            if (this.snapshot.isStopped()) {
+                return RedissonPromise.newFailedFuture(new StoppedSessionException());
+            }
+            return RedissonPromise.newSucceededFuture(null);
+        }
+
+        List<Object> keys = new ArrayList<>(2);
+        keys.add(this.infoKey);
+        keys.add(this.attrKey);
+
+        RFuture<Object> future = evalAsync(this.codec, RScript.Mode.READ_WRITE,
+            REMOVE_ATTR_SCRIPT, RScript.ReturnType.MAPVALUE, keys, key);
+        return mapAsync(future, res -> {
+            invalidateNearCache();
+            unindexPrincipals(key, res);
+            if (this.snapshot != null) {
+                this.snapshot.putAttribute(key, null);
+            }
+            return res;
+        });
+    }
+
+    /**
+     * <p>Asynchronous counterpart of {@link #touch()}.</p>
+     *
+     * @return a future completed when the session is touched
+     */
+    public RFuture<Void> touchAsync() {
+        Date now = new Date();
+        if (this.deferred) {
+            if (this.snapshot.isStopped()) {
+                return RedissonPromise.newFailedFuture(new StoppedSessionException());
+            }
+            this.snapshot.setLastAccessTime(now);
+            return RedissonPromise.newSucceededFuture(null);
+        }
+        if (this.touchInterval > 0) {
+            Long lastTouch = getLastTouch();
+            if (lastTouch != null && now.getTime() - lastTouch < this.touchInterval) {
+                return checkSkippedTouchAsync(now);
+            }
+        }
+
+        List<Object> keys = new ArrayList<>(3);
+        keys.add(this.infoKey);
+        keys.add(this.attrKey);
+        addIndexKey(keys);
+
+        RFuture<Object> future = evalAsync(this.infoCodec, RScript.Mode.READ_WRITE,
+            TOUCH_SCRIPT, RScript.ReturnType.VALUE, keys, now);
+        return mapAsync(future, res -> {
+            if (this.snapshot != null) {
+                this.snapshot.setLastAccessTime(now);
+            }
+            if (this.touchRecords != null) {
+                this.touchRecords.put(this.id, now.getTime());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * <p>Write all buffered attribute changes to redis in one atomic script call.</p>
+     * <p>
+     *  If the call fails with a {@link RedisException}, e.g. a timeout, the changes stay buffered
+     *  and the flush can be repeated, which is safe as it only sets and removes values. They are
+     *  dropped if the session has expired or has been stopped.
+     * </p>
+     *
+     * @throws InvalidSessionException if the session has expired or has been stopped
+     */
+    public void flush() throws InvalidSessionException {
+        if (this.pendingWrites == null || this.pendingWrites.isEmpty()) {
+            return;
+        }
+        if (this.deferred && !hasValues(this.pendingWrites)) {
+            this.pendingWrites.clear();
+            return;
+        }
+        if (create(this.pendingWrites)) {
+            this.pendingWrites.clear();
+            return;
+        }
+
+        List<Object> keys = new ArrayList<>(2);
+        keys.add(this.infoKey);
+        keys.add(this.attrKey);
+
+        Object[] args = getUpdateArgs(this.pendingWrites);
+        Object principalsKey = DefaultSubjectContext.PRINCIPALS_SESSION_KEY;
+        Object principals = this.pendingWrites.get(principalsKey);
+
+        Object previous;
+        try {
+            previous = eval(ByteArrayCodec.INSTANCE, RScript.Mode.READ_WRITE,
+                UPDATE_ATTRS_SCRIPT, RScript.ReturnType.VALUE, keys, args);
+        } catch (RedisException e) {
+            RuntimeException sessionException = toSessionException(e);
+            if (sessionException != e) {
+                //the session is gone, a retry can't succeed
+                this.pendingWrites.clear();
+            }
+            throw sessionException;
+        }
+        this.pendingWrites.clear();
+        invalidateNearCache();
+        reindexPrincipals(principalsKey, previous, principals);
+    }
+
+    private static boolean hasValues(Map<Object, Object> attributes) {
+        for (Object value : attributes.values()) {
+            if (value != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Object[] getSetArgs(Object key, Object value) {
+        if (isIndexed(key)) {
+            //the previous principals are unindexed
+            return new Object[]{encode(this.codec, key), encode(this.codec, value), this.spillThreshold,
+                new byte[]{'1'}};
+        }
+        return new Object[]{encode(this.codec, key), encode(this.codec, value), this.spillThreshold};
+    }
+
+    private Object[] getUpdateArgs(Map<Object, Object> attributes) {
+        List<byte[]> updates = new ArrayList<>();
+        List<byte[]> removals = new ArrayList<>();
+        for (Map.Entry<Object, Object> entry : attributes.entrySet()) {
+            if (entry.getValue() != null) {
+                updates.add(encode(this.codec, entry.getKey()));
+                updates.add(encode(this.codec, entry.getValue()));
+            } else {
+                removals.add(encode(this.codec, entry.getKey()));
+            }
+        }
+
+        Object principalsKey = DefaultSubjectContext.PRINCIPALS_SESSION_KEY;
+        List<Object> args = new ArrayList<>(updates.size() + removals.size() + 3);
+        args.add(String.valueOf(updates.size() / 2).getBytes(StandardCharsets.UTF_8));
+        args.add(this.spillThreshold);
+        //the previous principals are unindexed
+        args.add(isIndexed(principalsKey) && attributes.containsKey(principalsKey) ?
+            encode(this.codec, principalsKey) : new byte[0]);
+        args.addAll(updates);
+        args.addAll(removals);
+        return args.toArray();
+    }
+
+    /**
+     * <p>If enabled, {@link #setAttribute(Object, Object)} and {@link #removeAttribute(Object)}
+     * are collected locally, and reads of this instance see them, until {@link #flush()} is
+     * called. Disabling it flushes the pending changes.</p>
+     *
+     * @param writeBuffered whether to buffer attribute writes
+     */
+    public void setWriteBuffered(boolean writeBuffered) {
+        if (writeBuffered) {
+            if (this.pendingWrites == null) {
+                this.pendingWrites = new LinkedHashMap<>();
+            }
+        } else if (this.pendingWrites != null) {
+            try {
+                flush();
+            } finally {
+                this.pendingWrites = null;
+            }
+        }
+    }
+
+    public boolean isWriteBuffered() {
+        return this.pendingWrites != null;
+    }
+
+    /**
+     * <p>Load the session info and all attributes in one round trip, then serve reads of this
+     * instance from memory. Writes still go to redis and are applied to the snapshot as well.</p>
+     *
+     * @throws InvalidSessionException if the session has expired
+     */
+    public void loadSnapshot() throws InvalidSessionException {
+        loadSnapshot(null);
+    }
+
+    /**
+     * <p>Load the session info and the given attributes in one round trip, then serve reads of
+     * this instance from memory. Attributes which are not in {@code attributeKeys} are still
+     * read from redis.</p>
+     *
+     * @param attributeKeys keys of the attributes to load, {@code null} to load all attributes
+     * @throws InvalidSessionException if the session has expired or its info is incomplete
+     */
+    public void loadSnapshot(Collection<Object> attributeKeys) throws InvalidSessionException {
+        if (this.deferred) {
+            //the snapshot of a deferred session is complete
+            return;
+        }
+
+        List<Object> keys = new ArrayList<>(2);
+        keys.add(this.infoKey);
+        keys.add(this.attrKey);
+
+        List<byte[]> res = null;
+        try {
+            res = eval(ByteArrayCodec.INSTANCE, RScript.Mode.READ_ONLY,
+                GET_SNAPSHOT_SCRIPT, RScript.ReturnType.MAPVALUELIST, keys, getLoadArgs(attributeKeys));
+        } catch (RedisException e) {
+            convertException(e);
+        }
+
+        this.snapshot = toSnapshot(res, attributeKeys);
+    }
+
+    private Object[] getLoadArgs(Collection<Object> attributeKeys) {
+        boolean complete = attributeKeys == null;
+        List<Object> args = new ArrayList<>(complete ? 1 : attributeKeys.size() + 1);
+        args.add(complete ? LOAD_ALL : LOAD_SOME);
+        if (!complete) {
+            for (Object attributeKey : attributeKeys) {
+                args.add(encode(this.codec, attributeKey));
+            }
+        }
+        return args.toArray();
+    }
+
+    private RedissonSessionSnapshot toSnapshot(List<byte[]> res, Collection<Object> attributeKeys) {
+        if (res == null || res.size() < 5) {
+            throw new InvalidSessionException();
+        }
+
+        boolean complete = attributeKeys == null;
+        RedissonSessionSnapshot snapshot = new RedissonSessionSnapshot(complete);
+        snapshot.setStartTimestamp(RedissonSessionInfoCodec.toDate(decode(this.infoCodec, res.get(0))));
+        snapshot.setStopTimestamp(RedissonSessionInfoCodec.toDate(decode(this.infoCodec, res.get(1))));
+        snapshot.setLastAccessTime(RedissonSessionInfoCodec.toDate(decode(this.infoCodec, res.get(2))));
+        snapshot.setTimeout(RedissonSessionInfoCodec.toLong(decode(this.infoCodec, res.get(3))));
+        snapshot.setHost(RedissonSessionInfoCodec.toText(decode(this.infoCodec, res.get(4))));
+        if (snapshot.getStartTimestamp() == null || snapshot.getLastAccessTime() == null
+            || snapshot.getTimeout() == null || snapshot.getHost() == null) {
             throw new InvalidSessionException();
+        }
+        if (!complete) {
+            for (Object attributeKey : attributeKeys) {
+                snapshot.putAttribute(attributeKey, null);
+            }
+        }
+        for (int i = 5; i + 1 < res.size(); i += 2) {
+            snapshot.putEncodedAttribute(decode(this.codec, res.get(i)), res.get(i + 1), this.codec);
+        }
+
+        long estimatedSize = 0;
+        for (byte[] bytes : res) {
+            estimatedSize += bytes != null ? bytes.length : 0;
+        }
+        snapshot.setEstimatedSize(estimatedSize);
+        return snapshot;
+    }
+
+    /**
+     * <p>Drop the snapshot loaded by {@link #loadSnapshot()}, reads go to redis again. The
+     * snapshot of a deferred session is kept.</p>
+     */
+    public void clearSnapshot() {
+        if (this.deferred) {
+            return;
+        }
+        this.snapshot = null;
+    }
+
+    public boolean isSnapshotLoaded() {
+        return this.snapshot != null;
+    }
+
+    private void checkSnapshotState() {
+        if (this.snapshot.isStopped()) {
+            throw new StoppedSessionException();
+        }
+    }
+
+    static byte[] encode(Codec codec, Object value) {
+        ByteBuf buf = null;
+        try {
+            buf = codec.getValueEncoder().encode(value);
+            return ByteBufUtil.getBytes(buf);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to encode value: " + value, e);
+        } finally {
+            if (buf != null) {
+                buf.release();
+            }
+        }
+    }
+
+    static Object decode(Codec codec, byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return codec.getMapValueDecoder().decode(Unpooled.wrappedBuffer(bytes), new State());
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to decode value", e);
+        }
+    }
+
+    /**
+     * <p>Evaluate a script on the master, or a read-only script on a replica if the
+     * {@link #setReplicaRead(long, Map) replica read policy} allows it.</p>
+     */
+    private <R> R eval(Codec codec, RScript.Mode mode, String script, RScript.ReturnType returnType,
+        List<Object> keys, Object... values) {
+        if (this.writeRecords == null) {
+            return evalScript(codec, mode, script, returnType, keys, values);
+        }
+        if (mode == RScript.Mode.READ_WRITE) {
+            R res = evalScript(codec, mode, script, returnType, keys, values);
+            recordWrite(script);
+            return res;
+        }
+        if (!isReplicaReadable()) {
+            //a read-write script goes to the master whatever the read mode
+            return evalScript(codec, RScript.Mode.READ_WRITE, script, returnType, keys, values);
+        }
+        try {
+            return evalScript(codec, mode, script, returnType, keys, values);
+        } catch (RuntimeException e) {
+            if (!isReplicaMiss(e)) {
+                throw e;
+            }
+        }
+        return evalScript(codec, RScript.Mode.READ_WRITE, script, returnType, keys, values);
+    }
+
+    private <R> R evalScript(Codec codec, RScript.Mode mode, String script, RScript.ReturnType returnType,
+        List<Object> keys, Object... values) {
+        if (this.statusProtocol) {
+            List<Object> res = doEval(codec, mode, toStatusScript(script), RScript.ReturnType.MAPVALUELIST,
+                keys, values);
+            return fromStatus(res, returnType);
+        }
+        return doEval(codec, mode, script, returnType, keys, values);
+    }
+
+    private <R> R doEval(Codec codec, RScript.Mode mode, String script, RScript.ReturnType returnType,
+        List<Object> keys, Object... values) {
+        if (this.scriptRegistry != null) {
+            return this.scriptRegistry.eval(codec, this.infoKey, mode, script, returnType, keys, values);
+        }
+        RedissonScript redissonScript = (RedissonScript) this.redisson.getScript(codec);
+        return redissonScript.eval(this.infoKey, mode, script, returnType, keys, values);
+    }
+
+    private <R> RFuture<R> evalAsync(Codec codec, RScript.Mode mode, String script, RScript.ReturnType returnType,
+        List<Object> keys, Object... values) {
+        if (this.writeRecords == null) {
+            return evalScriptAsync(codec, mode, script, returnType, keys, values);
+        }
+        if (mode == RScript.Mode.READ_WRITE) {
+            RFuture<R> future = evalScriptAsync(codec, mode, script, returnType, keys, values);
+            future.onComplete((res, e) -> {
+                if (e == null) {
+                    recordWrite(script);
+                }
+            });
+            return future;
+        }
+        if (!isReplicaReadable()) {
+            return evalScriptAsync(codec, RScript.Mode.READ_WRITE, script, returnType, keys, values);
+        }
+        RPromise<R> result = new RedissonPromise<>();
+        RFuture<R> future = evalScriptAsync(codec, mode, script, returnType, keys, values);
+        future.onComplete((res, e) -> {
+            if (e == null) {
+                result.trySuccess(res);
+                return;
+            }
+            if (!isReplicaMiss(e)) {
+                result.tryFailure(e);
+                return;
+            }
+            RFuture<R> retry = evalScriptAsync(codec, RScript.Mode.READ_WRITE, script, returnType, keys, values);
+            retry.onComplete((retryRes, retryError) -> {
+                if (retryError != null) {
+                    result.tryFailure(retryError);
+                } else {
+                    result.trySuccess(retryRes);
+                }
+            });
+        });
+        return result;
+    }
+
+    private <R> RFuture<R> evalScriptAsync(Codec codec, RScript.Mode mode, String script, RScript.ReturnType returnType,
+        List<Object> keys, Object... values) {
+        if (!this.statusProtocol) {
+            return doEvalAsync(codec, mode, script, returnType, keys, values);
+        }
+        RPromise<R> result = new RedissonPromise<>();
+        RFuture<List<Object>> future = doEvalAsync(codec, mode, toStatusScript(script),
+            RScript.ReturnType.MAPVALUELIST, keys, values);
+        future.onComplete((res, e) -> {
+            if (e != null) {
+                result.tryFailure(e);
+                return;
+            }
+            try {
+                result.trySuccess(fromStatus(res, returnType));
+            } catch (RuntimeException ex) {
+                result.tryFailure(ex);
+            }
+        });
+        return result;
+    }
+
+    private <R> RFuture<R> doEvalAsync(Codec codec, RScript.Mode mode, String script, RScript.ReturnType returnType,
+        List<Object> keys, Object... values) {
+        if (this.scriptRegistry != null) {
+            return this.scriptRegistry.evalAsync(codec, this.infoKey, mode, script, returnType, keys, values);
+        }
+        RedissonScript redissonScript = (RedissonScript) this.redisson.getScript(codec);
+        return redissonScript.evalAsync(this.infoKey, mode, script, returnType, keys, values);
+    }
+
+    /**
+     * <p>Complete a new future with the result of {@code future} mapped by {@code mapper}, or with
+     * the session exception converted from its failure.</p>
+     */
+    private <T, R> RFuture<R> mapAsync(RFuture<T> future, Function<T, R> mapper) {
+        RPromise<R> result = new RedissonPromise<>();
+        future.onComplete((res, e) -> {
+            if (e != null) {
+                result.tryFailure(e instanceof RedisException ? toSessionException((RedisException) e) : e);
+                return;
+            }
+            try {
+                result.trySuccess(mapper.apply(res));
+            } catch (RuntimeException ex) {
+                result.tryFailure(ex);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * <p>Unwrap the result of a status script, or throw the session exception of its status.</p>
+     */
+    @SuppressWarnings("unchecked")
+    private static <R> R fromStatus(List<Object> res, RScript.ReturnType returnType) {
+        long status = ((Number) res.get(0)).longValue();
+        if (status != STATUS_OK) {
+            RuntimeException e = toSessionException(String.valueOf(status));
+            throw e != null ? e : new IllegalStateException("Unknown session script status: " + status);
+        }
+        if (returnType == RScript.ReturnType.MAPVALUELIST || returnType == RScript.ReturnType.MULTI) {
+            return (R) res.subList(1, res.size());
+        }
+        return (R) (res.size() > 1 ? res.get(1) : null);
+    }
+
+    private void convertException(RedisException e) {
+        throw toSessionException(e);
+    }
+
+    static RuntimeException toSessionException(RedisException e) {
+        RuntimeException sessionException = toSessionException(e.getMessage());
+        return sessionException != null ? sessionException : e;
+    }
+
+    static RuntimeException toSessionException(String returnCode) {
+        if (RETURN_CODE_EXPIRED.equals(returnCode)) {
+            return new ExpiredSessionException();
+        } else if (RETURN_CODE_STOPPED.equals(returnCode)) {
+            return new StoppedSessionException();
+        } else if (RETURN_CODE_INVALID.equals(returnCode)) {
+            return new InvalidSessionException();
         } else {
-            throw e;
+            return null;
         }
     }
 
@@ -0,0 +1,227 @@
+package com.github.streamone.shiro.session;
+
+import org.redisson.client.codec.Codec;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>A map of session attributes holding values as loaded from redis, each value being decoded
+ * on first access and then kept decoded.</p>
+ * <p>
+ *  Loading all attributes of a session therefore costs no deserialization for the attributes a
+ *  request does not use. Like {@link HashMap}, it is not thread safe, and {@code null} values
+ *  are allowed.
+ * </p>
+ *
+ * @author streamone
+ */
+final class RedissonSessionAttributes extends AbstractMap<Object, Object> {
+
+    private final Map<Object, Object> values;
+
+    RedissonSessionAttributes() {
+        this.values = new HashMap<>();
+    }
+
+    private RedissonSessionAttributes(Map<Object, Object> values) {
+        this.values = new HashMap<>(values);
+    }
+
+    /**
+     * <p>Put a value which is decoded by {@code codec} when it is first read.</p>
+     *
+     * @param key the attribute key
+     * @param value the encoded attribute value, or {@code null}
+     * @param codec the codec to decode the value
+     */
+    void putEncoded(Object key, byte[] value, Codec codec) {
+        this.values.put(key, value != null ? new EncodedValue(value, codec) : null);
+    }
+
+    /**
+     * <p>Like {@link #put(Object, Object)}, without decoding the previous value.</p>
+     *
+     * @param key the attribute key
+     * @param value the attribute value, or {@code null}
+     */
+    void set(Object key, Object value) {
+        this.values.put(key, value);
+    }
+
+    /**
+     * @return a copy of this map, sharing the values which are not decoded yet
+     */
+    RedissonSessionAttributes copy() {
+        return new RedissonSessionAttributes(this.values);
+    }
+
+    /**
+     * @param keys the keys to copy, {@code null} for all keys
+     * @return a copy of the non-null values of {@code keys}, sharing the values which are not
+     *  decoded yet
+     */
+    RedissonSessionAttributes copy(Collection<Object> keys) {
+        RedissonSessionAttributes copy = new RedissonSessionAttributes();
+        for (Object key : keys != null ? keys : this.values.keySet()) {
+            Object value = this.values.get(key);
+            if (value != null) {
+                copy.values.put(key, value);
+            }
+        }
+        return copy;
+    }
+
+    @Override
+    public Object get(Object key) {
+        Object value = this.values.get(key);
+        if (value instanceof EncodedValue) {
+            value = ((EncodedValue) value).decode();
+            this.values.put(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        Object previous = get(key);
+        this.values.put(key, value);
+        return previous;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        Object previous = get(key);
+        this.values.remove(key);
+        return previous;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.values.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return this.values.size();
+    }
+
+    @Override
+    public void clear() {
+        this.values.clear();
+    }
+
+    @Override
+    public Set<Entry<Object, Object>> entrySet() {
+        return new AbstractSet<Entry<Object, Object>>() {
+            @Override
+            public Iterator<Entry<Object, Object>> iterator() {
+                Iterator<Entry<Object, Object>> iterator = values.entrySet().iterator();
+                return new Iterator<Entry<Object, Object>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<Object, Object> next() {
+                        return new DecodingEntry(iterator.next());
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.size();
+            }
+        };
+    }
+
+    /**
+     * @param key the attribute key
+     * @return {@code true} if the value of {@code key} is not {@code null}, without decoding it
+     */
+    boolean hasValue(Object key) {
+        return this.values.get(key) != null;
+    }
+
+    private static final class DecodingEntry implements Entry<Object, Object> {
+
+        private final Entry<Object, Object> entry;
+
+        private DecodingEntry(Entry<Object, Object> entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Object getKey() {
+            return this.entry.getKey();
+        }
+
+        @Override
+        public Object getValue() {
+            Object value = this.entry.getValue();
+            if (value instanceof EncodedValue) {
+                value = ((EncodedValue) value).decode();
+                this.entry.setValue(value);
+            }
+            return value;
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object previous = getValue();
+            this.entry.setValue(value);
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            Object key = getKey();
+            Object value = getValue();
+            return (key == null ? e.getKey() == null : key.equals(e.getKey()))
+                && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object key = getKey();
+            Object value = getValue();
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    private static final class EncodedValue {
+
+        private final byte[] bytes;
+        private final Codec codec;
+
+        private EncodedValue(byte[] bytes, Codec codec) {
+            this.bytes = bytes;
+            this.codec = codec;
+        }
+
+        private Object decode() {
+            return RedissonSession.decode(this.codec, this.bytes);
+        }
+    }
+}
@@ -1,63 +1,509 @@
 package com.github.streamone.shiro.session;
 
+import org.apache.shiro.session.InvalidSessionException;
 import org.apache.shiro.session.Session;
 import org.apache.shiro.session.UnknownSessionException;
+import org.apache.shiro.session.mgt.SimpleSession;
 import org.apache.shiro.session.mgt.eis.AbstractSessionDAO;
 import org.apache.shiro.session.mgt.eis.SessionDAO;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
 import org.redisson.RedissonScript;
+import org.redisson.api.BatchOptions;
+import org.redisson.api.RBatch;
+import org.redisson.api.RFuture;
+import org.redisson.api.RScoredSortedSet;
 import org.redisson.api.RScript;
 import org.redisson.api.RedissonClient;
+import org.redisson.cache.LRUCacheMap;
+import org.redisson.client.RedisException;
+import org.redisson.client.codec.ByteArrayCodec;
 import org.redisson.client.codec.Codec;
+import org.redisson.client.codec.StringCodec;
 import org.redisson.codec.JsonJacksonCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>A {@link SessionDAO} implementation backed by Redisson Objects.</p>
  *
  * @author streamone
  */
-public class RedissonSessionDao extends AbstractSessionDAO {
+public class RedissonSessionDao extends AbstractSessionDAO implements Initializable, Destroyable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedissonSessionDao.class);
 
     public static final String SESSION_INFO_KEY_PREFIX = "session:info:";
     public static final String SESSION_ATTR_KEY_PREFIX = "session:attr:";
+    public static final String DEFAULT_ACTIVE_SESSION_INDEX_KEY = "session:index";
 
     private RedissonClient redisson;
     private Codec codec = new JsonJacksonCodec();
+    private boolean snapshotEnabled = false;
+    private boolean singleHashEnabled = false;
+    private boolean legacyMigrationEnabled = false;
+    private boolean compactInfoEnabled = false;
+    private int attributeSpillThreshold = 0;
+    private boolean statusProtocolEnabled = false;
+    private boolean activeSessionIndexEnabled = false;
+    private String activeSessionIndexKey = DEFAULT_ACTIVE_SESSION_INDEX_KEY;
+    private int activeSessionPageSize = 1000;
+    private long activeSessionPurgeInterval = 60000;
+    private ScheduledFuture<?> activeSessionPurge;
+    private boolean principalIndexEnabled = false;
+    private String principalIndexKeyPrefix = RedissonPrincipalSessionIndex.DEFAULT_KEY_PREFIX;
+    private volatile RedissonPrincipalSessionIndex principalIndex;
+    private long touchInterval = 0;
+    private int touchCacheSize = 10000;
+    private Map<Serializable, Long> touchRecords;
+    private long unknownSessionCacheTimeToLive = 0;
+    private int unknownSessionCacheSize = 10000;
+    private Map<Serializable, Boolean> unknownSessionIds;
+    private boolean replicaReadEnabled = false;
+    private long replicaReadStaleness = 1000;
+    private int replicaReadCacheSize = 10000;
+    private Map<Serializable, Long> writeRecords;
+    private boolean scriptCacheEnabled = false;
+    private final ConcurrentMap<RedissonClient, RedissonSessionScriptRegistry> scriptRegistries =
+        new ConcurrentHashMap<>();
+    private Map<String, RedissonClient> shards;
+    private int shardVirtualNodes = RedissonSessionRing.DEFAULT_VIRTUAL_NODES;
+    private volatile RedissonSessionRing ring;
+    private boolean nearCacheEnabled = false;
+    private int nearCacheSize = 10000;
+    private long nearCacheMaxMemory = 64L * 1024 * 1024;
+    private long nearCacheTimeToLive = 60000;
+    private String nearCacheTopic = RedissonSessionNearCache.DEFAULT_TOPIC_NAME;
+    private volatile RedissonSessionNearCache nearCache;
+    private boolean orphanReaperEnabled = false;
+    private int orphanReaperBatchSize = 100;
+    private int orphanReaperRateLimit = 1000;
+    private long orphanReaperPassInterval = 3600000;
+    private ScheduledExecutorService maintenanceExecutor;
+    private List<RedissonSessionReaper> orphanReapers = Collections.emptyList();
+
+    /**
+     * <p>Preload the session scripts if {@link #setScriptCacheEnabled(boolean) script cache} is
+     * enabled, subscribe the {@link #setNearCacheEnabled(boolean) near cache} to its
+     * invalidation topic, and start the {@link #setOrphanReaperEnabled(boolean) orphan reaper}
+     * and the {@link #setActiveSessionPurgeInterval(long) active session index purge}.</p>
+     */
+    @Override
+    public synchronized void init() {
+        if (this.scriptCacheEnabled) {
+            for (RedissonClient redisson : getRedissonClients()) {
+                getScriptRegistry(redisson).load();
+            }
+        }
+        if (this.nearCacheEnabled) {
+            getNearCache();
+        }
+        if (this.orphanReaperEnabled && this.orphanReapers.isEmpty()) {
+            startOrphanReapers();
+        }
+        if (this.activeSessionIndexEnabled && this.activeSessionPurgeInterval > 0 && this.activeSessionPurge == null) {
+            this.activeSessionPurge = getMaintenanceExecutor().scheduleWithFixedDelay(this::purgeQuietly,
+                this.activeSessionPurgeInterval, this.activeSessionPurgeInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        RedissonSessionNearCache nearCache = this.nearCache;
+        if (nearCache != null) {
+            nearCache.shutdown();
+            this.nearCache = null;
+        }
+        for (RedissonSessionReaper reaper : this.orphanReapers) {
+            reaper.shutdown();
+        }
+        this.orphanReapers = Collections.emptyList();
+        if (this.activeSessionPurge != null) {
+            this.activeSessionPurge.cancel(false);
+            this.activeSessionPurge = null;
+        }
+        if (this.maintenanceExecutor != null) {
+            this.maintenanceExecutor.shutdown();
+            this.maintenanceExecutor = null;
+        }
+    }
+
+    /**
+     * <p>The daemon thread running the background tasks of this DAO.</p>
+     */
+    private ScheduledExecutorService getMaintenanceExecutor() {
+        if (this.maintenanceExecutor == null) {
+            this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "redisson-session-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return this.maintenanceExecutor;
+    }
 
+    private void purgeQuietly() {
+        try {
+            int removed = purgeActiveSessionIndex();
+            if (removed > 0 && logger.isDebugEnabled()) {
+                logger.debug("Purged {} expired sessions from the active session index.", removed);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed to purge the active session index.", e);
+        }
+    }
+
+    private void startOrphanReapers() {
+        //every shard is walked at its own rate
+        List<RedissonSessionReaper> reapers = new ArrayList<>();
+        for (RedissonClient redisson : getRedissonClients()) {
+            RedissonSessionReaper reaper = new RedissonSessionReaper(redisson, SESSION_ATTR_KEY_PREFIX,
+                attrKey -> getSessionInfoKey(getSessionIdByInfoKey(attrKey)), getMaintenanceExecutor());
+            reaper.setBatchSize(this.orphanReaperBatchSize);
+            reaper.setRateLimit(this.orphanReaperRateLimit);
+            reaper.setPassInterval(this.orphanReaperPassInterval);
+            reaper.start();
+            reapers.add(reaper);
+        }
+        this.orphanReapers = Collections.unmodifiableList(reapers);
+    }
+
+    /**
+     * <p>The attributes of a {@link SimpleSession}, e.g. set by
+     * {@link RedissonSessionManager#INITIAL_ATTRIBUTES_KEY}, are written with the session info and
+     * expire with it, all in one script call.</p>
+     */
     @Override
     protected Serializable doCreate(Session session) {
         Serializable sessionId = generateSessionId(session);
         assignSessionId(session, sessionId);
         String infoKey = getSessionInfoKey(sessionId.toString());
         String attrKey = getSessionAttrKey(sessionId.toString());
-        new RedissonSession(this.redisson, this.codec, infoKey, attrKey, session);
+        newSession(infoKey, attrKey, sessionId).init(session);
+        if (this.touchRecords != null) {
+            //the init script writes the start timestamp as the last access time
+            Date startTimestamp = session.getStartTimestamp();
+            this.touchRecords.put(sessionId,
+                startTimestamp != null ? startTimestamp.getTime() : System.currentTimeMillis());
+        }
+        onCreated(sessionId);
         return sessionId;
     }
 
+    /**
+     * <p>Forget that a session id was unknown once the session is written to redis, which a
+     * {@link #createDeferred(Session) deferred} session is only after its id was handed out.</p>
+     *
+     * @param sessionId the id of the session written
+     */
+    private void onCreated(Serializable sessionId) {
+        if (this.unknownSessionIds != null) {
+            this.unknownSessionIds.remove(sessionId);
+        }
+    }
+
+    /**
+     * <p>Create a session which is written to redis only when its first attribute is written, see
+     * {@link RedissonSession#defer(Session)}. Until then, the session can't be read by its id.
+     * A {@link org.apache.shiro.session.mgt.SimpleSession} holding attributes already is written
+     * right away, see {@link #create(Session)}.</p>
+     *
+     * @param session the new session, its id is assigned by this method
+     * @return the deferred session
+     */
+    public RedissonSession createDeferred(Session session) {
+        if (hasInitialAttributes(session)) {
+            return getRedissonSession(create(session));
+        }
+        Serializable sessionId = generateSessionId(session);
+        if (sessionId == null) {
+            throw new IllegalStateException("sessionId returned from generateSessionId cannot be null.");
+        }
+        assignSessionId(session, sessionId);
+        String infoKey = getSessionInfoKey(sessionId.toString());
+        String attrKey = getSessionAttrKey(sessionId.toString());
+        RedissonSession redissonSession = newSession(infoKey, attrKey, sessionId);
+        redissonSession.defer(session);
+        return redissonSession;
+    }
+
+    private static boolean hasInitialAttributes(Session session) {
+        if (!(session instanceof SimpleSession)) {
+            return false;
+        }
+        Map<Object, Object> attributes = ((SimpleSession) session).getAttributes();
+        return attributes != null && !attributes.isEmpty();
+    }
+
+    /**
+     * <p>With the {@link #setUnknownSessionCacheTimeToLive(long) unknown session cache}, ids which
+     * were not found recently are answered locally without a round trip.</p>
+     */
     @Override
     protected Session doReadSession(Serializable sessionId) {
+        if (this.unknownSessionIds == null) {
+            return readRedisSession(sessionId);
+        }
+        if (this.unknownSessionIds.containsKey(sessionId)) {
+            return null;
+        }
+        Session session = readRedisSession(sessionId);
+        if (session == null) {
+            this.unknownSessionIds.put(sessionId, Boolean.TRUE);
+        }
+        return session;
+    }
+
+    private Session readRedisSession(Serializable sessionId) {
         String infoKey = getSessionInfoKey(sessionId.toString());
         String attrKey = getSessionAttrKey(sessionId.toString());
+        long nearCacheStamp = 0;
+        if (this.nearCacheEnabled) {
+            RedissonSessionNearCache nearCache = getNearCache();
+            RedissonSessionSnapshot snapshot = nearCache.get(sessionId);
+            if (snapshot != null) {
+                RedissonSession session = newSession(infoKey, attrKey, sessionId);
+                session.setSnapshot(snapshot);
+                return session;
+            }
+            nearCacheStamp = nearCache.getStamp();
+        }
+
+        boolean loadSnapshot = this.snapshotEnabled || this.nearCacheEnabled;
+        if (this.singleHashEnabled && this.legacyMigrationEnabled) {
+            Long remainTimeToLive = migrateSession(infoKey, sessionId);
+            if (remainTimeToLive <= 0) {
+                return null;
+            }
+            if (!loadSnapshot) {
+                return newSession(infoKey, attrKey, sessionId);
+            }
+        }
+
+        if (loadSnapshot) {
+            //the snapshot script checks the existence of the session as well
+            RedissonSession session = newSession(infoKey, attrKey, sessionId);
+            try {
+                session.loadSnapshot();
+            } catch (InvalidSessionException e) {
+                //expired or stopped, unknown to the caller like a missing session
+                return null;
+            }
+            if (this.nearCacheEnabled) {
+                getNearCache().put(sessionId, session.getSnapshot(), nearCacheStamp);
+            }
+            return session;
+        }
+
         List<Object> keys = new ArrayList<>(1);
         keys.add(infoKey);
 
-        RedissonScript script = (RedissonScript) this.redisson.getScript(this.codec);
-        Long remainTimeToLive = script.eval(infoKey, RScript.Mode.READ_ONLY,
+        RedissonClient redisson = getRedisson(sessionId.toString());
+        RScript.Mode mode = isReplicaReadable(sessionId) ? RScript.Mode.READ_ONLY : RScript.Mode.READ_WRITE;
+        Long remainTimeToLive = eval(redisson, infoKey, mode,
+                RedissonSessionScript.READ_SCRIPT,
+                RScript.ReturnType.INTEGER, keys);
+        if (remainTimeToLive <= 0 && mode == RScript.Mode.READ_ONLY && this.writeRecords != null) {
+            //the session may have been created on the master only just now
+            remainTimeToLive = eval(redisson, infoKey, RScript.Mode.READ_WRITE,
                 RedissonSessionScript.READ_SCRIPT,
                 RScript.ReturnType.INTEGER, keys);
+        }
 
         if (remainTimeToLive > 0) {
-            return new RedissonSession(this.redisson, this.codec, infoKey, attrKey, sessionId);
+            return newSession(infoKey, attrKey, sessionId);
         } else {
             return null;
         }
     }
 
+    /**
+     * <p>Whether a read-only script of {@code sessionId} may go to a replica, see
+     * {@link #setReplicaReadEnabled(boolean)}. Without the replica read policy, the read mode of
+     * the redisson client decides.</p>
+     */
+    private boolean isReplicaReadable(Serializable sessionId) {
+        if (this.writeRecords == null) {
+            return true;
+        }
+        Long lastWrite = this.writeRecords.get(sessionId);
+        return lastWrite == null || System.currentTimeMillis() - lastWrite >= this.replicaReadStaleness;
+    }
+
+    /**
+     * <p>Get a session bound to {@code sessionId} without reading it from redis, e.g. to call its
+     * asynchronous methods without blocking. Every operation of the session checks whether it has
+     * expired or been stopped.</p>
+     *
+     * @param sessionId the session id
+     * @return the session
+     */
+    public RedissonSession getRedissonSession(Serializable sessionId) {
+        if (sessionId == null) {
+            throw new IllegalArgumentException("Session id must not be null!");
+        }
+        String infoKey = getSessionInfoKey(sessionId.toString());
+        String attrKey = getSessionAttrKey(sessionId.toString());
+        return newSession(infoKey, attrKey, sessionId);
+    }
+
+    private Long migrateSession(String infoKey, Serializable sessionId) {
+        List<Object> keys = new ArrayList<>(2);
+        keys.add(infoKey);
+        keys.add(getLegacySessionAttrKey(sessionId.toString()));
+
+        return eval(getRedisson(sessionId.toString()), infoKey, RScript.Mode.READ_WRITE,
+            RedissonSessionScript.MIGRATE_SCRIPT,
+            RScript.ReturnType.INTEGER, keys);
+    }
+
+    private RedissonSession newSession(String infoKey, String attrKey, Serializable sessionId) {
+        RedissonClient redisson = getRedisson(sessionId.toString());
+        RedissonSession session = new RedissonSession(redisson, this.codec, infoKey, attrKey, sessionId);
+        if (this.compactInfoEnabled) {
+            session.setInfoCodec(RedissonSessionInfoCodec.COMPACT);
+        }
+        if (this.attributeSpillThreshold > 0) {
+            session.setSpillThreshold(this.attributeSpillThreshold);
+        }
+        if (this.statusProtocolEnabled) {
+            session.setStatusProtocol(true);
+        }
+        if (this.activeSessionIndexEnabled) {
+            session.setIndexKey(this.activeSessionIndexKey);
+        }
+        if (this.touchInterval > 0) {
+            session.setTouchInterval(this.touchInterval, this.touchRecords);
+        }
+        if (this.writeRecords != null) {
+            session.setReplicaRead(this.replicaReadStaleness, this.writeRecords);
+        }
+        if (this.scriptCacheEnabled) {
+            session.setScriptRegistry(getScriptRegistry(redisson));
+        }
+        if (this.nearCacheEnabled) {
+            session.setNearCache(getNearCache());
+        }
+        if (this.principalIndexEnabled) {
+            session.setPrincipalIndex(getPrincipalIndex());
+        }
+        if (this.unknownSessionCacheTimeToLive > 0) {
+            session.setCreateListener(this::onCreated);
+        }
+        return session;
+    }
+
+    private <R> R eval(RedissonClient redisson, String key, RScript.Mode mode, String script,
+        RScript.ReturnType returnType, List<Object> keys, Object... values) {
+        return eval(redisson, this.codec, key, mode, script, returnType, keys, values);
+    }
+
+    private <R> R eval(RedissonClient redisson, Codec codec, String key, RScript.Mode mode, String script,
+        RScript.ReturnType returnType, List<Object> keys, Object... values) {
+        if (this.scriptCacheEnabled) {
+            return getScriptRegistry(redisson).eval(codec, key, mode, script, returnType, keys, values);
+        }
+        RedissonScript redissonScript = (RedissonScript) redisson.getScript(codec);
+        return redissonScript.eval(key, mode, script, returnType, keys, values);
+    }
+
+    private <R> RFuture<R> evalAsync(RedissonClient redisson, String key, RScript.Mode mode, String script,
+        RScript.ReturnType returnType, List<Object> keys, Object... values) {
+        if (this.scriptCacheEnabled) {
+            return getScriptRegistry(redisson).evalAsync(this.codec, key, mode, script, returnType, keys, values);
+        }
+        RedissonScript redissonScript = (RedissonScript) redisson.getScript(this.codec);
+        return redissonScript.evalAsync(key, mode, script, returnType, keys, values);
+    }
+
+    protected RedissonSessionScriptRegistry getScriptRegistry() {
+        return getScriptRegistry(this.redisson);
+    }
+
+    protected RedissonSessionScriptRegistry getScriptRegistry(RedissonClient redisson) {
+        return this.scriptRegistries.computeIfAbsent(redisson, RedissonSessionScriptRegistry::new);
+    }
+
+    /**
+     * @param sessionId the session id
+     * @return the client of the {@link #setShards(Map) shard} owning the session, or the only
+     *  client without shards
+     */
+    protected RedissonClient getRedisson(String sessionId) {
+        RedissonSessionRing ring = getRing();
+        return ring != null ? ring.getShard(sessionId) : this.redisson;
+    }
+
+    /**
+     * @return the clients of all {@link #setShards(Map) shards}, or the only client without shards
+     */
+    protected List<RedissonClient> getRedissonClients() {
+        RedissonSessionRing ring = getRing();
+        return ring != null ? ring.getShards() : Collections.singletonList(this.redisson);
+    }
+
+    private RedissonSessionRing getRing() {
+        if (this.ring == null && this.shards != null) {
+            synchronized (this) {
+                if (this.ring == null) {
+                    this.ring = new RedissonSessionRing(this.shards, this.shardVirtualNodes);
+                }
+            }
+        }
+        return this.ring;
+    }
+
+    private Map<RedissonClient, List<String>> groupByShard(Collection<String> sessionIds) {
+        Map<RedissonClient, List<String>> groups = new LinkedHashMap<>();
+        for (String sessionId : sessionIds) {
+            groups.computeIfAbsent(getRedisson(sessionId), redisson -> new ArrayList<>()).add(sessionId);
+        }
+        return groups;
+    }
+
+    protected RedissonSessionNearCache getNearCache() {
+        if (this.nearCache == null) {
+            synchronized (this) {
+                if (this.nearCache == null) {
+                    RedissonSessionNearCache nearCache = new RedissonSessionNearCache(this.redisson,
+                        this.nearCacheTopic, this.nearCacheSize, this.nearCacheMaxMemory, this.nearCacheTimeToLive);
+                    nearCache.start();
+                    this.nearCache = nearCache;
+                }
+            }
+        }
+        return this.nearCache;
+    }
+
+    protected RedissonPrincipalSessionIndex getPrincipalIndex() {
+        if (this.principalIndex == null) {
+            synchronized (this) {
+                if (this.principalIndex == null) {
+                    this.principalIndex = new RedissonPrincipalSessionIndex(this.redisson,
+                        this.principalIndexKeyPrefix);
+                }
+            }
+        }
+        return this.principalIndex;
+    }
+
     @Override
     public void update(Session session) throws UnknownSessionException {
         //do nothing, the RedissonSession will update the session in redis directly
@@ -69,22 +515,399 @@ public class RedissonSessionDao extends AbstractSessionDAO {
             return;
         }
         Serializable sessionId = session.getId();
-        String infoKey = getSessionInfoKey(sessionId.toString());
-        String attrKey = getSessionAttrKey(sessionId.toString());
-        List<Object> keys = new ArrayList<>(2);
-        keys.add(infoKey);
-        keys.add(attrKey);
+        if (session instanceof RedissonSession && ((RedissonSession) session).isDeferred()) {
+            //never written to redis
+            return;
+        }
+        List<Object> keys = getDeleteKeys(sessionId);
+        String infoKey = (String) keys.get(0);
+        RedissonClient redisson = getRedisson(sessionId.toString());
+        if (this.principalIndexEnabled) {
+            Object principals = eval(redisson, infoKey, RScript.Mode.READ_WRITE,
+                RedissonSessionScript.DELETE_SCRIPT,
+                RScript.ReturnType.MAPVALUE, keys, DefaultSubjectContext.PRINCIPALS_SESSION_KEY);
+            if (principals != null) {
+                getPrincipalIndex().remove(principals, sessionId);
+            }
+        } else {
+            eval(redisson, infoKey, RScript.Mode.READ_WRITE,
+                RedissonSessionScript.DELETE_SCRIPT,
+                RScript.ReturnType.VALUE, keys);
+        }
+
+        evictLocally(sessionId);
+    }
+
+    /**
+     * <p>Stop and delete a session in one round trip, e.g. on logout, instead of
+     * {@link Session#stop()} followed by {@link #delete(Session)}. The session is deleted even
+     * if it has expired or has been stopped before, like by a stop followed by a delete.</p>
+     *
+     * @param session the session to stop, buffered writes of a {@link RedissonSession} are dropped
+     * @throws org.apache.shiro.session.InvalidSessionException if the session had expired or had
+     *  been stopped
+     */
+    public void stopAndDelete(Session session) {
+        if (session == null || session.getId() == null) {
+            throw new IllegalArgumentException("Session id must not be null!");
+        }
+        Serializable sessionId = session.getId();
+        if (session instanceof RedissonSession && ((RedissonSession) session).isDeferred()) {
+            //never written to redis
+            session.stop();
+            return;
+        }
+
+        List<Object> keys = getDeleteKeys(sessionId);
+        String infoKey = (String) keys.get(0);
+        Object[] args = this.principalIndexEnabled ?
+            new Object[]{DefaultSubjectContext.PRINCIPALS_SESSION_KEY} : new Object[0];
+        List<Object> res = eval(getRedisson(sessionId.toString()), infoKey, RScript.Mode.READ_WRITE,
+            RedissonSessionScript.STOP_DELETE_SCRIPT, RScript.ReturnType.MULTI, keys, args);
+
+        Object principals = res.size() > 1 ? res.get(1) : null;
+        if (principals != null) {
+            getPrincipalIndex().remove(principals, sessionId);
+        }
+        evictLocally(sessionId);
+        if (session instanceof RedissonSession) {
+            ((RedissonSession) session).onStopped(new Date());
+        }
+
+        long status = ((Number) res.get(0)).longValue();
+        if (status != RedissonSessionScript.STATUS_OK) {
+            throw RedissonSession.toSessionException(String.valueOf(status));
+        }
+    }
+
+    private List<Object> getDeleteKeys(Serializable sessionId) {
+        List<Object> keys = new ArrayList<>(3);
+        keys.add(getSessionInfoKey(sessionId.toString()));
+        keys.add(getSessionAttrKey(sessionId.toString()));
+        if (this.activeSessionIndexEnabled) {
+            keys.add(this.activeSessionIndexKey);
+        }
+        return keys;
+    }
+
+    /**
+     * <p>Move a session to a new id, e.g. after login to prevent session fixation. The session
+     * keeps its attributes and its remaining time to live.</p>
+     * <p>
+     *  Both keys are renamed by one script. In redis cluster, where the keys of the new id are in
+     *  another slot, or when the new id belongs to another {@link #setShards(Map) shard}, the
+     *  session is copied by DUMP and RESTORE, then deleted, so both ids exist for one round trip.
+     *  The new id replaces the old one in the active session index either way.
+     * </p>
+     *
+     * @param session the session to move, buffered writes of a {@link RedissonSession} must have
+     *                been flushed
+     * @return the session under its new id
+     * @throws org.apache.shiro.session.InvalidSessionException if the session has expired or has
+     *  been stopped
+     */
+    public RedissonSession changeSessionId(Session session) {
+        if (session == null || session.getId() == null) {
+            throw new IllegalArgumentException("Session id must not be null!");
+        }
+        Serializable oldId = session.getId();
+        Serializable newId = generateSessionId(session);
+        if (newId == null) {
+            throw new IllegalStateException("sessionId returned from generateSessionId cannot be null.");
+        }
+        String newInfoKey = getSessionInfoKey(newId.toString());
+        String newAttrKey = getSessionAttrKey(newId.toString());
+        RedissonSession renamed = newSession(newInfoKey, newAttrKey, newId);
+        if (session instanceof RedissonSession && ((RedissonSession) session).isDeferred()) {
+            //not in redis yet
+            renamed.defer(session);
+            return renamed;
+        }
+
+        String oldInfoKey = getSessionInfoKey(oldId.toString());
+        String oldAttrKey = getSessionAttrKey(oldId.toString());
+        byte[] encodedId = RedissonSession.encode(getInfoCodec(), newId);
+        RedissonClient oldRedisson = getRedisson(oldId.toString());
+        RedissonClient newRedisson = getRedisson(newId.toString());
+        try {
+            if (oldRedisson != newRedisson || oldRedisson.getConfig().isClusterConfig()) {
+                copySession(oldRedisson, oldInfoKey, oldAttrKey, newRedisson, newInfoKey, newAttrKey, encodedId);
+            } else {
+                List<Object> keys = new ArrayList<>(5);
+                keys.add(oldInfoKey);
+                keys.add(oldAttrKey);
+                keys.add(newInfoKey);
+                keys.add(newAttrKey);
+                if (this.activeSessionIndexEnabled) {
+                    keys.add(this.activeSessionIndexKey);
+                }
+                eval(oldRedisson, ByteArrayCodec.INSTANCE, oldInfoKey, RScript.Mode.READ_WRITE,
+                    RedissonSessionScript.RENAME_SCRIPT, RScript.ReturnType.VALUE, keys, encodedId);
+            }
+        } catch (RedisException e) {
+            throw RedissonSession.toSessionException(e);
+        }
+
+        Long lastTouch = this.touchRecords != null ? this.touchRecords.get(oldId) : null;
+        evictLocally(oldId);
+        if (lastTouch != null) {
+            this.touchRecords.put(newId, lastTouch);
+        }
+        if (this.writeRecords != null) {
+            this.writeRecords.put(newId, System.currentTimeMillis());
+        }
+        if (this.principalIndexEnabled) {
+            Object principals = renamed.getAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY);
+            if (principals != null) {
+                getPrincipalIndex().remove(principals, oldId);
+                getPrincipalIndex().add(principals, newId);
+            }
+        }
+        return renamed;
+    }
+
+    private void copySession(RedissonClient oldRedisson, String oldInfoKey, String oldAttrKey,
+        RedissonClient newRedisson, String newInfoKey, String newAttrKey, byte[] encodedId) {
+        List<Object> oldKeys = new ArrayList<>(3);
+        oldKeys.add(oldInfoKey);
+        oldKeys.add(oldAttrKey);
+        //read from the master the keys are deleted from, a replica may miss the latest writes
+        List<Object> dump = eval(oldRedisson, ByteArrayCodec.INSTANCE, oldInfoKey, RScript.Mode.READ_WRITE,
+            RedissonSessionScript.DUMP_SESSION_SCRIPT, RScript.ReturnType.MULTI, oldKeys);
 
-        RedissonScript script = (RedissonScript) this.redisson.getScript(this.codec);
-        script.eval(infoKey, RScript.Mode.READ_WRITE,
-            RedissonSessionScript.DELETE_SCRIPT,
-            RScript.ReturnType.VALUE, keys);
+        List<Object> newKeys = new ArrayList<>(3);
+        newKeys.add(newInfoKey);
+        newKeys.add(newAttrKey);
+        if (this.activeSessionIndexEnabled) {
+            newKeys.add(this.activeSessionIndexKey);
+        }
+        List<Object> args = new ArrayList<>(dump.size() + 2);
+        args.add(toArg(dump.get(0)));
+        args.add(dump.get(1));
+        args.add(toArg(dump.get(2)));
+        args.add(dump.get(3));
+        args.add(encodedId);
+        //scored by the expiry time on the clock of this node, as by the touch script
+        args.add(toArg(System.currentTimeMillis() + toLong(dump.get(0))));
+        //field, time to live and dump of each side key
+        for (int i = 4; i + 2 < dump.size(); i += 3) {
+            args.add(dump.get(i));
+            args.add(toArg(dump.get(i + 1)));
+            args.add(dump.get(i + 2));
+        }
+        eval(newRedisson, ByteArrayCodec.INSTANCE, newInfoKey, RScript.Mode.READ_WRITE,
+            RedissonSessionScript.RESTORE_SESSION_SCRIPT, RScript.ReturnType.VALUE, newKeys, args.toArray());
+
+        if (this.activeSessionIndexEnabled) {
+            oldKeys.add(this.activeSessionIndexKey);
+        }
+        eval(oldRedisson, oldInfoKey, RScript.Mode.READ_WRITE,
+            RedissonSessionScript.DELETE_SCRIPT, RScript.ReturnType.VALUE, oldKeys);
+    }
+
+    private static long toLong(Object number) {
+        if (number instanceof byte[]) {
+            return Long.parseLong(new String((byte[]) number, StandardCharsets.UTF_8));
+        }
+        return ((Number) number).longValue();
+    }
+
+    private static byte[] toArg(Object number) {
+        if (number instanceof byte[]) {
+            return (byte[]) number;
+        }
+        return String.valueOf(number).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Codec getInfoCodec() {
+        return this.compactInfoEnabled ? RedissonSessionInfoCodec.COMPACT : RedissonSessionInfoCodec.JSON;
+    }
+
+    private void evictLocally(Serializable sessionId) {
+        if (this.touchRecords != null) {
+            this.touchRecords.remove(sessionId);
+        }
+        if (this.unknownSessionIds != null) {
+            this.unknownSessionIds.put(sessionId, Boolean.TRUE);
+        }
+        if (this.writeRecords != null) {
+            this.writeRecords.put(sessionId, System.currentTimeMillis());
+        }
+        if (this.nearCacheEnabled) {
+            getNearCache().invalidate(sessionId);
+        }
     }
 
+    /**
+     * <p>Get the ids of the sessions of a principal from the {@link #setPrincipalIndexEnabled(boolean)
+     * principal index}. Ids of sessions expired by redis are removed from the index meanwhile.</p>
+     *
+     * @param principal a principal, or a {@link org.apache.shiro.subject.PrincipalCollection}
+     * @return the ids of the live sessions of {@code principal}, empty if the index is not enabled
+     */
+    public Collection<String> getPrincipalSessionIds(Object principal) {
+        if (!this.principalIndexEnabled) {
+            return Collections.emptyList();
+        }
+        RedissonPrincipalSessionIndex principalIndex = getPrincipalIndex();
+        Collection<String> sessionIds = principalIndex.getSessionIds(principal);
+        if (sessionIds.isEmpty()) {
+            return sessionIds;
+        }
+
+        List<String> liveIds = new ArrayList<>(sessionIds.size());
+        List<String> staleIds = new ArrayList<>();
+        for (Map.Entry<RedissonClient, List<String>> shard : groupByShard(sessionIds).entrySet()) {
+            RBatch batch = shard.getKey().createBatch(BatchOptions.defaults());
+            List<RFuture<Boolean>> exists = new ArrayList<>(shard.getValue().size());
+            for (String sessionId : shard.getValue()) {
+                exists.add(batch.getBucket(getSessionInfoKey(sessionId)).isExistsAsync());
+            }
+            batch.execute();
+
+            int i = 0;
+            for (String sessionId : shard.getValue()) {
+                if (Boolean.TRUE.equals(exists.get(i++).getNow())) {
+                    liveIds.add(sessionId);
+                } else {
+                    staleIds.add(sessionId);
+                }
+            }
+        }
+        principalIndex.removeAll(principal, staleIds);
+        return liveIds;
+    }
+
+    /**
+     * @param principal a principal, or a {@link org.apache.shiro.subject.PrincipalCollection}
+     * @return the live sessions of {@code principal}, empty if the principal index is not enabled
+     */
+    public Collection<Session> getPrincipalSessions(Object principal) {
+        Collection<String> sessionIds = getPrincipalSessionIds(principal);
+        List<Session> sessions = new ArrayList<>(sessionIds.size());
+        for (String sessionId : sessionIds) {
+            sessions.add(getRedissonSession(sessionId));
+        }
+        return sessions;
+    }
+
+    /**
+     * @param principal a principal, or a {@link org.apache.shiro.subject.PrincipalCollection}
+     * @return the number of live sessions of {@code principal}, or -1 if the principal index is
+     *  not enabled
+     */
+    public int getPrincipalSessionCount(Object principal) {
+        if (!this.principalIndexEnabled) {
+            return -1;
+        }
+        return getPrincipalSessionIds(principal).size();
+    }
+
+    /**
+     * <p>Delete all sessions of a principal, e.g. to log a user out everywhere. The index of the
+     * principal is removed first, then the sessions are deleted in one batch.</p>
+     *
+     * @param principal a principal, or a {@link org.apache.shiro.subject.PrincipalCollection}
+     * @return the number of sessions in the index of {@code principal}, including expired ones,
+     *  or -1 if the principal index is not enabled
+     */
+    public int invalidatePrincipalSessions(Object principal) {
+        if (!this.principalIndexEnabled) {
+            return -1;
+        }
+        Collection<String> sessionIds = getPrincipalIndex().takeSessionIds(principal);
+        if (sessionIds.isEmpty()) {
+            return 0;
+        }
+
+        //the deletes are all sent before any is awaited
+        List<RFuture<Object>> deletes = new ArrayList<>(sessionIds.size());
+        for (Map.Entry<RedissonClient, List<String>> shard : groupByShard(sessionIds).entrySet()) {
+            for (String sessionId : shard.getValue()) {
+                List<Object> keys = getDeleteKeys(sessionId);
+                deletes.add(evalAsync(shard.getKey(), (String) keys.get(0), RScript.Mode.READ_WRITE,
+                    RedissonSessionScript.DELETE_SCRIPT, RScript.ReturnType.VALUE, keys));
+            }
+        }
+        for (RFuture<Object> delete : deletes) {
+            delete.syncUninterruptibly();
+        }
+
+        for (String sessionId : sessionIds) {
+            evictLocally(sessionId);
+        }
+        return sessionIds.size();
+    }
+
+    /**
+     * <p>Without the {@link #setActiveSessionIndexEnabled(boolean) active session index}, this
+     * method returns an empty collection for performance reasons. With the index, it returns a
+     * lazy view reading the index page by page, see {@link RedissonActiveSessions}. With
+     * {@link #setShards(Map) shards}, each shard holds the index of its sessions, and the view
+     * reads them one after another.</p>
+     */
     @Override
     public Collection<Session> getActiveSessions() {
-        //for performance reasons, this method should not be called
-        return Collections.EMPTY_LIST;
+        if (!this.activeSessionIndexEnabled) {
+            return Collections.EMPTY_LIST;
+        }
+        return new RedissonActiveSessions(getActiveSessionIndexes(), this.activeSessionPageSize, infoKey -> {
+            String sessionId = getSessionIdByInfoKey(infoKey);
+            return newSession(infoKey, getSessionAttrKey(sessionId), sessionId);
+        });
+    }
+
+    /**
+     * @return the number of sessions in the active session index whose expiry time has not passed,
+     *  or -1 if the index is not enabled
+     */
+    public int getActiveSessionCount() {
+        if (!this.activeSessionIndexEnabled) {
+            return -1;
+        }
+        return getActiveSessions().size();
+    }
+
+    /**
+     * <p>Remove the sessions whose expiry time has passed from the active session index at once.
+     * Sessions expired by redis are not removed from the index by themselves, but by this method
+     * run every {@link #setActiveSessionPurgeInterval(long) activeSessionPurgeInterval}.</p>
+     *
+     * @return the number of removed sessions
+     */
+    public int purgeActiveSessionIndex() {
+        if (!this.activeSessionIndexEnabled) {
+            return 0;
+        }
+        int removed = 0;
+        for (RScoredSortedSet<String> index : getActiveSessionIndexes()) {
+            removed += index.removeRangeByScore(Double.NEGATIVE_INFINITY, true,
+                System.currentTimeMillis(), false);
+        }
+        return removed;
+    }
+
+    private List<RScoredSortedSet<String>> getActiveSessionIndexes() {
+        List<RScoredSortedSet<String>> indexes = new ArrayList<>();
+        for (RedissonClient redisson : getRedissonClients()) {
+            indexes.add(redisson.getScoredSortedSet(this.activeSessionIndexKey, StringCodec.INSTANCE));
+        }
+        return indexes;
+    }
+
+    /**
+     * <p>Inverse of {@link #getSessionInfoKey(String)}.</p>
+     *
+     * @param infoKey the key name of the session info
+     * @return the session id
+     */
+    protected String getSessionIdByInfoKey(String infoKey) {
+        int start = infoKey.indexOf('{');
+        int end = infoKey.lastIndexOf('}');
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("Illegal session info key: " + infoKey);
+        }
+        return infoKey.substring(start + 1, end);
     }
 
     /**
@@ -111,11 +934,19 @@ public class RedissonSessionDao extends AbstractSessionDAO {
      *  same hash slot.
      *  <a href="https://redis.io/topics/cluster-spec#keys-hash-tags">https://redis.io/topics/cluster-spec#keys-hash-tags</a>
      * </p>
+     * <p>With the single hash layout, attributes are stored in the info hash.</p>
      *
      * @param sessionId the session id
      * @return key name
      */
     protected String getSessionAttrKey(String sessionId) {
+        if (this.singleHashEnabled) {
+            return getSessionInfoKey(sessionId);
+        }
+        return getLegacySessionAttrKey(sessionId);
+    }
+
+    private String getLegacySessionAttrKey(String sessionId) {
         StringBuilder name = new StringBuilder(SESSION_ATTR_KEY_PREFIX);
         name.append("{").append(sessionId).append("}");
         return name.toString();
@@ -127,6 +958,46 @@ public class RedissonSessionDao extends AbstractSessionDAO {
 
     public void setRedisson(RedissonClient redisson) {
         this.redisson = redisson;
+        this.scriptRegistries.clear();
+        this.principalIndex = null;
+    }
+
+    public Map<String, RedissonClient> getShards() {
+        return shards;
+    }
+
+    /**
+     * <p>Spread sessions over independent redis instances, each session id being routed to its
+     * shard by a consistent hash ring, see {@link RedissonSessionRing}. Every script of a session
+     * runs on its shard. Adding or removing a shard moves about {@code 1/n} of the sessions, which
+     * are lost, so shard names must stay stable.</p>
+     * <p>
+     *  Keys shared by all sessions, the principal index and the near cache topic, stay on
+     *  {@link #setRedisson(RedissonClient)}, which defaults to the first shard. Each shard holds
+     *  the active session index of its own sessions.
+     * </p>
+     *
+     * @param shards redisson clients by their stable shard names, {@code null} to disable sharding
+     */
+    public void setShards(Map<String, RedissonClient> shards) {
+        this.shards = shards;
+        this.ring = null;
+        if (shards != null && !shards.isEmpty() && this.redisson == null) {
+            this.redisson = shards.values().iterator().next();
+        }
+    }
+
+    public int getShardVirtualNodes() {
+        return shardVirtualNodes;
+    }
+
+    /**
+     * @param shardVirtualNodes the number of points of each shard on the hash ring, more points
+     *                          spread sessions more evenly
+     */
+    public void setShardVirtualNodes(int shardVirtualNodes) {
+        this.shardVirtualNodes = shardVirtualNodes;
+        this.ring = null;
     }
 
     public Codec getCodec() {
@@ -136,4 +1007,448 @@ public class RedissonSessionDao extends AbstractSessionDAO {
     public void setCodec(Codec codec) {
         this.codec = codec;
     }
-}
\ No newline at end of file
+
+    public boolean isSnapshotEnabled() {
+        return snapshotEnabled;
+    }
+
+    /**
+     * <p>If enabled, reading a session loads its info and all attributes in one round trip,
+     * and the returned session serves reads from that snapshot.</p>
+     *
+     * @param snapshotEnabled whether to load a snapshot when reading a session
+     */
+    public void setSnapshotEnabled(boolean snapshotEnabled) {
+        this.snapshotEnabled = snapshotEnabled;
+    }
+
+    public boolean isScriptCacheEnabled() {
+        return scriptCacheEnabled;
+    }
+
+    /**
+     * <p>If enabled, session scripts are loaded by {@link #init()} and run with EVALSHA, so the
+     * script text is not sent with every operation.</p>
+     *
+     * @param scriptCacheEnabled whether to run session scripts by their digests
+     */
+    public void setScriptCacheEnabled(boolean scriptCacheEnabled) {
+        this.scriptCacheEnabled = scriptCacheEnabled;
+    }
+
+    public boolean isSingleHashEnabled() {
+        return singleHashEnabled;
+    }
+
+    /**
+     * <p>If enabled, the info and the attributes of a session are stored in one hash, attribute
+     * fields being prefixed by {@link RedissonSessionScript#ATTR_FIELD_PREFIX}. This halves the
+     * keys and the PEXPIRE calls per session.</p>
+     *
+     * @param singleHashEnabled whether to store a session in a single hash
+     */
+    public void setSingleHashEnabled(boolean singleHashEnabled) {
+        this.singleHashEnabled = singleHashEnabled;
+    }
+
+    public boolean isLegacyMigrationEnabled() {
+        return legacyMigrationEnabled;
+    }
+
+    /**
+     * <p>If enabled together with the single hash layout, reading a session moves the attributes
+     * stored in the two-key layout into the single hash. It can be disabled once all sessions
+     * created before switching the layout have expired.</p>
+     *
+     * @param legacyMigrationEnabled whether to migrate sessions of the two-key layout on read
+     */
+    public void setLegacyMigrationEnabled(boolean legacyMigrationEnabled) {
+        this.legacyMigrationEnabled = legacyMigrationEnabled;
+    }
+
+    public boolean isCompactInfoEnabled() {
+        return compactInfoEnabled;
+    }
+
+    /**
+     * <p>If enabled, the session info hash is written with {@link RedissonSessionInfoCodec#COMPACT},
+     * storing timestamps and the timeout as plain numbers instead of typed json. Sessions written in
+     * either format are readable in both modes, so the option can be switched on a running
+     * cluster.</p>
+     *
+     * @param compactInfoEnabled whether to store the session info in the compact format
+     */
+    public void setCompactInfoEnabled(boolean compactInfoEnabled) {
+        this.compactInfoEnabled = compactInfoEnabled;
+    }
+
+    public int getAttributeSpillThreshold() {
+        return attributeSpillThreshold;
+    }
+
+    /**
+     * <p>Store attribute values whose encoded length exceeds the threshold in side keys with the
+     * time to live of the session, the attribute hash holding only a pointer. Redis keeps a hash
+     * in its compact listpack encoding only while all values are within
+     * {@code hash-max-listpack-value} (64 bytes by default), so one large attribute would
+     * otherwise convert the whole hash to a hashtable. Set it to that limit to keep the hashes
+     * compact; spilled values cost an extra key each.</p>
+     * <p>Values are resolved whether or not the option is enabled, so it can be switched on a
+     * running cluster.</p>
+     *
+     * @param attributeSpillThreshold the length in bytes from which values are spilled, 0 to
+     *                                disable spilling
+     */
+    public void setAttributeSpillThreshold(int attributeSpillThreshold) {
+        this.attributeSpillThreshold = attributeSpillThreshold;
+    }
+
+    public boolean isStatusProtocolEnabled() {
+        return statusProtocolEnabled;
+    }
+
+    /**
+     * <p>If enabled, session scripts return an expired, stopped or invalid session as a status
+     * code instead of an error reply, so only the final {@link
+     * org.apache.shiro.session.InvalidSessionException} is created, rather than a redis exception
+     * with its stack trace first. This saves allocations when many sessions expire at once. Both
+     * protocols use separate scripts, so the option can differ between nodes.</p>
+     *
+     * @param statusProtocolEnabled whether to use the status script protocol
+     */
+    public void setStatusProtocolEnabled(boolean statusProtocolEnabled) {
+        this.statusProtocolEnabled = statusProtocolEnabled;
+    }
+
+    public boolean isActiveSessionIndexEnabled() {
+        return activeSessionIndexEnabled;
+    }
+
+    /**
+     * <p>If enabled, the session scripts maintain a sorted set of sessions scored by their expiry
+     * time, so {@link #getActiveSessions()} can page through the active sessions and count them
+     * in O(log n). Sessions created before enabling it are indexed on their next touch. Expired
+     * sessions are purged periodically once {@link #init()} is called, see
+     * {@link #setActiveSessionPurgeInterval(long)}.</p>
+     * <p>The index is a single key, so it is not supported with redis cluster.</p>
+     *
+     * @param activeSessionIndexEnabled whether to maintain the active session index
+     */
+    public void setActiveSessionIndexEnabled(boolean activeSessionIndexEnabled) {
+        this.activeSessionIndexEnabled = activeSessionIndexEnabled;
+    }
+
+    public String getActiveSessionIndexKey() {
+        return activeSessionIndexKey;
+    }
+
+    /**
+     * @param activeSessionIndexKey the key name of the active session index
+     */
+    public void setActiveSessionIndexKey(String activeSessionIndexKey) {
+        this.activeSessionIndexKey = activeSessionIndexKey;
+    }
+
+    public boolean isPrincipalIndexEnabled() {
+        return principalIndexEnabled;
+    }
+
+    /**
+     * <p>If enabled, sessions are indexed by the primary principal stored in them, so the
+     * sessions of a principal can be listed and invalidated, see
+     * {@link #invalidatePrincipalSessions(Object)}.</p>
+     * <p>
+     *  The index of a principal is a set hash tagged by the principal, updated after the
+     *  principals of a session are written, so it works with redis cluster but is not updated
+     *  atomically with the session. Ids of expired sessions are pruned when the index is read.
+     *  Sessions logged in before enabling it are not indexed.
+     * </p>
+     * <p>
+     *  Principals are indexed by the {@code toString()} of the primary principal, which must be
+     *  stable, e.g. a user name. Override {@link #getPrincipalIndex()} with a
+     *  {@link RedissonPrincipalSessionIndex} resolving another name for other principal types.
+     * </p>
+     *
+     * @param principalIndexEnabled whether to maintain the principal index
+     */
+    public void setPrincipalIndexEnabled(boolean principalIndexEnabled) {
+        this.principalIndexEnabled = principalIndexEnabled;
+    }
+
+    public String getPrincipalIndexKeyPrefix() {
+        return principalIndexKeyPrefix;
+    }
+
+    /**
+     * @param principalIndexKeyPrefix the prefix of the key names of the principal index
+     */
+    public void setPrincipalIndexKeyPrefix(String principalIndexKeyPrefix) {
+        this.principalIndexKeyPrefix = principalIndexKeyPrefix;
+        this.principalIndex = null;
+    }
+
+    public long getActiveSessionPurgeInterval() {
+        return activeSessionPurgeInterval;
+    }
+
+    /**
+     * <p>Set how often {@link #init()} schedules {@link #purgeActiveSessionIndex()} on a daemon
+     * thread, so the index does not keep growing with sessions expired by redis. Each run costs
+     * one ZREMRANGEBYSCORE per shard, and running it on several nodes is harmless.</p>
+     *
+     * @param activeSessionPurgeInterval the interval in milliseconds between two purges of the
+     *                                   active session index, 0 to purge only on demand
+     */
+    public void setActiveSessionPurgeInterval(long activeSessionPurgeInterval) {
+        this.activeSessionPurgeInterval = activeSessionPurgeInterval;
+    }
+
+    public int getActiveSessionPageSize() {
+        return activeSessionPageSize;
+    }
+
+    /**
+     * @param activeSessionPageSize the number of sessions read from the index per round trip
+     */
+    public void setActiveSessionPageSize(int activeSessionPageSize) {
+        this.activeSessionPageSize = activeSessionPageSize;
+    }
+
+    public long getTouchInterval() {
+        return touchInterval;
+    }
+
+    /**
+     * <p>Set the touch granularity in milliseconds. A touch is skipped if the last access time
+     * known by this node is less than {@code touchInterval} ago, so the idle timeout of a session
+     * becomes accurate to {@code touchInterval}. Expiry is still maintained by redis.</p>
+     * <p>A skipped touch still throws on an expired or stopped session. It checks a loaded
+     * snapshot, or runs a read-only script instead of the write.</p>
+     *
+     * @param touchInterval the minimum interval between two touches of a session, 0 to disable
+     */
+    public void setTouchInterval(long touchInterval) {
+        this.touchInterval = touchInterval;
+        this.touchRecords = touchInterval > 0 ?
+            new LRUCacheMap<Serializable, Long>(this.touchCacheSize, touchInterval, 0) : null;
+    }
+
+    public int getTouchCacheSize() {
+        return touchCacheSize;
+    }
+
+    /**
+     * @param touchCacheSize the maximum number of sessions whose last access time is kept locally
+     */
+    public void setTouchCacheSize(int touchCacheSize) {
+        this.touchCacheSize = touchCacheSize;
+        setTouchInterval(this.touchInterval);
+    }
+
+    public long getUnknownSessionCacheTimeToLive() {
+        return unknownSessionCacheTimeToLive;
+    }
+
+    /**
+     * <p>Remember the ids of sessions which were not found or were deleted by this node for
+     * {@code unknownSessionCacheTimeToLive} milliseconds, so repeated lookups of stale or forged
+     * ids, e.g. replayed cookies, are answered without a round trip.</p>
+     * <p>
+     *  The id of a {@link #createDeferred(Session) deferred} session, or of one whose id was
+     *  {@link #changeSessionId(Session) changed} before it was written, is valid before the
+     *  session is in redis, so a concurrent lookup caches it as unknown. Writing the session
+     *  removes it from the cache of this node, but other nodes answer it as unknown until their
+     *  entry expires, so keep the time to live short, e.g. a few seconds, when combining both.
+     *  The cache is local to the node: ids deleted by other nodes are cached on their first lookup
+     *  here.
+     * </p>
+     *
+     * @param unknownSessionCacheTimeToLive how long an unknown session id is cached, 0 to disable
+     */
+    public void setUnknownSessionCacheTimeToLive(long unknownSessionCacheTimeToLive) {
+        this.unknownSessionCacheTimeToLive = unknownSessionCacheTimeToLive;
+        this.unknownSessionIds = unknownSessionCacheTimeToLive > 0 ?
+            new LRUCacheMap<Serializable, Boolean>(this.unknownSessionCacheSize, unknownSessionCacheTimeToLive, 0) : null;
+    }
+
+    public int getUnknownSessionCacheSize() {
+        return unknownSessionCacheSize;
+    }
+
+    /**
+     * @param unknownSessionCacheSize the maximum number of unknown session ids cached locally
+     */
+    public void setUnknownSessionCacheSize(int unknownSessionCacheSize) {
+        this.unknownSessionCacheSize = unknownSessionCacheSize;
+        setUnknownSessionCacheTimeToLive(this.unknownSessionCacheTimeToLive);
+    }
+
+    public boolean isReplicaReadEnabled() {
+        return replicaReadEnabled;
+    }
+
+    /**
+     * <p>If enabled, read-only session scripts, e.g. of {@link RedissonSession#getAttribute(Object)}
+     * or {@link #readSession(Serializable)}, may be served by replicas, while writes and touches
+     * always go to the master. Redisson routes read-only scripts by the read mode of the client,
+     * so it must be configured to read from slaves, e.g. {@code readMode: "SLAVE"}.</p>
+     * <p>
+     *  Replication is asynchronous, so reads of a session written by this node less than
+     *  {@link #setReplicaReadStaleness(long) replicaReadStaleness} ago stay on the master. A read
+     *  which finds no session on a replica is repeated on the master, while absent attributes
+     *  are answered by the replica. Writes by other nodes within the replication lag may still
+     *  be read stale, e.g. an attribute set by another node reads as {@code null} until it is
+     *  replicated.
+     * </p>
+     *
+     * @param replicaReadEnabled whether to guard reads from replicas against staleness
+     */
+    public void setReplicaReadEnabled(boolean replicaReadEnabled) {
+        this.replicaReadEnabled = replicaReadEnabled;
+        this.writeRecords = replicaReadEnabled ?
+            new LRUCacheMap<Serializable, Long>(this.replicaReadCacheSize, this.replicaReadStaleness, 0) : null;
+    }
+
+    public long getReplicaReadStaleness() {
+        return replicaReadStaleness;
+    }
+
+    /**
+     * @param replicaReadStaleness how long in milliseconds after a write of this node the reads of
+     *                             a session stay on the master, above the usual replication lag
+     */
+    public void setReplicaReadStaleness(long replicaReadStaleness) {
+        this.replicaReadStaleness = replicaReadStaleness;
+        setReplicaReadEnabled(this.replicaReadEnabled);
+    }
+
+    public int getReplicaReadCacheSize() {
+        return replicaReadCacheSize;
+    }
+
+    /**
+     * @param replicaReadCacheSize the maximum number of sessions whose last write time is kept locally
+     */
+    public void setReplicaReadCacheSize(int replicaReadCacheSize) {
+        this.replicaReadCacheSize = replicaReadCacheSize;
+        setReplicaReadEnabled(this.replicaReadEnabled);
+    }
+
+    public boolean isOrphanReaperEnabled() {
+        return orphanReaperEnabled;
+    }
+
+    /**
+     * <p>If enabled, {@link #init()} starts a {@link RedissonSessionReaper} per shard on a daemon
+     * thread, deleting attribute hashes which outlived their session and giving attribute
+     * hashes without a time to live the one of their session. Running it on one node is
+     * enough. Spill keys of {@link #setAttributeSpillThreshold(int) spilled} values are not
+     * scanned, they expire by their own time to live.</p>
+     *
+     * @param orphanReaperEnabled whether to reap orphaned attribute keys in the background
+     */
+    public void setOrphanReaperEnabled(boolean orphanReaperEnabled) {
+        this.orphanReaperEnabled = orphanReaperEnabled;
+    }
+
+    public int getOrphanReaperBatchSize() {
+        return orphanReaperBatchSize;
+    }
+
+    /**
+     * @param orphanReaperBatchSize the number of attribute keys scanned and checked per round trip
+     */
+    public void setOrphanReaperBatchSize(int orphanReaperBatchSize) {
+        this.orphanReaperBatchSize = orphanReaperBatchSize;
+    }
+
+    public int getOrphanReaperRateLimit() {
+        return orphanReaperRateLimit;
+    }
+
+    /**
+     * @param orphanReaperRateLimit the maximum number of attribute keys checked per second and shard
+     */
+    public void setOrphanReaperRateLimit(int orphanReaperRateLimit) {
+        this.orphanReaperRateLimit = orphanReaperRateLimit;
+    }
+
+    public long getOrphanReaperPassInterval() {
+        return orphanReaperPassInterval;
+    }
+
+    /**
+     * @param orphanReaperPassInterval the pause in milliseconds between two passes over all attribute keys
+     */
+    public void setOrphanReaperPassInterval(long orphanReaperPassInterval) {
+        this.orphanReaperPassInterval = orphanReaperPassInterval;
+    }
+
+    /**
+     * @return the running reapers, one per shard, e.g. to report their progress counters
+     */
+    public List<RedissonSessionReaper> getOrphanReapers() {
+        return orphanReapers;
+    }
+
+    public boolean isNearCacheEnabled() {
+        return nearCacheEnabled;
+    }
+
+    /**
+     * <p>If enabled, complete session snapshots are kept in a local {@link RedissonSessionNearCache},
+     * so reading a hot session needs no round trip. Every write publishes the session id to
+     * invalidate the copies on other nodes; touches do not, so a cached session is never kept
+     * past its idle timeout as known by this node. Implies loading a snapshot on read.</p>
+     *
+     * @param nearCacheEnabled whether to cache session snapshots locally
+     */
+    public void setNearCacheEnabled(boolean nearCacheEnabled) {
+        this.nearCacheEnabled = nearCacheEnabled;
+    }
+
+    public int getNearCacheSize() {
+        return nearCacheSize;
+    }
+
+    /**
+     * @param nearCacheSize the maximum number of sessions kept in the near cache
+     */
+    public void setNearCacheSize(int nearCacheSize) {
+        this.nearCacheSize = nearCacheSize;
+    }
+
+    public long getNearCacheMaxMemory() {
+        return nearCacheMaxMemory;
+    }
+
+    /**
+     * @param nearCacheMaxMemory the maximum encoded size in bytes of the sessions kept in the near cache
+     */
+    public void setNearCacheMaxMemory(long nearCacheMaxMemory) {
+        this.nearCacheMaxMemory = nearCacheMaxMemory;
+    }
+
+    public long getNearCacheTimeToLive() {
+        return nearCacheTimeToLive;
+    }
+
+    /**
+     * @param nearCacheTimeToLive the maximum time in milliseconds a session is kept in the near cache,
+     *                            bounding staleness if an invalidation message is lost
+     */
+    public void setNearCacheTimeToLive(long nearCacheTimeToLive) {
+        this.nearCacheTimeToLive = nearCacheTimeToLive;
+    }
+
+    public String getNearCacheTopic() {
+        return nearCacheTopic;
+    }
+
+    /**
+     * @param nearCacheTopic the name of the topic the invalidation messages are published to
+     */
+    public void setNearCacheTopic(String nearCacheTopic) {
+        this.nearCacheTopic = nearCacheTopic;
+    }
+}
@@ -0,0 +1,196 @@
+package com.github.streamone.shiro.session;
+
+import org.redisson.api.BatchOptions;
+import org.redisson.api.RBatch;
+import org.redisson.api.RFuture;
+import org.redisson.api.RPatternTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * <p>Listens to the expired keyspace events of session info keys and reports every expired
+ * session once per cluster.</p>
+ * <p>
+ *  The events of a session are delivered to every node. Each node claims the session with
+ *  SET NX on a short-lived claim key, and only the node winning the claim reports it. Events are
+ *  queued in a bounded queue, then claimed in one batch and reported on {@code executor}, so the
+ *  pub/sub thread is never blocked. Events are dropped when the queue is full.
+ * </p>
+ * <p>
+ *  Redis must be configured to publish expired events, e.g. {@code notify-keyspace-events Ex}.
+ *  Events are delivered at most once: sessions expiring while no node is subscribed are not
+ *  reported.
+ * </p>
+ * <p>
+ *  Keyspace events are published only by the node whose key expired, while a redis cluster
+ *  client subscribes on a single node, so a listener of a cluster client misses the events of
+ *  the other masters. Use a listener per master instead, see
+ *  {@link RedissonSessionManager#setExpirationEventClients(List)}.
+ * </p>
+ *
+ * @author streamone
+ */
+public class RedissonSessionExpirationListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedissonSessionExpirationListener.class);
+
+    public static final String EXPIRED_EVENT_PATTERN = "__keyevent@*__:expired";
+    public static final String CLAIM_KEY_PREFIX = "session:expired:";
+
+    private final RedissonClient redisson;
+    private final String infoKeyPrefix;
+    private final Function<String, String> sessionIdResolver;
+    private final Consumer<String> expirationHandler;
+    private final ExecutorService executor;
+    private final BlockingQueue<String> queue;
+    private final int batchSize;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    private long claimTimeToLive = 60000;
+    private RPatternTopic topic;
+    private int listenerId = -1;
+
+    /**
+     * @param redisson the redisson client
+     * @param infoKeyPrefix the prefix of session info keys
+     * @param sessionIdResolver resolves a session id by its info key
+     * @param expirationHandler handles the id of an expired session claimed by this node
+     * @param executor the executor running {@code expirationHandler}
+     * @param queueSize the maximum number of events waiting to be handled
+     * @param batchSize the maximum number of events claimed in one round trip
+     */
+    public RedissonSessionExpirationListener(RedissonClient redisson, String infoKeyPrefix,
+        Function<String, String> sessionIdResolver, Consumer<String> expirationHandler,
+        ExecutorService executor, int queueSize, int batchSize) {
+        if (redisson == null || infoKeyPrefix == null || sessionIdResolver == null
+            || expirationHandler == null || executor == null) {
+            throw new IllegalArgumentException("Arguments must not be null!");
+        }
+        this.redisson = redisson;
+        this.infoKeyPrefix = infoKeyPrefix;
+        this.sessionIdResolver = sessionIdResolver;
+        this.expirationHandler = expirationHandler;
+        this.executor = executor;
+        this.queue = new LinkedBlockingQueue<>(queueSize);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * <p>Subscribe to expired events.</p>
+     */
+    public synchronized void start() {
+        if (this.listenerId != -1) {
+            return;
+        }
+        if (this.redisson.getConfig().isClusterConfig()) {
+            logger.warn("Expired events are received from one master of the redis cluster only, "
+                + "subscribe a single server client per master to receive all of them.");
+        }
+        this.topic = this.redisson.getPatternTopic(EXPIRED_EVENT_PATTERN, StringCodec.INSTANCE);
+        this.listenerId = this.topic.addListener(String.class, (pattern, channel, key) -> onExpired(key));
+    }
+
+    /**
+     * <p>Unsubscribe from expired events. Queued events are discarded.</p>
+     */
+    public synchronized void shutdown() {
+        if (this.listenerId == -1) {
+            return;
+        }
+        this.topic.removeListener(this.listenerId);
+        this.listenerId = -1;
+        this.queue.clear();
+    }
+
+    void onExpired(String key) {
+        if (key == null || !key.startsWith(this.infoKeyPrefix)) {
+            return;
+        }
+        if (!this.queue.offer(key)) {
+            logger.warn("Session expiration queue is full, drop the event of {}.", key);
+            return;
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (!this.draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            this.draining.set(false);
+            logger.warn("Session expiration executor rejected the events.", e);
+        }
+    }
+
+    private void drain() {
+        try {
+            List<String> keys = new ArrayList<>(this.batchSize);
+            while (this.queue.drainTo(keys, this.batchSize) > 0) {
+                for (String key : claim(keys)) {
+                    try {
+                        this.expirationHandler.accept(this.sessionIdResolver.apply(key));
+                    } catch (RuntimeException e) {
+                        logger.warn("Failed to handle the expiration of " + key, e);
+                    }
+                }
+                keys.clear();
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed to claim expired sessions.", e);
+        } finally {
+            this.draining.set(false);
+        }
+        //events queued after the last drainTo but before the flag was reset
+        if (!this.queue.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    private List<String> claim(List<String> keys) {
+        RBatch batch = this.redisson.createBatch(BatchOptions.defaults());
+        List<RFuture<Boolean>> claims = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            claims.add(batch.getBucket(CLAIM_KEY_PREFIX + key, StringCodec.INSTANCE)
+                .trySetAsync(this.nodeId, this.claimTimeToLive, TimeUnit.MILLISECONDS));
+        }
+        batch.execute();
+
+        List<String> claimed = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            if (Boolean.TRUE.equals(claims.get(i).getNow())) {
+                claimed.add(keys.get(i));
+            }
+        }
+        return claimed;
+    }
+
+    public long getClaimTimeToLive() {
+        return claimTimeToLive;
+    }
+
+    /**
+     * @param claimTimeToLive how long in milliseconds the claim of an expired session is kept,
+     *                        longer than the delivery delay of an event between nodes
+     */
+    public void setClaimTimeToLive(long claimTimeToLive) {
+        this.claimTimeToLive = claimTimeToLive;
+    }
+}
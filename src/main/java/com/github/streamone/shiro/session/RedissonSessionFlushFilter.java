@@ -0,0 +1,53 @@
+package com.github.streamone.shiro.session;
+
+import org.apache.shiro.web.servlet.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.IOException;
+
+/**
+ * <p>A filter flushing the session attribute writes buffered by
+ * {@link RedissonWebSessionManager} when the request finishes. If the request fails, the
+ * writes are flushed as well, and a failure of the flush is added to the error of the request
+ * as a suppressed exception.</p>
+ *
+ * @author streamone
+ */
+public class RedissonSessionFlushFilter extends OncePerRequestFilter {
+
+    private RedissonWebSessionManager sessionManager;
+
+    @Override
+    protected void doFilterInternal(ServletRequest request, ServletResponse response, FilterChain chain)
+        throws ServletException, IOException {
+        try {
+            chain.doFilter(request, response);
+        } catch (IOException | ServletException | RuntimeException | Error e) {
+            //a failing flush must not hide the error of the request
+            try {
+                flush(request);
+            } catch (RuntimeException flushException) {
+                e.addSuppressed(flushException);
+            }
+            throw e;
+        }
+        flush(request);
+    }
+
+    private void flush(ServletRequest request) {
+        if (this.sessionManager != null) {
+            this.sessionManager.flush(request);
+        }
+    }
+
+    public RedissonWebSessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    public void setSessionManager(RedissonWebSessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+}
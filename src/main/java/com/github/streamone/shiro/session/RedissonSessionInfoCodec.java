@@ -0,0 +1,128 @@
+package com.github.streamone.shiro.session;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.redisson.client.codec.BaseCodec;
+import org.redisson.client.handler.State;
+import org.redisson.client.protocol.Decoder;
+import org.redisson.client.protocol.Encoder;
+import org.redisson.codec.JsonJacksonCodec;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * <p>A codec for the session info hash.</p>
+ * <p>
+ *  In {@link #COMPACT compact} mode, timestamps are stored as epoch milliseconds and numbers as
+ *  decimal strings, which lua scripts read with {@code tonumber} instead of {@code cjson.decode}.
+ *  Any other value is stored as its {@code toString()}. In {@link #JSON json} mode, values are
+ *  stored as typed json by {@link JsonJacksonCodec}.
+ * </p>
+ * <p>
+ *  Both modes decode values written in either format, compact numbers being decoded as
+ *  {@link Long}, so nodes can switch the mode while sessions of the other format are alive.
+ * </p>
+ *
+ * @author streamone
+ */
+public class RedissonSessionInfoCodec extends BaseCodec {
+
+    public static final RedissonSessionInfoCodec COMPACT = new RedissonSessionInfoCodec(true);
+
+    public static final RedissonSessionInfoCodec JSON = new RedissonSessionInfoCodec(false);
+
+    private final JsonJacksonCodec jsonCodec = new JsonJacksonCodec();
+
+    private final boolean compact;
+
+    private final Encoder compactEncoder = new Encoder() {
+        @Override
+        public ByteBuf encode(Object in) throws IOException {
+            String value = in instanceof Date ? String.valueOf(((Date) in).getTime()) : String.valueOf(in);
+            ByteBuf out = ByteBufAllocator.DEFAULT.buffer();
+            out.writeCharSequence(value, StandardCharsets.UTF_8);
+            return out;
+        }
+    };
+
+    private final Decoder<Object> decoder = new Decoder<Object>() {
+        @Override
+        public Object decode(ByteBuf buf, State state) throws IOException {
+            if (buf.readableBytes() > 0) {
+                byte first = buf.getByte(buf.readerIndex());
+                if (first == '"' || (first == '[' && buf.readableBytes() > 1
+                    && buf.getByte(buf.readerIndex() + 1) == '"')) {
+                    return jsonCodec.getValueDecoder().decode(buf, state);
+                }
+            }
+            String value = buf.toString(StandardCharsets.UTF_8);
+            buf.readerIndex(buf.writerIndex());
+            return isLong(value) ? Long.valueOf(value) : value;
+        }
+    };
+
+    public RedissonSessionInfoCodec(boolean compact) {
+        this.compact = compact;
+    }
+
+    @Override
+    public Decoder<Object> getValueDecoder() {
+        return this.decoder;
+    }
+
+    @Override
+    public Encoder getValueEncoder() {
+        return this.compact ? this.compactEncoder : this.jsonCodec.getValueEncoder();
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    private static boolean isLong(String value) {
+        int length = value.length();
+        int start = length > 1 && value.charAt(0) == '-' ? 1 : 0;
+        if (length == 0 || length - start > 18) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param value a timestamp decoded by this codec or by {@link JsonJacksonCodec}
+     * @return the timestamp as a {@link Date}
+     */
+    static Date toDate(Object value) {
+        if (value == null || value instanceof Date) {
+            return (Date) value;
+        }
+        return new Date(((Number) value).longValue());
+    }
+
+    /**
+     * @param value a number decoded by this codec or by {@link JsonJacksonCodec}
+     * @return the number as a {@link Long}
+     */
+    static Long toLong(Object value) {
+        if (value == null || value instanceof Long) {
+            return (Long) value;
+        }
+        return ((Number) value).longValue();
+    }
+
+    /**
+     * @param value a string decoded by this codec or by {@link JsonJacksonCodec}
+     * @return the value as a {@link String}
+     */
+    static String toText(Object value) {
+        return value != null ? value.toString() : null;
+    }
+}
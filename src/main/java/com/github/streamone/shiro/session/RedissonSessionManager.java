@@ -6,28 +6,119 @@ import org.apache.shiro.session.Session;
 import org.apache.shiro.session.UnknownSessionException;
 import org.apache.shiro.session.mgt.*;
 import org.apache.shiro.session.mgt.eis.SessionDAO;
+import org.apache.shiro.util.Destroyable;
+import org.apache.shiro.util.Initializable;
+import org.redisson.api.RedissonClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * <p>A {@link org.apache.shiro.session.mgt.SessionManager} implementation backed by Redisson Objects.</p>
  *
  * @author streamone
  */
-public class RedissonSessionManager extends AbstractNativeSessionManager {
+public class RedissonSessionManager extends AbstractNativeSessionManager implements Initializable, Destroyable {
 
     private static final Logger logger = LoggerFactory.getLogger(RedissonSessionManager.class);
 
+    /**
+     * <p>Key of a {@code Map<Object, Object>} in the {@link SessionContext} holding the attributes of
+     * a new session, e.g. principals and app attributes known at login. They are written with the
+     * session in one script call, instead of one call per attribute after its creation.</p>
+     */
+    public static final String INITIAL_ATTRIBUTES_KEY = RedissonSessionManager.class.getName() + ".INITIAL_ATTRIBUTES";
+
     private SessionFactory sessionFactory;
 
     protected SessionDAO sessionDAO;
 
+    private boolean stopDeleteEnabled = false;
+
+    private boolean expirationEventsEnabled = false;
+    private int expirationEventQueueSize = 10000;
+    private int expirationEventBatchSize = 100;
+    private ExecutorService expirationEventExecutor;
+    private boolean expirationEventExecutorOwned = false;
+    private List<RedissonClient> expirationEventClients;
+    private List<RedissonSessionExpirationListener> expirationListeners;
+
     public RedissonSessionManager() {
         this.sessionFactory = new SimpleSessionFactory();
     }
 
+    /**
+     * <p>Subscribe to session expiration events if {@link #setExpirationEventsEnabled(boolean)
+     * enabled}.</p>
+     */
+    @Override
+    public void init() {
+        if (!this.expirationEventsEnabled || this.expirationListeners != null) {
+            return;
+        }
+        if (!(this.sessionDAO instanceof RedissonSessionDao)) {
+            throw new IllegalStateException("Expiration events require a RedissonSessionDao.");
+        }
+        RedissonSessionDao dao = (RedissonSessionDao) this.sessionDAO;
+        if (this.expirationEventExecutor == null) {
+            this.expirationEventExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "redisson-session-expiration");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.expirationEventExecutorOwned = true;
+        }
+        //every shard publishes the expired events of its own sessions
+        List<RedissonClient> clients = this.expirationEventClients != null ?
+            this.expirationEventClients : dao.getRedissonClients();
+        List<RedissonSessionExpirationListener> listeners = new ArrayList<>();
+        for (RedissonClient redisson : clients) {
+            RedissonSessionExpirationListener listener = new RedissonSessionExpirationListener(redisson,
+                RedissonSessionDao.SESSION_INFO_KEY_PREFIX, dao::getSessionIdByInfoKey, this::onExpiration,
+                this.expirationEventExecutor, this.expirationEventQueueSize, this.expirationEventBatchSize);
+            listener.start();
+            listeners.add(listener);
+        }
+        this.expirationListeners = listeners;
+    }
+
+    @Override
+    public void destroy() {
+        if (this.expirationListeners != null) {
+            for (RedissonSessionExpirationListener listener : this.expirationListeners) {
+                listener.shutdown();
+            }
+            this.expirationListeners = null;
+        }
+        if (this.expirationEventExecutorOwned) {
+            this.expirationEventExecutor.shutdown();
+            this.expirationEventExecutor = null;
+            this.expirationEventExecutorOwned = false;
+        }
+    }
+
+    /**
+     * <p>Notify the session listeners that a session has expired in redis. As the session data is
+     * gone, listeners get an expired {@link SimpleSession} holding only the session id.</p>
+     *
+     * @param sessionId the id of the expired session
+     */
+    protected void onExpiration(Serializable sessionId) {
+        SimpleSession session = new SimpleSession();
+        session.setId(sessionId);
+        session.setExpired(true);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Session {} has expired.", sessionId);
+        }
+        notifyExpiration(session);
+    }
+
     @Override
     protected Session createSession(SessionContext context) throws AuthorizationException {
         Session s = newSessionInstance(context);
@@ -63,13 +154,87 @@ public class RedissonSessionManager extends AbstractNativeSessionManager {
         return s;
     }
 
+    /**
+     * <p>Move the session of {@code key} to a new id, keeping its attributes and remaining time to
+     * live, e.g. after login to prevent session fixation. Requires a {@link RedissonSessionDao},
+     * see {@link RedissonSessionDao#changeSessionId(Session)}.</p>
+     *
+     * @param key the key of the session
+     * @return the session under its new id
+     * @throws InvalidSessionException if the session has expired or has been stopped
+     */
+    public Session changeSessionId(SessionKey key) throws InvalidSessionException {
+        if (!(this.sessionDAO instanceof RedissonSessionDao)) {
+            throw new IllegalStateException("Changing the session id requires a RedissonSessionDao.");
+        }
+        Session session = doGetSession(key);
+        if (session == null) {
+            throw new UnknownSessionException("Could not find session with key [" + key + "]");
+        }
+        if (session instanceof RedissonSession) {
+            ((RedissonSession) session).flush();
+        }
+        RedissonSession renamed = ((RedissonSessionDao) this.sessionDAO).changeSessionId(session);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Changed session id {} to {}", session.getId(), renamed.getId());
+        }
+        onChangeSessionId(session, renamed, key);
+        return createExposedSession(renamed, key);
+    }
+
+    /**
+     * <p>Called after the id of a session has changed, does nothing by default.</p>
+     *
+     * @param previous the session under its previous id
+     * @param session the session under its new id
+     * @param key the key the session was looked up by
+     */
+    protected void onChangeSessionId(Session previous, Session session, SessionKey key) {
+    }
+
+    /**
+     * <p>With {@link #setStopDeleteEnabled(boolean) stop and delete} enabled, the session is
+     * stopped and deleted by {@link RedissonSessionDao#stopAndDelete(Session)} in one round trip,
+     * then the stop listeners are notified. Otherwise the session is stopped, then deleted by
+     * {@link #afterStopped(Session)}.</p>
+     */
+    @Override
+    public void stop(SessionKey key) throws InvalidSessionException {
+        if (!this.stopDeleteEnabled || !(this.sessionDAO instanceof RedissonSessionDao)) {
+            super.stop(key);
+            return;
+        }
+        Session session = doGetSession(key);
+        if (session == null) {
+            throw new UnknownSessionException("Could not find session with key [" + key + "]");
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Stopping and deleting session with id [{}]", session.getId());
+        }
+        ((RedissonSessionDao) this.sessionDAO).stopAndDelete(session);
+        onStop(session, key);
+        notifyStop(session);
+    }
+
     @Override
     protected void afterStopped(Session session) {
         this.sessionDAO.delete(session);
     }
 
+    /**
+     * <p>Create the session with the factory, then set the {@link #INITIAL_ATTRIBUTES_KEY initial
+     * attributes} of {@code context} on it, before it is stored.</p>
+     */
+    @SuppressWarnings("unchecked")
     protected Session newSessionInstance(SessionContext context) {
-        return getSessionFactory().createSession(context);
+        Session session = getSessionFactory().createSession(context);
+        Object attributes = context != null ? context.get(INITIAL_ATTRIBUTES_KEY) : null;
+        if (attributes instanceof Map) {
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) attributes).entrySet()) {
+                session.setAttribute(entry.getKey(), entry.getValue());
+            }
+        }
+        return session;
     }
 
     protected Serializable getSessionId(SessionKey sessionKey) {
@@ -93,4 +258,88 @@ public class RedissonSessionManager extends AbstractNativeSessionManager {
     public void setSessionDAO(SessionDAO sessionDAO) {
         this.sessionDAO = sessionDAO;
     }
+
+    public boolean isStopDeleteEnabled() {
+        return stopDeleteEnabled;
+    }
+
+    /**
+     * <p>If enabled, {@link #stop(SessionKey)}, e.g. on logout, stops and deletes the session by one
+     * script instead of two, skipping the write of the stop timestamp. Stop listeners get the
+     * session after its deletion, only its id is still readable. Requires a
+     * {@link RedissonSessionDao}.</p>
+     *
+     * @param stopDeleteEnabled whether to stop and delete a session in one round trip
+     */
+    public void setStopDeleteEnabled(boolean stopDeleteEnabled) {
+        this.stopDeleteEnabled = stopDeleteEnabled;
+    }
+
+    public boolean isExpirationEventsEnabled() {
+        return expirationEventsEnabled;
+    }
+
+    /**
+     * <p>If enabled, {@link org.apache.shiro.session.SessionListener#onExpiration(Session)} is
+     * called once per cluster when redis expires a session, driven by keyspace notifications,
+     * see {@link RedissonSessionExpirationListener}. Requires {@link #init()} to be called.</p>
+     * <p>Keyspace notifications are local to a redis node, and a redis cluster client subscribes
+     * on one node only. With redis cluster, set {@link #setExpirationEventClients(List)} to a
+     * client per master, otherwise expirations on the other masters are not reported.</p>
+     *
+     * @param expirationEventsEnabled whether to report sessions expired by redis
+     */
+    public void setExpirationEventsEnabled(boolean expirationEventsEnabled) {
+        this.expirationEventsEnabled = expirationEventsEnabled;
+    }
+
+    public int getExpirationEventQueueSize() {
+        return expirationEventQueueSize;
+    }
+
+    /**
+     * @param expirationEventQueueSize the maximum number of expiration events waiting to be reported
+     */
+    public void setExpirationEventQueueSize(int expirationEventQueueSize) {
+        this.expirationEventQueueSize = expirationEventQueueSize;
+    }
+
+    public int getExpirationEventBatchSize() {
+        return expirationEventBatchSize;
+    }
+
+    /**
+     * @param expirationEventBatchSize the maximum number of expiration events claimed in one round trip
+     */
+    public void setExpirationEventBatchSize(int expirationEventBatchSize) {
+        this.expirationEventBatchSize = expirationEventBatchSize;
+    }
+
+    public ExecutorService getExpirationEventExecutor() {
+        return expirationEventExecutor;
+    }
+
+    /**
+     * @param expirationEventExecutor the executor reporting expiration events, a single daemon
+     *                                thread by default
+     */
+    public void setExpirationEventExecutor(ExecutorService expirationEventExecutor) {
+        this.expirationEventExecutor = expirationEventExecutor;
+    }
+
+    public List<RedissonClient> getExpirationEventClients() {
+        return expirationEventClients;
+    }
+
+    /**
+     * <p>Set the clients subscribing to expired events, e.g. a single server client per master
+     * of a redis cluster. The claim key of a session shares the hash slot of its info key, so
+     * each client claims on the master which expired the session.</p>
+     *
+     * @param expirationEventClients the clients subscribing to expired events, {@code null} for
+     *                               the clients of the session DAO
+     */
+    public void setExpirationEventClients(List<RedissonClient> expirationEventClients) {
+        this.expirationEventClients = expirationEventClients;
+    }
 }
@@ -0,0 +1,233 @@
+package com.github.streamone.shiro.session;
+
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.api.listener.StatusListener;
+import org.redisson.client.codec.StringCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>A local cache of session snapshots, bounded by entry count and estimated memory.</p>
+ * <p>
+ *  Whenever a node writes or deletes a session, it publishes the session id to a redis topic,
+ *  and every node drops its cached copy. Touches are not published, so the last access time of
+ *  a cached session may lag behind; entries are never kept past the expiry known locally.
+ *  The whole cache is cleared when the topic is (re)subscribed, since messages may have been
+ *  missed while disconnected.
+ * </p>
+ *
+ * @author streamone
+ */
+public class RedissonSessionNearCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedissonSessionNearCache.class);
+
+    public static final String DEFAULT_TOPIC_NAME = "session:invalidation";
+
+    private static final char MESSAGE_SEPARATOR = ':';
+
+    private final String instanceId = UUID.randomUUID().toString();
+    private final RTopic topic;
+    private final int maxSize;
+    private final long maxMemory;
+    private final long timeToLive;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> tombstones = new LinkedHashMap<>();
+    private long memory = 0;
+    private long stamp = 0;
+    private long floorStamp = 0;
+    private int listenerId = -1;
+    private int statusListenerId = -1;
+
+    public RedissonSessionNearCache(RedissonClient redisson, String topicName, int maxSize,
+        long maxMemory, long timeToLive) {
+        if (redisson == null || topicName == null) {
+            throw new IllegalArgumentException("Arguments must not be null!");
+        }
+        this.topic = redisson.getTopic(topicName, StringCodec.INSTANCE);
+        this.maxSize = maxSize;
+        this.maxMemory = maxMemory;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * <p>Subscribe to the invalidation topic.</p>
+     */
+    public synchronized void start() {
+        if (this.listenerId != -1) {
+            return;
+        }
+        this.statusListenerId = this.topic.addListener(new StatusListener() {
+            @Override
+            public void onSubscribe(String channel) {
+                clear();
+            }
+
+            @Override
+            public void onUnsubscribe(String channel) {
+                clear();
+            }
+        });
+        this.listenerId = this.topic.addListener(String.class, (channel, message) -> {
+            //messages are prefixed by the id of the publishing instance, which has evicted already
+            int index = message.indexOf(MESSAGE_SEPARATOR);
+            if (index > 0 && !this.instanceId.equals(message.substring(0, index))) {
+                evict(message.substring(index + 1));
+            }
+        });
+    }
+
+    /**
+     * <p>Unsubscribe from the invalidation topic and drop all entries.</p>
+     */
+    public synchronized void shutdown() {
+        if (this.listenerId == -1) {
+            return;
+        }
+        this.topic.removeListener(this.listenerId, this.statusListenerId);
+        this.listenerId = -1;
+        this.statusListenerId = -1;
+        clear();
+    }
+
+    /**
+     * @param sessionId the session id
+     * @return a copy of the cached snapshot, or {@code null}
+     */
+    RedissonSessionSnapshot get(Serializable sessionId) {
+        String key = sessionId.toString();
+        synchronized (this.entries) {
+            Entry entry = this.entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expireAt <= System.currentTimeMillis()) {
+                remove(key);
+                return null;
+            }
+            return entry.snapshot.copy();
+        }
+    }
+
+    /**
+     * @return a counter increased by every eviction, taken before loading a snapshot
+     */
+    long getStamp() {
+        synchronized (this.entries) {
+            return this.stamp;
+        }
+    }
+
+    /**
+     * <p>Cache a copy of a complete snapshot, unless the session has been evicted since
+     * {@code stamp} was taken, as the snapshot might have been loaded before a write.</p>
+     * <p>
+     *  Evictions are remembered per session id by a tombstone holding the stamp of the eviction,
+     *  so writes of other sessions don't drop the snapshot. Tombstones are bounded like the
+     *  entries; once the oldest is forgotten, or the cache is cleared, snapshots whose stamp was
+     *  taken before are dropped.
+     * </p>
+     *
+     * @param sessionId the session id
+     * @param snapshot the snapshot
+     * @param stamp the {@link #getStamp() stamp} taken before loading the snapshot
+     */
+    void put(Serializable sessionId, RedissonSessionSnapshot snapshot, long stamp) {
+        if (!snapshot.isComplete() || snapshot.isStopped() || snapshot.getEstimatedSize() > this.maxMemory) {
+            return;
+        }
+        long expireAt = Math.min(System.currentTimeMillis() + this.timeToLive,
+            snapshot.getLastAccessTime().getTime() + snapshot.getTimeout());
+        Entry entry = new Entry(snapshot.copy(), expireAt);
+
+        String key = sessionId.toString();
+        synchronized (this.entries) {
+            Long evictedAt = this.tombstones.get(key);
+            if (stamp < this.floorStamp || (evictedAt != null && evictedAt > stamp)) {
+                return;
+            }
+            remove(key);
+            this.entries.put(key, entry);
+            this.memory += entry.snapshot.getEstimatedSize();
+
+            Iterator<Entry> iterator = this.entries.values().iterator();
+            while ((this.entries.size() > this.maxSize || this.memory > this.maxMemory) && iterator.hasNext()) {
+                this.memory -= iterator.next().snapshot.getEstimatedSize();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * <p>Drop the cached snapshot of a session on every node.</p>
+     *
+     * @param sessionId the session id
+     */
+    public void invalidate(Serializable sessionId) {
+        String key = sessionId.toString();
+        evict(key);
+        this.topic.publishAsync(this.instanceId + MESSAGE_SEPARATOR + key);
+    }
+
+    /**
+     * <p>Drop the cached snapshot of a session on this node.</p>
+     *
+     * @param sessionId the session id
+     */
+    public void evict(String sessionId) {
+        synchronized (this.entries) {
+            remove(sessionId);
+            this.tombstones.remove(sessionId);
+            this.tombstones.put(sessionId, ++this.stamp);
+            if (this.tombstones.size() > this.maxSize) {
+                Iterator<Map.Entry<String, Long>> iterator = this.tombstones.entrySet().iterator();
+                this.floorStamp = iterator.next().getValue();
+                iterator.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+            this.tombstones.clear();
+            this.memory = 0;
+            this.floorStamp = ++this.stamp;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Session near cache cleared.");
+        }
+    }
+
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = this.entries.remove(key);
+        if (entry != null) {
+            this.memory -= entry.snapshot.getEstimatedSize();
+        }
+    }
+
+    private static class Entry {
+
+        private final RedissonSessionSnapshot snapshot;
+        private final long expireAt;
+
+        private Entry(RedissonSessionSnapshot snapshot, long expireAt) {
+            this.snapshot = snapshot;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.github.streamone.shiro.session;
+
+import org.redisson.api.BatchOptions;
+import org.redisson.api.RBatch;
+import org.redisson.api.RFuture;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * <p>Incrementally walks the session attribute keys of a redis instance or cluster and deletes
+ * those which outlived their session info key, e.g. after a partial failure or a manual
+ * PERSIST, see {@link RedissonSessionScript#REAP_ATTR_SCRIPT}. Attribute keys of live sessions
+ * without a time to live are given the one of their session.</p>
+ * <p>
+ *  Keys are read with SCAN in batches of {@link #setBatchSize(int) batchSize}, and each batch is
+ *  checked by one pipelined round trip. Batches are spaced so no more than
+ *  {@link #setRateLimit(int) rateLimit} keys are checked per second, and a new pass starts
+ *  {@link #setPassInterval(long) passInterval} after the previous one ended. A SCAN pass may
+ *  return a key more than once and misses keys created meanwhile, which the next pass catches.
+ * </p>
+ * <p>
+ *  Progress is reported by the counters, e.g. {@link #getScannedKeys()} and
+ *  {@link #getReapedKeys()}.
+ * </p>
+ * <p>
+ *  Spilled attribute values, see {@link RedissonSessionScript#SPILL_KEY_PREFIX}, are deleted
+ *  with an orphaned attribute key, but spill keys are not scanned themselves. Those left behind
+ *  otherwise, e.g. with the session info in a single hash, rely on their own time to live,
+ *  which the session scripts keep in line with the one of their session.
+ * </p>
+ *
+ * @author streamone
+ */
+public class RedissonSessionReaper {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedissonSessionReaper.class);
+
+    private final RedissonClient redisson;
+    private final String attrKeyPrefix;
+    private final Function<String, String> infoKeyResolver;
+    private final ScheduledExecutorService executor;
+
+    private int batchSize = 100;
+    private int rateLimit = 1000;
+    private long passInterval = 3600000;
+
+    private final AtomicLong scannedKeys = new AtomicLong();
+    private final AtomicLong reapedKeys = new AtomicLong();
+    private final AtomicLong repairedKeys = new AtomicLong();
+    private final AtomicLong completedPasses = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private volatile long lastPassTime;
+
+    private Iterator<String> cursor;
+    private long nextPassTime;
+    private ScheduledFuture<?> task;
+
+    /**
+     * @param redisson the redisson client
+     * @param attrKeyPrefix the prefix of session attribute keys
+     * @param infoKeyResolver resolves the session info key of an attribute key
+     * @param executor the executor running the batches
+     */
+    public RedissonSessionReaper(RedissonClient redisson, String attrKeyPrefix,
+        Function<String, String> infoKeyResolver, ScheduledExecutorService executor) {
+        if (redisson == null || attrKeyPrefix == null || infoKeyResolver == null || executor == null) {
+            throw new IllegalArgumentException("Arguments must not be null!");
+        }
+        this.redisson = redisson;
+        this.attrKeyPrefix = attrKeyPrefix;
+        this.infoKeyResolver = infoKeyResolver;
+        this.executor = executor;
+    }
+
+    /**
+     * <p>Schedule the batches, the first pass starts right away.</p>
+     */
+    public synchronized void start() {
+        if (this.task != null) {
+            return;
+        }
+        long delay = Math.max(1, this.batchSize * 1000L / this.rateLimit);
+        this.task = this.executor.scheduleWithFixedDelay(this::reap, delay, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * <p>Stop scheduling batches. A running batch completes, the next start begins a new pass.</p>
+     */
+    public synchronized void shutdown() {
+        if (this.task == null) {
+            return;
+        }
+        this.task.cancel(false);
+        this.task = null;
+    }
+
+    /**
+     * <p>Check the next batch of attribute keys, starting a new pass if the previous one ended
+     * more than {@code passInterval} ago.</p>
+     */
+    synchronized void reap() {
+        try {
+            long now = System.currentTimeMillis();
+            if (this.cursor == null) {
+                if (now < this.nextPassTime) {
+                    return;
+                }
+                this.cursor = this.redisson.getKeys()
+                    .getKeysByPattern(this.attrKeyPrefix + "*", this.batchSize).iterator();
+            }
+
+            List<String> keys = new ArrayList<>(this.batchSize);
+            while (keys.size() < this.batchSize && this.cursor.hasNext()) {
+                keys.add(this.cursor.next());
+            }
+            if (!keys.isEmpty()) {
+                check(keys);
+            }
+
+            if (!this.cursor.hasNext()) {
+                this.cursor = null;
+                this.lastPassTime = System.currentTimeMillis();
+                this.nextPassTime = this.lastPassTime + this.passInterval;
+                this.completedPasses.incrementAndGet();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Session reaper pass done, {} keys scanned, {} reaped, {} repaired.",
+                        this.scannedKeys.get(), this.reapedKeys.get(), this.repairedKeys.get());
+                }
+            }
+        } catch (RuntimeException e) {
+            //the next batch starts a new pass
+            this.cursor = null;
+            this.failedBatches.incrementAndGet();
+            logger.warn("Failed to reap session attribute keys.", e);
+        }
+    }
+
+    private void check(List<String> keys) {
+        RBatch batch = this.redisson.createBatch(BatchOptions.defaults());
+        List<RFuture<Long>> results = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            results.add(batch.getScript(StringCodec.INSTANCE).evalAsync(key, RScript.Mode.READ_WRITE,
+                RedissonSessionScript.REAP_ATTR_SCRIPT, RScript.ReturnType.INTEGER,
+                Arrays.<Object>asList(this.infoKeyResolver.apply(key), key)));
+        }
+        batch.execute();
+
+        this.scannedKeys.addAndGet(keys.size());
+        for (RFuture<Long> result : results) {
+            Long res = result.getNow();
+            if (res == null) {
+                continue;
+            }
+            if (res == 1) {
+                this.reapedKeys.incrementAndGet();
+            } else if (res == 2) {
+                this.repairedKeys.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the number of attribute keys checked
+     */
+    public long getScannedKeys() {
+        return this.scannedKeys.get();
+    }
+
+    /**
+     * @return the number of orphaned attribute keys deleted
+     */
+    public long getReapedKeys() {
+        return this.reapedKeys.get();
+    }
+
+    /**
+     * @return the number of attribute keys given the time to live of their session
+     */
+    public long getRepairedKeys() {
+        return this.repairedKeys.get();
+    }
+
+    /**
+     * @return the number of passes over all attribute keys
+     */
+    public long getCompletedPasses() {
+        return this.completedPasses.get();
+    }
+
+    /**
+     * @return the number of batches which failed, each restarting the pass
+     */
+    public long getFailedBatches() {
+        return this.failedBatches.get();
+    }
+
+    /**
+     * @return the time the last pass ended, 0 if none has
+     */
+    public long getLastPassTime() {
+        return this.lastPassTime;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the number of keys read by SCAN and checked in one round trip
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive!");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * @param rateLimit the maximum number of keys checked per second, applied on {@link #start()}
+     */
+    public void setRateLimit(int rateLimit) {
+        if (rateLimit <= 0) {
+            throw new IllegalArgumentException("Rate limit must be positive!");
+        }
+        this.rateLimit = rateLimit;
+    }
+
+    public long getPassInterval() {
+        return passInterval;
+    }
+
+    /**
+     * @param passInterval the pause in milliseconds between the end of a pass and the next one
+     */
+    public void setPassInterval(long passInterval) {
+        this.passInterval = passInterval;
+    }
+}
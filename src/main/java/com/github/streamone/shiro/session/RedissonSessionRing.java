@@ -0,0 +1,102 @@
+package com.github.streamone.shiro.session;
+
+import org.redisson.api.RedissonClient;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>A consistent hash ring routing session ids to independent redis instances.</p>
+ * <p>
+ *  Each shard is placed on the ring at {@code virtualNodes} points hashed from its name, and a
+ *  session id belongs to the first point at or after its own hash. Points are derived from the
+ *  name only, so adding or removing a shard only moves the sessions falling between its points and
+ *  their predecessors, about {@code 1/n} of all sessions. Shard names must therefore stay stable
+ *  across restarts and nodes.
+ * </p>
+ *
+ * @author streamone
+ */
+public class RedissonSessionRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final Map<String, RedissonClient> shards;
+
+    private final TreeMap<Long, RedissonClient> points = new TreeMap<>();
+
+    /**
+     * @param shards redisson clients by their stable shard names
+     * @param virtualNodes the number of points of each shard on the ring, a multiple of 4
+     */
+    public RedissonSessionRing(Map<String, RedissonClient> shards, int virtualNodes) {
+        if (shards == null || shards.isEmpty()) {
+            throw new IllegalArgumentException("Shards must not be empty!");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Virtual nodes must be positive!");
+        }
+        this.shards = Collections.unmodifiableMap(new LinkedHashMap<>(shards));
+        for (Map.Entry<String, RedissonClient> shard : this.shards.entrySet()) {
+            if (shard.getValue() == null) {
+                throw new IllegalArgumentException("Shard " + shard.getKey() + " must not be null!");
+            }
+            //each digest gives 4 points, as in ketama
+            for (int i = 0; i < (virtualNodes + 3) / 4; i++) {
+                byte[] digest = md5(shard.getKey() + "-" + i);
+                for (int j = 0; j < 4; j++) {
+                    this.points.put(toPoint(digest, j), shard.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param sessionId the session id
+     * @return the client of the shard owning {@code sessionId}
+     */
+    public RedissonClient getShard(String sessionId) {
+        if (this.shards.size() == 1) {
+            return this.points.firstEntry().getValue();
+        }
+        Map.Entry<Long, RedissonClient> point = this.points.ceilingEntry(toPoint(md5(sessionId), 0));
+        return (point != null ? point : this.points.firstEntry()).getValue();
+    }
+
+    /**
+     * @return the clients of all shards, in the order they were given
+     */
+    public List<RedissonClient> getShards() {
+        return new ArrayList<>(this.shards.values());
+    }
+
+    /**
+     * @return the clients by shard name
+     */
+    public Map<String, RedissonClient> getShardsByName() {
+        return this.shards;
+    }
+
+    private static long toPoint(byte[] digest, int index) {
+        int offset = index * 4;
+        return ((long) (digest[offset + 3] & 0xFF) << 24)
+            | ((long) (digest[offset + 2] & 0xFF) << 16)
+            | ((long) (digest[offset + 1] & 0xFF) << 8)
+            | (digest[offset] & 0xFF);
+    }
+
+    private static byte[] md5(String value) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        }
+    }
+}
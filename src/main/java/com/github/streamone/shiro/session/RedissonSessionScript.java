@@ -1,9 +1,31 @@
 package com.github.streamone.shiro.session;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import static com.github.streamone.shiro.session.RedissonSession.*;
 
 /**
  * <p>Redis lua scripts for session operations.</p>
+ * <p>
+ *  KEYS[1] is the session info hash and KEYS[2] the attribute hash. The optional KEYS[3] of
+ *  {@link #INIT_SCRIPT}, {@link #TOUCH_SCRIPT}, {@link #SET_TIMEOUT_SCRIPT},
+ *  {@link #DELETE_SCRIPT} and {@link #STOP_DELETE_SCRIPT} is the active session index, a sorted
+ *  set of info keys scored by their expiry time.
+ * </p>
+ * <p>
+ *  Attribute values longer than the spill threshold of {@link #SET_ATTR_SCRIPT} or
+ *  {@link #UPDATE_ATTRS_SCRIPT} are stored in side keys, the attribute hash holding only a
+ *  pointer, so one large value does not convert the whole hash from its compact encoding. Side
+ *  keys are named after the hash tag of KEYS[1] and share its slot and time to live, see
+ *  {@link #SPILL_KEY_PREFIX}. All scripts reading or removing attributes resolve pointers,
+ *  whether spilling is enabled or not.
+ * </p>
+ * <p>
+ *  Scripts signal an expired, stopped or invalid session by an error reply carrying one of the
+ *  {@code RETURN_CODE_*} codes. {@link #toStatusScript(String)} derives a variant returning
+ *  the code as a status instead, see {@link #STATUS_OK}.
+ * </p>
  *
  * @author streamone
  */
@@ -15,6 +37,104 @@ public abstract class RedissonSessionScript {
 
     public static final String RETURN_CODE_INVALID = "-3";
 
+    /**
+     * <p>Status of a successful {@link #toStatusScript(String) status script}, which returns an
+     * array of the status followed by the result of the script, the elements of the result if it
+     * is an array. A failed status script returns only the negative return code.</p>
+     */
+    public static final long STATUS_OK = 0;
+
+    private static final ConcurrentMap<String, String> statusScripts = new ConcurrentHashMap<>();
+
+    /**
+     * <p>Prefix of attribute fields when info and attributes of a session share one hash,
+     * i.e. KEYS[1] and KEYS[2] of the scripts are the same key.</p>
+     */
+    public static final String ATTR_FIELD_PREFIX = "a:";
+
+    /**
+     * <p>Prefix of the set of spilled attribute fields of a session, followed by the hash tag of
+     * its keys, e.g. {@code session:spill:{id}}. The value of a spilled attribute is stored at
+     * the set key followed by {@code ':'} and the sha1 of the attribute field.</p>
+     */
+    public static final String SPILL_KEY_PREFIX = "session:spill:";
+
+    /**
+     * <p>Value of an attribute field pointing to its side key, a NUL byte never starting a
+     * value of the supported codecs.</p>
+     */
+    private static final String SPILLED_VALUE = "'\\0spilled'";
+
+    /**
+     * <p>The set of spilled fields of a session and the side key of a field, followed in the
+     * scripts by the functions they need to load, remove, store and expire spilled values.</p>
+     */
+    private static final String SPILL_KEY_DEFINE =
+        "local function spillKeyOf(key)\n" +
+        "  return '" + SPILL_KEY_PREFIX + "' .. (string.match(key, '{[^}]*}') or key)\n" +
+        "end\n" +
+        "local spillKey = spillKeyOf(KEYS[1])\n" +
+        "local function sideKey(field, base)\n" +
+        "  return (base or spillKey) .. ':' .. redis.sha1hex(field)\n" +
+        "end\n";
+
+    private static final String SPILL_LOAD_DEFINE =
+        "local function load(field, value)\n" +
+        "  if value == " + SPILLED_VALUE + " then\n" +
+        "    return redis.call('GET', sideKey(field))\n" +
+        "  end\n" +
+        "  return value\n" +
+        "end\n";
+
+    private static final String SPILL_REMOVE_DEFINE =
+        "local function unspill(field)\n" +
+        "  if redis.call('SREM', spillKey, field) == 1 then\n" +
+        "    redis.call('UNLINK', sideKey(field))\n" +
+        "  end\n" +
+        "end\n";
+
+    private static final String SPILL_STORE_DEFINE =
+        "local function store(field, value, threshold, pttl)\n" +
+        "  if threshold > 0 and #value > threshold then\n" +
+        "    redis.call('SET', sideKey(field), value, 'PX', pttl)\n" +
+        "    redis.call('SADD', spillKey, field)\n" +
+        "    redis.call('PEXPIRE', spillKey, pttl)\n" +
+        "    return " + SPILLED_VALUE + "\n" +
+        "  end\n" +
+        "  unspill(field)\n" +
+        "  return value\n" +
+        "end\n";
+
+    private static final String SPILL_EXPIRE_DEFINE =
+        "local function expireSpilled(pttl)\n" +
+        "  -- one O(1) call for the sessions without spilled values\n" +
+        "  if redis.call('PEXPIRE', spillKey, pttl) == 0 then\n" +
+        "    return\n" +
+        "  end\n" +
+        "  local fields = redis.call('SMEMBERS', spillKey)\n" +
+        "  for i = 1, #fields do\n" +
+        "    redis.call('PEXPIRE', sideKey(fields[i]), pttl)\n" +
+        "  end\n" +
+        "end\n";
+
+    private static final String ATTR_FIELD_PREFIX_DEFINE =
+        "local prefix = ''\n" +
+        "if KEYS[1] == KEYS[2] then\n" +
+        "  prefix = '" + ATTR_FIELD_PREFIX + "'\n" +
+        "end\n";
+
+    /**
+     * <p>Read a number written either by {@link org.redisson.codec.JsonJacksonCodec}, as a typed
+     * json array, or by {@link RedissonSessionInfoCodec}, as a plain number.</p>
+     */
+    private static final String TO_NUMBER_DEFINE =
+        "local function toNumber(value)\n" +
+        "  if string.sub(value, 1, 1) == '[' then\n" +
+        "    return cjson.decode(value)[2]\n" +
+        "  end\n" +
+        "  return tonumber(value)\n" +
+        "end\n";
+
     public static final String TOUCH_SCRIPT =
         "if redis.call('PTTL', KEYS[1]) <= 0 then\n" +
         "  return " + makeError(RETURN_CODE_EXPIRED) + "\n" +
@@ -29,18 +149,55 @@ public abstract class RedissonSessionScript {
         "  return " + makeError(RETURN_CODE_INVALID) + "\n" +
         "end\n" +
         "\n" +
-        "local timeout = cjson.decode(timeoutEncoded)[2]\n" +
+        TO_NUMBER_DEFINE +
+        "local timeout = toNumber(timeoutEncoded)\n" +
         "\n" +
         "redis.call('HSET', KEYS[1], '\"" + INFO_LAST_KEY + "\"', ARGV[1])\n" +
         "redis.call('PEXPIRE', KEYS[1], timeout)\n" +
-        "redis.call('PEXPIRE', KEYS[2], timeout)";
+        "if KEYS[2] ~= KEYS[1] then\n" +
+        "  redis.call('PEXPIRE', KEYS[2], timeout)\n" +
+        "end\n" +
+        SPILL_KEY_DEFINE +
+        SPILL_EXPIRE_DEFINE +
+        "expireSpilled(timeout)\n" +
+        "if KEYS[3] then\n" +
+        "  redis.call('ZADD', KEYS[3], toNumber(ARGV[1]) + timeout, KEYS[1])\n" +
+        "end";
 
     public static final String INIT_SCRIPT =
         "redis.call('HMSET', KEYS[1], '\"" + INFO_ID_KEY +"\"', ARGV[1], '\"" + INFO_TIMEOUT_KEY + "\"', ARGV[2],\n" +
         "  '\"" + INFO_START_KEY + "\"', ARGV[3], '\"" + INFO_LAST_KEY + "\"', ARGV[3],\n" +
         "  '\"" + INFO_HOST_KEY + "\"', ARGV[4])\n" +
-        "local timeout = cjson.decode(ARGV[2])[2]\n" +
-        "redis.call('PEXPIRE', KEYS[1], timeout)";
+        TO_NUMBER_DEFINE +
+        "local timeout = toNumber(ARGV[2])\n" +
+        "redis.call('PEXPIRE', KEYS[1], timeout)\n" +
+        "if KEYS[3] then\n" +
+        "  redis.call('ZADD', KEYS[3], toNumber(ARGV[3]) + timeout, KEYS[1])\n" +
+        "end";
+
+    /**
+     * <p>Create a session with its initial attributes in one call. ARGV[1] to ARGV[4] are the
+     * arguments of {@link #INIT_SCRIPT}, ARGV[5] is the spill threshold and the attribute fields
+     * and values follow from ARGV[6]. Both hashes expire with the session.</p>
+     */
+    public static final String CREATE_SCRIPT =
+        INIT_SCRIPT + "\n" +
+        ATTR_FIELD_PREFIX_DEFINE +
+        SPILL_KEY_DEFINE +
+        SPILL_REMOVE_DEFINE +
+        SPILL_STORE_DEFINE +
+        "local threshold = tonumber(ARGV[5])\n" +
+        "if #ARGV > 5 then\n" +
+        "  local fieldValues = {}\n" +
+        "  for i = 6, #ARGV, 2 do\n" +
+        "    fieldValues[#fieldValues + 1] = prefix .. ARGV[i]\n" +
+        "    fieldValues[#fieldValues + 1] = store(ARGV[i], ARGV[i + 1], threshold, timeout)\n" +
+        "  end\n" +
+        "  redis.call('HMSET', KEYS[2], unpack(fieldValues))\n" +
+        "  if KEYS[2] ~= KEYS[1] then\n" +
+        "    redis.call('PEXPIRE', KEYS[2], timeout)\n" +
+        "  end\n" +
+        "end";
 
     public static final String GET_START_SCRIPT =
         "if redis.call('PTTL', KEYS[1]) <= 0 then\n" +
@@ -106,6 +263,10 @@ public abstract class RedissonSessionScript {
         "\n" +
         "return host";
 
+    /**
+     * <p>Set the timeout of a session to ARGV[1], counted from now, ARGV[2]. The keys expire and
+     * the optional active session index KEYS[3] scores the session at ARGV[2] + ARGV[1].</p>
+     */
     public static final String SET_TIMEOUT_SCRIPT =
         "if redis.call('PTTL', KEYS[1]) <= 0 then\n" +
         "  return " + makeError(RETURN_CODE_EXPIRED) + "\n" +
@@ -121,9 +282,18 @@ public abstract class RedissonSessionScript {
         "end\n" +
         "\n" +
         "redis.call('HSET', KEYS[1], '\"" + INFO_TIMEOUT_KEY + "\"', ARGV[1])\n" +
-        "local newTimeout = cjson.decode(ARGV[1])[2]\n" +
+        TO_NUMBER_DEFINE +
+        "local newTimeout = toNumber(ARGV[1])\n" +
         "redis.call('PEXPIRE', KEYS[1], newTimeout)\n" +
-        "redis.call('PEXPIRE', KEYS[2], newTimeout)";
+        "if KEYS[2] ~= KEYS[1] then\n" +
+        "  redis.call('PEXPIRE', KEYS[2], newTimeout)\n" +
+        "end\n" +
+        SPILL_KEY_DEFINE +
+        SPILL_EXPIRE_DEFINE +
+        "expireSpilled(newTimeout)\n" +
+        "if KEYS[3] then\n" +
+        "  redis.call('ZADD', KEYS[3], toNumber(ARGV[2]) + newTimeout, KEYS[1])\n" +
+        "end";
 
     public static final String STOP_SCRIPT =
         "if redis.call('PTTL', KEYS[1]) <= 0 then\n" +
@@ -145,7 +315,18 @@ public abstract class RedissonSessionScript {
         "  return " + makeError(RETURN_CODE_STOPPED) + "\n" +
         "end\n" +
         "\n" +
-        "return redis.call('HKEYS', KEYS[2])";
+        "local fields = redis.call('HKEYS', KEYS[2])\n" +
+        "if KEYS[1] ~= KEYS[2] then\n" +
+        "  return fields\n" +
+        "end\n" +
+        "\n" +
+        "local attrKeys = {}\n" +
+        "for i = 1, #fields do\n" +
+        "  if string.sub(fields[i], 1, " + ATTR_FIELD_PREFIX.length() + ") == '" + ATTR_FIELD_PREFIX + "' then\n" +
+        "    attrKeys[#attrKeys + 1] = string.sub(fields[i], " + (ATTR_FIELD_PREFIX.length() + 1) + ")\n" +
+        "  end\n" +
+        "end\n" +
+        "return attrKeys";
 
     public static final String GET_ATTR_SCRIPT =
         "if redis.call('PTTL', KEYS[1]) <= 0 then\n" +
@@ -156,7 +337,10 @@ public abstract class RedissonSessionScript {
         "  return " + makeError(RETURN_CODE_STOPPED) + "\n" +
         "end\n" +
         "\n" +
-        "return redis.call('HGET', KEYS[2], ARGV[1])";
+        ATTR_FIELD_PREFIX_DEFINE +
+        SPILL_KEY_DEFINE +
+        SPILL_LOAD_DEFINE +
+        "return load(ARGV[1], redis.call('HGET', KEYS[2], prefix .. ARGV[1]))";
 
     public static final String REMOVE_ATTR_SCRIPT =
         "if redis.call('PTTL', KEYS[1]) <= 0 then\n" +
@@ -167,13 +351,23 @@ public abstract class RedissonSessionScript {
         "  return " + makeError(RETURN_CODE_STOPPED) + "\n" +
         "end\n" +
         "\n" +
-        "local attr = redis.call('HGET', KEYS[2], ARGV[1])\n" +
+        ATTR_FIELD_PREFIX_DEFINE +
+        SPILL_KEY_DEFINE +
+        SPILL_LOAD_DEFINE +
+        SPILL_REMOVE_DEFINE +
+        "local attr = load(ARGV[1], redis.call('HGET', KEYS[2], prefix .. ARGV[1]))\n" +
         "if attr ~= nil then\n" +
-        "  redis.call('HDEL', KEYS[2], ARGV[1])\n" +
+        "  redis.call('HDEL', KEYS[2], prefix .. ARGV[1])\n" +
         "end\n" +
+        "unspill(ARGV[1])\n" +
         "\n" +
         "return attr";
 
+    /**
+     * <p>Set an attribute. ARGV[1] and ARGV[2] are its field and value, the optional ARGV[3] is
+     * the length from which values are spilled to a side key, '0' to never spill. If the optional
+     * ARGV[4] is '1', the previous value is returned.</p>
+     */
     public static final String SET_ATTR_SCRIPT =
         "local pttl = redis.call('PTTL', KEYS[1])\n" +
         "if pttl <= 0 then\n" +
@@ -184,19 +378,405 @@ public abstract class RedissonSessionScript {
         "  return " + makeError(RETURN_CODE_STOPPED) + "\n" +
         "end\n" +
         "\n" +
-        "redis.call('HSET', KEYS[2], ARGV[1], ARGV[2])\n" +
+        ATTR_FIELD_PREFIX_DEFINE +
+        SPILL_KEY_DEFINE +
+        SPILL_LOAD_DEFINE +
+        SPILL_REMOVE_DEFINE +
+        SPILL_STORE_DEFINE +
+        "local previous = nil\n" +
+        "if ARGV[4] == '1' then\n" +
+        "  previous = load(ARGV[1], redis.call('HGET', KEYS[2], prefix .. ARGV[1]))\n" +
+        "end\n" +
+        "local value = store(ARGV[1], ARGV[2], tonumber(ARGV[3] or '0'), pttl)\n" +
+        "redis.call('HSET', KEYS[2], prefix .. ARGV[1], value)\n" +
         "-- redis auto delete key of hash when it is empty.\n" +
         "-- then, expire time of the hash will be lost.\n" +
-        "if redis.call('PTTL', KEYS[2]) <= 0 then\n" +
+        "if KEYS[2] ~= KEYS[1] and redis.call('PTTL', KEYS[2]) <= 0 then\n" +
         "  redis.call('PEXPIRE', KEYS[2], pttl)\n" +
-        "end";
+        "end\n" +
+        "\n" +
+        "return previous";
 
+    /**
+     * <p>Apply a batch of attribute changes.</p>
+     * <p>
+     *  ARGV[1] is the number n of attributes to set, ARGV[2] the length from which values are
+     *  spilled to side keys, '0' to never spill, ARGV[3] a field whose previous value is
+     *  returned, '' for none, ARGV[4..2n+3] are the fields and values to set, the remaining
+     *  arguments are fields of attributes to remove.
+     * </p>
+     */
+    public static final String UPDATE_ATTRS_SCRIPT =
+        "local pttl = redis.call('PTTL', KEYS[1])\n" +
+        "if pttl <= 0 then\n" +
+        "  return " + makeError(RETURN_CODE_EXPIRED) + "\n" +
+        "end\n" +
+        "\n" +
+        "if redis.call('HEXISTS', KEYS[1], '\"" + INFO_STOP_KEY + "\"') == 1 then\n" +
+        "  return " + makeError(RETURN_CODE_STOPPED) + "\n" +
+        "end\n" +
+        "\n" +
+        ATTR_FIELD_PREFIX_DEFINE +
+        SPILL_KEY_DEFINE +
+        SPILL_LOAD_DEFINE +
+        SPILL_REMOVE_DEFINE +
+        SPILL_STORE_DEFINE +
+        "local previous = nil\n" +
+        "if ARGV[3] ~= '' then\n" +
+        "  previous = load(ARGV[3], redis.call('HGET', KEYS[2], prefix .. ARGV[3]))\n" +
+        "end\n" +
+        "local threshold = tonumber(ARGV[2])\n" +
+        "local setEnd = tonumber(ARGV[1]) * 2 + 3\n" +
+        "if setEnd > 3 then\n" +
+        "  local fieldValues = {}\n" +
+        "  for i = 4, setEnd, 2 do\n" +
+        "    fieldValues[#fieldValues + 1] = prefix .. ARGV[i]\n" +
+        "    fieldValues[#fieldValues + 1] = store(ARGV[i], ARGV[i + 1], threshold, pttl)\n" +
+        "  end\n" +
+        "  redis.call('HMSET', KEYS[2], unpack(fieldValues))\n" +
+        "end\n" +
+        "if #ARGV > setEnd then\n" +
+        "  local fields = {}\n" +
+        "  for i = setEnd + 1, #ARGV do\n" +
+        "    fields[#fields + 1] = prefix .. ARGV[i]\n" +
+        "    unspill(ARGV[i])\n" +
+        "  end\n" +
+        "  redis.call('HDEL', KEYS[2], unpack(fields))\n" +
+        "end\n" +
+        "\n" +
+        "-- redis auto delete key of hash when it is empty.\n" +
+        "-- then, expire time of the hash will be lost.\n" +
+        "if KEYS[2] ~= KEYS[1] and redis.call('PTTL', KEYS[2]) <= 0 then\n" +
+        "  redis.call('PEXPIRE', KEYS[2], pttl)\n" +
+        "end\n" +
+        "\n" +
+        "return previous";
+
+    /**
+     * <p>Get several attributes in one call.</p>
+     * <p>
+     *  Returns the fields and values of the attributes. If ARGV[1] is '1', all attributes are
+     *  returned, otherwise only the attributes named by ARGV[2..n] that exist.
+     * </p>
+     */
+    public static final String GET_ATTRS_SCRIPT =
+        "if redis.call('PTTL', KEYS[1]) <= 0 then\n" +
+        "  return " + makeError(RETURN_CODE_EXPIRED) + "\n" +
+        "end\n" +
+        "\n" +
+        "if redis.call('HEXISTS', KEYS[1], '\"" + INFO_STOP_KEY + "\"') == 1 then\n" +
+        "  return " + makeError(RETURN_CODE_STOPPED) + "\n" +
+        "end\n" +
+        "\n" +
+        ATTR_FIELD_PREFIX_DEFINE +
+        SPILL_KEY_DEFINE +
+        SPILL_LOAD_DEFINE +
+        "local result = {}\n" +
+        "if ARGV[1] == '1' then\n" +
+        "  local attrs = redis.call('HGETALL', KEYS[2])\n" +
+        "  for i = 1, #attrs, 2 do\n" +
+        "    if prefix == '' then\n" +
+        "      result[#result + 1] = attrs[i]\n" +
+        "      result[#result + 1] = load(attrs[i], attrs[i + 1])\n" +
+        "    elseif string.sub(attrs[i], 1, #prefix) == prefix then\n" +
+        "      local field = string.sub(attrs[i], #prefix + 1)\n" +
+        "      result[#result + 1] = field\n" +
+        "      result[#result + 1] = load(field, attrs[i + 1])\n" +
+        "    end\n" +
+        "  end\n" +
+        "elseif #ARGV > 1 then\n" +
+        "  local fields = {}\n" +
+        "  for i = 2, #ARGV do\n" +
+        "    fields[#fields + 1] = prefix .. ARGV[i]\n" +
+        "  end\n" +
+        "  local values = redis.call('HMGET', KEYS[2], unpack(fields))\n" +
+        "  for i = 1, #fields do\n" +
+        "    if values[i] then\n" +
+        "      result[#result + 1] = ARGV[i + 1]\n" +
+        "      result[#result + 1] = load(ARGV[i + 1], values[i])\n" +
+        "    end\n" +
+        "  end\n" +
+        "end\n" +
+        "\n" +
+        "return result";
+
+    /**
+     * <p>Load the info hash and the attributes of a session in one call.</p>
+     * <p>
+     *  Returns the start, stop, last access timestamps, the timeout and the host, followed by
+     *  the attribute fields and values. If ARGV[1] is '1', all attributes are returned,
+     *  otherwise only the attributes named by ARGV[2..n] that exist.
+     * </p>
+     */
+    public static final String GET_SNAPSHOT_SCRIPT =
+        "if redis.call('PTTL', KEYS[1]) <= 0 then\n" +
+        "  return " + makeError(RETURN_CODE_EXPIRED) + "\n" +
+        "end\n" +
+        "\n" +
+        "local result = redis.call('HMGET', KEYS[1], '\"" + INFO_START_KEY + "\"', '\"" + INFO_STOP_KEY + "\"',\n" +
+        "  '\"" + INFO_LAST_KEY + "\"', '\"" + INFO_TIMEOUT_KEY + "\"', '\"" + INFO_HOST_KEY + "\"')\n" +
+        "\n" +
+        ATTR_FIELD_PREFIX_DEFINE +
+        SPILL_KEY_DEFINE +
+        SPILL_LOAD_DEFINE +
+        "if ARGV[1] == '1' then\n" +
+        "  local attrs = redis.call('HGETALL', KEYS[2])\n" +
+        "  for i = 1, #attrs, 2 do\n" +
+        "    if prefix == '' then\n" +
+        "      result[#result + 1] = attrs[i]\n" +
+        "      result[#result + 1] = load(attrs[i], attrs[i + 1])\n" +
+        "    elseif string.sub(attrs[i], 1, #prefix) == prefix then\n" +
+        "      local field = string.sub(attrs[i], #prefix + 1)\n" +
+        "      result[#result + 1] = field\n" +
+        "      result[#result + 1] = load(field, attrs[i + 1])\n" +
+        "    end\n" +
+        "  end\n" +
+        "elseif #ARGV > 1 then\n" +
+        "  local fields = {}\n" +
+        "  for i = 2, #ARGV do\n" +
+        "    fields[#fields + 1] = prefix .. ARGV[i]\n" +
+        "  end\n" +
+        "  local values = redis.call('HMGET', KEYS[2], unpack(fields))\n" +
+        "  for i = 1, #fields do\n" +
+        "    if values[i] then\n" +
+        "      result[#result + 1] = ARGV[i + 1]\n" +
+        "      result[#result + 1] = load(ARGV[i + 1], values[i])\n" +
+        "    end\n" +
+        "  end\n" +
+        "end\n" +
+        "\n" +
+        "return result";
+
+    /**
+     * <p>Delete a session and its side keys. If ARGV[1] is given, the attribute of that field is
+     * returned, so the caller can clean up the principal index of the session.</p>
+     */
     public static final String DELETE_SCRIPT =
-        "redis.call('UNLINK', KEYS[1], KEYS[2])";
+        SPILL_KEY_DEFINE +
+        SPILL_LOAD_DEFINE +
+        "local attr = false\n" +
+        "if ARGV[1] then\n" +
+        ATTR_FIELD_PREFIX_DEFINE +
+        "  attr = load(ARGV[1], redis.call('HGET', KEYS[2], prefix .. ARGV[1]))\n" +
+        "end\n" +
+        "redis.call('UNLINK', KEYS[1], KEYS[2])\n" +
+        "local fields = redis.call('SMEMBERS', spillKey)\n" +
+        "for i = 1, #fields do\n" +
+        "  redis.call('UNLINK', sideKey(fields[i]))\n" +
+        "end\n" +
+        "if #fields > 0 then\n" +
+        "  redis.call('UNLINK', spillKey)\n" +
+        "end\n" +
+        "if KEYS[3] then\n" +
+        "  redis.call('ZREM', KEYS[3], KEYS[1])\n" +
+        "end\n" +
+        "return attr";
+
+    /**
+     * <p>Stop and delete a session in one call, e.g. on logout, instead of {@link #STOP_SCRIPT}
+     * writing a stop timestamp which {@link #DELETE_SCRIPT} deletes right after. The keys are
+     * deleted whatever the state of the session, like a stop followed by a delete.</p>
+     * <p>
+     *  Returns an array of the state of the session before, {@link #STATUS_OK} or the
+     *  {@link #RETURN_CODE_EXPIRED expired} or {@link #RETURN_CODE_STOPPED stopped} code as a
+     *  number, and the attribute of field ARGV[1] like {@link #DELETE_SCRIPT}.
+     * </p>
+     */
+    public static final String STOP_DELETE_SCRIPT =
+        "local status = " + STATUS_OK + "\n" +
+        "if redis.call('PTTL', KEYS[1]) <= 0 then\n" +
+        "  status = " + RETURN_CODE_EXPIRED + "\n" +
+        "elseif redis.call('HEXISTS', KEYS[1], '\"" + INFO_STOP_KEY + "\"') == 1 then\n" +
+        "  status = " + RETURN_CODE_STOPPED + "\n" +
+        "end\n" +
+        "local function delete()\n" +
+        DELETE_SCRIPT + "\n" +
+        "end\n" +
+        "return {status, delete()}";
+
+    /**
+     * <p>Move the attributes of a session stored in the legacy two-key layout (KEYS[2]) into the
+     * single hash (KEYS[1]), then return the remaining time to live like {@link #READ_SCRIPT}.</p>
+     */
+    public static final String MIGRATE_SCRIPT =
+        "local pttl = redis.call('PTTL', KEYS[1])\n" +
+        "if pttl > 0 and redis.call('EXISTS', KEYS[2]) == 1 then\n" +
+        "  local attrs = redis.call('HGETALL', KEYS[2])\n" +
+        "  if #attrs > 0 then\n" +
+        "    local fieldValues = {}\n" +
+        "    for i = 1, #attrs, 2 do\n" +
+        "      fieldValues[#fieldValues + 1] = '" + ATTR_FIELD_PREFIX + "' .. attrs[i]\n" +
+        "      fieldValues[#fieldValues + 1] = attrs[i + 1]\n" +
+        "    end\n" +
+        "    redis.call('HMSET', KEYS[1], unpack(fieldValues))\n" +
+        "  end\n" +
+        "  redis.call('UNLINK', KEYS[2])\n" +
+        "end\n" +
+        "\n" +
+        "return pttl";
 
     public static final String READ_SCRIPT =
         "return redis.call('PTTL', KEYS[1])";
 
+    /**
+     * <p>Move a session to a new id, keeping its remaining time to live.</p>
+     * <p>
+     *  KEYS[1] and KEYS[2] are the keys of the session, KEYS[3] and KEYS[4] the keys of the new
+     *  id, KEYS[5] the optional active session index. ARGV[1] is the new id. All keys, including
+     *  side keys, must be on one node, see {@link #DUMP_SESSION_SCRIPT} for redis cluster.
+     * </p>
+     */
+    public static final String RENAME_SCRIPT =
+        "if redis.call('PTTL', KEYS[1]) <= 0 then\n" +
+        "  return " + makeError(RETURN_CODE_EXPIRED) + "\n" +
+        "end\n" +
+        "\n" +
+        "if redis.call('HEXISTS', KEYS[1], '\"" + INFO_STOP_KEY + "\"') == 1 then\n" +
+        "  return " + makeError(RETURN_CODE_STOPPED) + "\n" +
+        "end\n" +
+        "\n" +
+        "if redis.call('EXISTS', KEYS[3]) == 1 then\n" +
+        "  return " + makeError(RETURN_CODE_INVALID) + "\n" +
+        "end\n" +
+        "\n" +
+        "redis.call('RENAME', KEYS[1], KEYS[3])\n" +
+        "if KEYS[1] ~= KEYS[2] and redis.call('EXISTS', KEYS[2]) == 1 then\n" +
+        "  redis.call('RENAME', KEYS[2], KEYS[4])\n" +
+        "end\n" +
+        "redis.call('HSET', KEYS[3], '\"" + INFO_ID_KEY + "\"', ARGV[1])\n" +
+        SPILL_KEY_DEFINE +
+        "local newSpillKey = spillKeyOf(KEYS[3])\n" +
+        "local fields = redis.call('SMEMBERS', spillKey)\n" +
+        "for i = 1, #fields do\n" +
+        "  if redis.call('EXISTS', sideKey(fields[i])) == 1 then\n" +
+        "    redis.call('RENAME', sideKey(fields[i]), sideKey(fields[i], newSpillKey))\n" +
+        "  end\n" +
+        "end\n" +
+        "if #fields > 0 then\n" +
+        "  redis.call('RENAME', spillKey, newSpillKey)\n" +
+        "end\n" +
+        "if KEYS[5] then\n" +
+        "  local score = redis.call('ZSCORE', KEYS[5], KEYS[1])\n" +
+        "  if score then\n" +
+        "    redis.call('ZREM', KEYS[5], KEYS[1])\n" +
+        "    redis.call('ZADD', KEYS[5], score, KEYS[3])\n" +
+        "  end\n" +
+        "end";
+
+    /**
+     * <p>Serialize a session to be restored under a new id by {@link #RESTORE_SESSION_SCRIPT},
+     * when the keys of both ids are in different slots of redis cluster. Returns the remaining
+     * time to live and the DUMP of KEYS[1], then those of KEYS[2] if it is a separate key or two
+     * empty strings, then the field, time to live and DUMP of each side key.</p>
+     */
+    public static final String DUMP_SESSION_SCRIPT =
+        "local pttl = redis.call('PTTL', KEYS[1])\n" +
+        "if pttl <= 0 then\n" +
+        "  return " + makeError(RETURN_CODE_EXPIRED) + "\n" +
+        "end\n" +
+        "\n" +
+        "if redis.call('HEXISTS', KEYS[1], '\"" + INFO_STOP_KEY + "\"') == 1 then\n" +
+        "  return " + makeError(RETURN_CODE_STOPPED) + "\n" +
+        "end\n" +
+        "\n" +
+        "local result = {pttl, redis.call('DUMP', KEYS[1]), '', ''}\n" +
+        "if KEYS[1] ~= KEYS[2] then\n" +
+        "  local attrPttl = redis.call('PTTL', KEYS[2])\n" +
+        "  if attrPttl > 0 then\n" +
+        "    result[3] = attrPttl\n" +
+        "    result[4] = redis.call('DUMP', KEYS[2])\n" +
+        "  end\n" +
+        "end\n" +
+        SPILL_KEY_DEFINE +
+        "local fields = redis.call('SMEMBERS', spillKey)\n" +
+        "for i = 1, #fields do\n" +
+        "  local sidePttl = redis.call('PTTL', sideKey(fields[i]))\n" +
+        "  if sidePttl > 0 then\n" +
+        "    result[#result + 1] = fields[i]\n" +
+        "    result[#result + 1] = sidePttl\n" +
+        "    result[#result + 1] = redis.call('DUMP', sideKey(fields[i]))\n" +
+        "  end\n" +
+        "end\n" +
+        "return result";
+
+    /**
+     * <p>Restore a session dumped by {@link #DUMP_SESSION_SCRIPT} under a new id. ARGV[1..2] are
+     * the time to live and the dump of KEYS[1], ARGV[3..4] those of KEYS[2] or empty, ARGV[5]
+     * is the new id, ARGV[6] the expiry time the session is added to the optional active session
+     * index KEYS[3] with, and the remaining arguments are the field, time to live and dump of
+     * each side key.</p>
+     */
+    public static final String RESTORE_SESSION_SCRIPT =
+        "redis.call('RESTORE', KEYS[1], ARGV[1], ARGV[2])\n" +
+        "if ARGV[3] ~= '' then\n" +
+        "  redis.call('RESTORE', KEYS[2], ARGV[3], ARGV[4])\n" +
+        "end\n" +
+        "redis.call('HSET', KEYS[1], '\"" + INFO_ID_KEY + "\"', ARGV[5])\n" +
+        "if KEYS[3] then\n" +
+        "  redis.call('ZADD', KEYS[3], ARGV[6], KEYS[1])\n" +
+        "end\n" +
+        SPILL_KEY_DEFINE +
+        "for i = 7, #ARGV, 3 do\n" +
+        "  redis.call('RESTORE', sideKey(ARGV[i]), ARGV[i + 1], ARGV[i + 2])\n" +
+        "  redis.call('SADD', spillKey, ARGV[i])\n" +
+        "end\n" +
+        "if #ARGV > 6 then\n" +
+        "  redis.call('PEXPIRE', spillKey, ARGV[1])\n" +
+        "end";
+
+    /**
+     * <p>Check an attribute hash (KEYS[2]) against its session info hash (KEYS[1]), see
+     * {@link RedissonSessionReaper}. The attribute hash of a live session is given the time to
+     * live of the session if it has none or a longer one, and 2 is returned. The attribute hash
+     * and the side keys of a session whose info hash is gone are deleted, and 1 is returned.
+     * Otherwise 0 is returned.</p>
+     */
+    public static final String REAP_ATTR_SCRIPT =
+        "local pttl = redis.call('PTTL', KEYS[1])\n" +
+        "if pttl ~= -2 then\n" +
+        "  local attrPttl = redis.call('PTTL', KEYS[2])\n" +
+        "  if pttl > 0 and (attrPttl == -1 or attrPttl > pttl) then\n" +
+        "    redis.call('PEXPIRE', KEYS[2], pttl)\n" +
+        "    return 2\n" +
+        "  end\n" +
+        "  return 0\n" +
+        "end\n" +
+        "if redis.call('UNLINK', KEYS[2]) == 0 then\n" +
+        "  return 0\n" +
+        "end\n" +
+        SPILL_KEY_DEFINE +
+        "local fields = redis.call('SMEMBERS', spillKey)\n" +
+        "for i = 1, #fields do\n" +
+        "  redis.call('UNLINK', sideKey(fields[i]))\n" +
+        "end\n" +
+        "if #fields > 0 then\n" +
+        "  redis.call('UNLINK', spillKey)\n" +
+        "end\n" +
+        "return 1";
+
+    /**
+     * <p>Get the status variant of a script, where error replies of the script are returned as
+     * a status, so expected session states are decoded without a redis exception.</p>
+     *
+     * @param script a script of this class
+     * @return the status variant of {@code script}
+     */
+    public static String toStatusScript(String script) {
+        return statusScripts.computeIfAbsent(script, text ->
+            "local function run()\n" +
+            text + "\n" +
+            "end\n" +
+            "local res = run()\n" +
+            "if type(res) == 'table' then\n" +
+            "  if res.err then\n" +
+            "    return {tonumber(res.err)}\n" +
+            "  end\n" +
+            "  table.insert(res, 1, " + STATUS_OK + ")\n" +
+            "  return res\n" +
+            "end\n" +
+            "return {" + STATUS_OK + ", res}");
+    }
+
     private static String makeError(String errMsg) {
         return "redis.error_reply(\"" + errMsg + "\")";
     }
@@ -0,0 +1,189 @@
+package com.github.streamone.shiro.session;
+
+import org.redisson.RedissonScript;
+import org.redisson.api.RFuture;
+import org.redisson.api.RScript;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.RedisException;
+import org.redisson.client.codec.Codec;
+import org.redisson.client.codec.StringCodec;
+import org.redisson.misc.RPromise;
+import org.redisson.misc.RedissonPromise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Runs the session scripts by their SHA1 digests with EVALSHA, instead of sending the
+ * whole script text with every EVAL.</p>
+ * <p>
+ *  The scripts of {@link RedissonSessionScript} and their
+ *  {@link RedissonSessionScript#toStatusScript(String) status variants} are loaded by
+ *  {@link #load()}. If redis answers NOSCRIPT, e.g. after a failover or SCRIPT FLUSH, the
+ *  script is loaded again and the call is retried once.
+ * </p>
+ *
+ * @author streamone
+ */
+public class RedissonSessionScriptRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedissonSessionScriptRegistry.class);
+
+    private static final String NOSCRIPT_ERROR = "NOSCRIPT";
+
+    private final RedissonClient redisson;
+
+    private final ConcurrentMap<String, String> digests = new ConcurrentHashMap<>();
+
+    public RedissonSessionScriptRegistry(RedissonClient redisson) {
+        if (redisson == null) {
+            throw new IllegalArgumentException("Arguments must not be null!");
+        }
+        this.redisson = redisson;
+    }
+
+    /**
+     * <p>Load all scripts of {@link RedissonSessionScript} on every master node.</p>
+     */
+    public void load() {
+        RScript script = this.redisson.getScript(StringCodec.INSTANCE);
+        for (String text : getSessionScripts()) {
+            String sha = script.scriptLoad(text);
+            this.digests.put(text, sha);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Loaded {} session scripts.", this.digests.size());
+        }
+    }
+
+    /**
+     * <p>Evaluate a script by its digest, loading it on the node of {@code key} if
+     * it is missing there.</p>
+     *
+     * @param codec the codec of arguments and result
+     * @param key the key used to locate the redis node
+     * @param mode the execution mode
+     * @param text the script text
+     * @param returnType the type of the result
+     * @param keys the keys of the script
+     * @param values the arguments of the script
+     * @param <R> the type of the result
+     * @return the result of the script
+     */
+    public <R> R eval(Codec codec, String key, RScript.Mode mode, String text,
+        RScript.ReturnType returnType, List<Object> keys, Object... values) {
+        RedissonScript script = (RedissonScript) this.redisson.getScript(codec);
+        String sha = getDigest(text);
+        try {
+            return script.evalSha(key, mode, sha, returnType, keys, values);
+        } catch (RedisException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith(NOSCRIPT_ERROR)) {
+                throw e;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Script {} is missing, load it again.", sha);
+            }
+            script.scriptLoad(key, text);
+            return script.evalSha(key, mode, sha, returnType, keys, values);
+        }
+    }
+
+    /**
+     * <p>Asynchronous counterpart of {@link #eval(Codec, String, RScript.Mode, String,
+     * RScript.ReturnType, List, Object...)}.</p>
+     *
+     * @param codec the codec of arguments and result
+     * @param key the key used to locate the redis node
+     * @param mode the execution mode
+     * @param text the script text
+     * @param returnType the type of the result
+     * @param keys the keys of the script
+     * @param values the arguments of the script
+     * @param <R> the type of the result
+     * @return a future of the result
+     */
+    public <R> RFuture<R> evalAsync(Codec codec, String key, RScript.Mode mode, String text,
+        RScript.ReturnType returnType, List<Object> keys, Object... values) {
+        RedissonScript script = (RedissonScript) this.redisson.getScript(codec);
+        String sha = getDigest(text);
+        RPromise<R> result = new RedissonPromise<>();
+        RFuture<R> future = script.evalShaAsync(key, mode, sha, returnType, keys, values);
+        future.onComplete((res, e) -> {
+            if (e == null) {
+                result.trySuccess(res);
+                return;
+            }
+            if (!(e instanceof RedisException) || e.getMessage() == null
+                || !e.getMessage().startsWith(NOSCRIPT_ERROR)) {
+                result.tryFailure(e);
+                return;
+            }
+            script.scriptLoadAsync(key, text).onComplete((loaded, loadError) -> {
+                if (loadError != null) {
+                    result.tryFailure(loadError);
+                    return;
+                }
+                RFuture<R> retry = script.evalShaAsync(key, mode, sha, returnType, keys, values);
+                retry.onComplete((retryRes, retryError) -> {
+                    if (retryError != null) {
+                        result.tryFailure(retryError);
+                    } else {
+                        result.trySuccess(retryRes);
+                    }
+                });
+            });
+        });
+        return result;
+    }
+
+    private String getDigest(String text) {
+        String sha = this.digests.get(text);
+        if (sha == null) {
+            sha = sha1(text);
+            this.digests.put(text, sha);
+        }
+        return sha;
+    }
+
+    static Collection<String> getSessionScripts() {
+        List<String> scripts = new ArrayList<>();
+        for (Field field : RedissonSessionScript.class.getFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) && field.getType() == String.class
+                && field.getName().endsWith("_SCRIPT")) {
+                try {
+                    String text = (String) field.get(null);
+                    scripts.add(text);
+                    scripts.add(RedissonSessionScript.toStatusScript(text));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return scripts;
+    }
+
+    static String sha1(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sha = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sha.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sha.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.streamone.shiro.session;
+
+import org.redisson.client.codec.Codec;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * <p>An in-memory copy of the session info hash and (part of) the attribute hash,
+ * loaded by a single script call and kept for the lifetime of a request.</p>
+ *
+ * <p>Attributes which are known to be absent are kept as {@code null} values, so a
+ * partially loaded snapshot can still answer for every key it was asked to load.</p>
+ *
+ * <p>Attribute values are kept encoded until they are first read.</p>
+ *
+ * @author streamone
+ */
+class RedissonSessionSnapshot {
+
+    private Date startTimestamp;
+    private Date stopTimestamp;
+    private Date lastAccessTime;
+    private Long timeout;
+    private String host;
+
+    private RedissonSessionAttributes attributes = new RedissonSessionAttributes();
+    private final boolean complete;
+    private long estimatedSize;
+
+    RedissonSessionSnapshot(boolean complete) {
+        this.complete = complete;
+    }
+
+    /**
+     * @return a copy of this snapshot, sharing the attribute values which are not decoded yet
+     */
+    RedissonSessionSnapshot copy() {
+        RedissonSessionSnapshot copy = new RedissonSessionSnapshot(this.complete);
+        copy.startTimestamp = this.startTimestamp;
+        copy.stopTimestamp = this.stopTimestamp;
+        copy.lastAccessTime = this.lastAccessTime;
+        copy.timeout = this.timeout;
+        copy.host = this.host;
+        copy.attributes = this.attributes.copy();
+        copy.estimatedSize = this.estimatedSize;
+        return copy;
+    }
+
+    /**
+     * @return the size in bytes of the encoded session, as loaded from redis
+     */
+    long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    void setEstimatedSize(long estimatedSize) {
+        this.estimatedSize = estimatedSize;
+    }
+
+    /**
+     * @return {@code true} if all attributes of the session were loaded
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @param key the attribute key
+     * @return {@code true} if the value of the attribute can be answered by this snapshot
+     */
+    boolean isKnown(Object key) {
+        return complete || attributes.containsKey(key);
+    }
+
+    Object getAttribute(Object key) {
+        return attributes.get(key);
+    }
+
+    void putAttribute(Object key, Object value) {
+        attributes.set(key, value);
+    }
+
+    /**
+     * @param keys the attribute keys, {@code null} for all attributes
+     * @return the attributes of {@code keys} which are not {@code null}, decoded on first read
+     */
+    Map<Object, Object> getAttributes(Collection<Object> keys) {
+        return attributes.copy(keys);
+    }
+
+    void putEncodedAttribute(Object key, byte[] value, Codec codec) {
+        attributes.putEncoded(key, value, codec);
+    }
+
+    Collection<Object> getAttributeKeys() {
+        Collection<Object> keys = new ArrayList<>(attributes.size());
+        for (Object key : attributes.keySet()) {
+            if (attributes.hasValue(key)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    boolean isStopped() {
+        return stopTimestamp != null;
+    }
+
+    Date getStartTimestamp() {
+        return startTimestamp;
+    }
+
+    void setStartTimestamp(Date startTimestamp) {
+        this.startTimestamp = startTimestamp;
+    }
+
+    Date getStopTimestamp() {
+        return stopTimestamp;
+    }
+
+    void setStopTimestamp(Date stopTimestamp) {
+        this.stopTimestamp = stopTimestamp;
+    }
+
+    Date getLastAccessTime() {
+        return lastAccessTime;
+    }
+
+    void setLastAccessTime(Date lastAccessTime) {
+        this.lastAccessTime = lastAccessTime;
+    }
+
+    Long getTimeout() {
+        return timeout;
+    }
+
+    void setTimeout(Long timeout) {
+        this.timeout = timeout;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    void setHost(String host) {
+        this.host = host;
+    }
+}
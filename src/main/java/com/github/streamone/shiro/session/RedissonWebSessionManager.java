@@ -1,5 +1,7 @@
 package com.github.streamone.shiro.session;
 
+import org.apache.shiro.authz.AuthorizationException;
+import org.apache.shiro.session.InvalidSessionException;
 import org.apache.shiro.session.Session;
 import org.apache.shiro.session.mgt.DelegatingSession;
 import org.apache.shiro.session.mgt.SessionContext;
@@ -19,6 +21,11 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * <p>Web-application capable {@link RedissonSessionManager RedissonSessionManager}.</p>
@@ -29,9 +36,19 @@ public class RedissonWebSessionManager extends RedissonSessionManager implements
 
     public static final Logger logger = LoggerFactory.getLogger(RedissonWebSessionManager.class);
 
+    /**
+     * <p>Request attribute holding a map of the sessions resolved for the current request by their
+     * ids. A session whose id changed during the request is kept under its previous id as well,
+     * so lookups by the previous id still resolve to it.</p>
+     */
+    public static final String REQUEST_SESSIONS_KEY = RedissonWebSessionManager.class.getName() + ".SESSIONS";
+
     private Cookie sessionIdCookie;
     private boolean sessionIdCookieEnabled;
     private boolean sessionIdUrlRewritingEnabled;
+    private boolean writeBufferEnabled = false;
+    private boolean requestCacheEnabled = false;
+    private boolean lazyCreationEnabled = false;
 
     public RedissonWebSessionManager() {
         Cookie cookie = new SimpleCookie(ShiroHttpSession.DEFAULT_SESSION_ID_NAME);
@@ -176,6 +193,30 @@ public class RedissonWebSessionManager extends RedissonSessionManager implements
         return name;
     }
 
+    /**
+     * <p>With {@link #setLazyCreationEnabled(boolean) lazy creation}, the new session is kept in
+     * the request and written to redis only when its first attribute is written.</p>
+     */
+    @Override
+    protected Session createSession(SessionContext context) throws AuthorizationException {
+        if (!this.lazyCreationEnabled || !WebUtils.isWeb(context)
+            || !(this.sessionDAO instanceof RedissonSessionDao)) {
+            return super.createSession(context);
+        }
+
+        Session s = newSessionInstance(context);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Creating deferred session instance [" + s + "]");
+        }
+        RedissonSession session = ((RedissonSessionDao) this.sessionDAO).createDeferred(s);
+        if (this.writeBufferEnabled) {
+            session.setWriteBuffered(true);
+        }
+        //the deferred session can't be read by its id, so it is always kept in the request
+        getRequestSessions(WebUtils.getRequest(context), true).put(session.getId(), session);
+        return session;
+    }
+
     @Override
     protected Session createExposedSession(Session session, SessionContext context) {
         if (!WebUtils.isWeb(context)) {
@@ -232,6 +273,116 @@ public class RedissonWebSessionManager extends RedissonSessionManager implements
         request.setAttribute(ShiroHttpServletRequest.REFERENCED_SESSION_IS_NEW, Boolean.TRUE);
     }
 
+    /**
+     * <p>With the {@link #setRequestCacheEnabled(boolean) request cache}, the sessions resolved
+     * for a request are kept in the request by their ids, so that every call on the exposed
+     * {@link DelegatingSession} during the request is served by the same instance, without
+     * checking the existence of the session again. Each operation of a {@link RedissonSession}
+     * checks whether the session has expired or been stopped by itself.</p>
+     * <p>Sessions holding a snapshot or buffering writes are always kept in the request.</p>
+     */
+    @Override
+    protected Session doGetSession(SessionKey key) throws InvalidSessionException {
+        if (!WebUtils.isWeb(key)) {
+            return super.doGetSession(key);
+        }
+
+        ServletRequest request = WebUtils.getRequest(key);
+        Map<Serializable, Session> sessions = getRequestSessions(request, false);
+        if (sessions != null) {
+            Serializable sessionId = getSessionId(key);
+            Session cached = sessionId != null ? sessions.get(sessionId) : null;
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Session s = super.doGetSession(key);
+        if (s instanceof RedissonSession) {
+            RedissonSession redissonSession = (RedissonSession) s;
+            if (this.writeBufferEnabled) {
+                redissonSession.setWriteBuffered(true);
+            }
+            if (this.requestCacheEnabled || redissonSession.isSnapshotLoaded()
+                || redissonSession.isWriteBuffered()) {
+                getRequestSessions(request, true).put(s.getId(), s);
+            }
+        }
+        return s;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Serializable, Session> getRequestSessions(ServletRequest request, boolean create) {
+        Map<Serializable, Session> sessions = (Map<Serializable, Session>) request.getAttribute(REQUEST_SESSIONS_KEY);
+        if (sessions == null && create) {
+            sessions = new LinkedHashMap<>(4);
+            request.setAttribute(REQUEST_SESSIONS_KEY, sessions);
+        }
+        return sessions;
+    }
+
+    /**
+     * <p>Keep the session under its new id in the request, and re-issue the session id cookie.</p>
+     */
+    @Override
+    protected void onChangeSessionId(Session previous, Session session, SessionKey key) {
+        super.onChangeSessionId(previous, session, key);
+        if (!WebUtils.isWeb(key)) {
+            return;
+        }
+
+        ServletRequest request = WebUtils.getRequest(key);
+        if (this.writeBufferEnabled && session instanceof RedissonSession) {
+            ((RedissonSession) session).setWriteBuffered(true);
+        }
+        Map<Serializable, Session> sessions = getRequestSessions(request, true);
+        sessions.put(previous.getId(), session);
+        sessions.put(session.getId(), session);
+
+        if (WebUtils.isHttp(key) && isSessionIdCookieEnabled()) {
+            storeSessionId(session.getId(), WebUtils.getHttpRequest(key), WebUtils.getHttpResponse(key));
+        }
+    }
+
+    /**
+     * <p>Write the attribute changes buffered during the request to redis, for every session
+     * resolved by the request. All sessions are flushed even if one fails, then the first
+     * failure is thrown.</p>
+     *
+     * @param request the current request
+     * @see RedissonSessionFlushFilter
+     */
+    public void flush(ServletRequest request) {
+        Map<Serializable, Session> sessions = getRequestSessions(request, false);
+        if (sessions == null) {
+            return;
+        }
+
+        //a session whose id changed is kept under both ids
+        Set<Session> flushed = Collections.newSetFromMap(new IdentityHashMap<>());
+        RuntimeException failure = null;
+        for (Session session : sessions.values()) {
+            if (!(session instanceof RedissonSession) || !flushed.add(session)) {
+                continue;
+            }
+            try {
+                ((RedissonSession) session).flush();
+            } catch (InvalidSessionException e) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Session {} is no longer valid, discard buffered attribute changes.",
+                        session.getId());
+                }
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
     @Override
     public Serializable getSessionId(SessionKey key) {
         Serializable id = super.getSessionId(key);
@@ -250,6 +401,12 @@ public class RedissonWebSessionManager extends RedissonSessionManager implements
     @Override
     protected void onStop(Session session, SessionKey key) {
         super.onStop(session, key);
+        if (WebUtils.isWeb(key)) {
+            Map<Serializable, Session> sessions = getRequestSessions(WebUtils.getRequest(key), false);
+            if (sessions != null) {
+                sessions.values().removeIf(cached -> cached == session || session.getId().equals(cached.getId()));
+            }
+        }
         if (WebUtils.isHttp(key)) {
             HttpServletRequest request = WebUtils.getHttpRequest(key);
             HttpServletResponse response = WebUtils.getHttpResponse(key);
@@ -300,4 +457,50 @@ public class RedissonWebSessionManager extends RedissonSessionManager implements
     public void setSessionIdUrlRewritingEnabled(boolean sessionIdUrlRewritingEnabled) {
         this.sessionIdUrlRewritingEnabled = sessionIdUrlRewritingEnabled;
     }
+
+    public boolean isWriteBufferEnabled() {
+        return writeBufferEnabled;
+    }
+
+    /**
+     * <p>If enabled, attribute writes of a request are buffered and applied in one script call
+     * when the request finishes. A {@link RedissonSessionFlushFilter} must be configured to
+     * flush them.</p>
+     *
+     * @param writeBufferEnabled whether to buffer attribute writes per request
+     */
+    public void setWriteBufferEnabled(boolean writeBufferEnabled) {
+        this.writeBufferEnabled = writeBufferEnabled;
+    }
+
+    public boolean isRequestCacheEnabled() {
+        return requestCacheEnabled;
+    }
+
+    /**
+     * <p>If enabled, the existence of a session is checked once per request instead of once per
+     * call on the session. A session deleted meanwhile then fails on its next operation rather
+     * than on the lookup.</p>
+     *
+     * @param requestCacheEnabled whether to keep the session resolved for a request in the request
+     */
+    public void setRequestCacheEnabled(boolean requestCacheEnabled) {
+        this.requestCacheEnabled = requestCacheEnabled;
+    }
+
+    public boolean isLazyCreationEnabled() {
+        return lazyCreationEnabled;
+    }
+
+    /**
+     * <p>If enabled, a new session is written to redis when its first attribute is written,
+     * e.g. when the subject logs in, instead of when it is created. The session id cookie is
+     * still issued at once. Anonymous sessions which never store anything cost no round trip,
+     * and their ids are unknown to later requests, which start a new session.</p>
+     *
+     * @param lazyCreationEnabled whether to defer writing new sessions to redis
+     */
+    public void setLazyCreationEnabled(boolean lazyCreationEnabled) {
+        this.lazyCreationEnabled = lazyCreationEnabled;
+    }
 }
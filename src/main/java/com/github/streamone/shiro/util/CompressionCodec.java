@@ -0,0 +1,235 @@
+package com.github.streamone.shiro.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.redisson.client.codec.BaseCodec;
+import org.redisson.client.codec.Codec;
+import org.redisson.client.protocol.Decoder;
+import org.redisson.client.protocol.Encoder;
+import org.redisson.codec.JsonJacksonCodec;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>A codec compressing the values of another codec with deflate once they reach a size
+ * threshold, e.g. for {@code RedissonSessionDao#setCodec} or
+ * {@code RedissonShiroCacheManager#setCodec}.</p>
+ * <p>
+ *  A compressed value is stored as the {@link #HEADER header byte}, the length of the value
+ *  encoded by the inner codec as 4 bytes, and the deflate stream. Any other value is stored as
+ *  encoded by the inner codec, so small values cost nothing and values written before the codec
+ *  was enabled still decode. The header byte never starts valid UTF-8, hence no json or string
+ *  value; a value of a binary inner codec starting with it is always compressed to stay
+ *  unambiguous. Values which do not shrink are stored uncompressed.
+ * </p>
+ * <p>
+ *  Map keys are never compressed. The compression level trades CPU for size, from
+ *  {@link Deflater#BEST_SPEED} (the default) to {@link Deflater#BEST_COMPRESSION}.
+ * </p>
+ *
+ * @author streamone
+ */
+public class CompressionCodec extends BaseCodec {
+
+    public static final byte HEADER = (byte) 0xC1;
+
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    private static final int HEADER_SIZE = 5;
+
+    private final Codec innerCodec;
+
+    private final int threshold;
+
+    private final int level;
+
+    private final Encoder valueEncoder;
+
+    private final Decoder<Object> valueDecoder;
+
+    private final Encoder mapValueEncoder;
+
+    private final Decoder<Object> mapValueDecoder;
+
+    public CompressionCodec() {
+        this(new JsonJacksonCodec());
+    }
+
+    public CompressionCodec(ClassLoader classLoader) {
+        this(new JsonJacksonCodec(classLoader));
+    }
+
+    public CompressionCodec(ClassLoader classLoader, CompressionCodec codec) throws ReflectiveOperationException {
+        this(copy(classLoader, codec.innerCodec), codec.threshold, codec.level);
+    }
+
+    public CompressionCodec(Codec innerCodec) {
+        this(innerCodec, DEFAULT_THRESHOLD);
+    }
+
+    public CompressionCodec(Codec innerCodec, int threshold) {
+        this(innerCodec, threshold, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param innerCodec the codec of the values to compress
+     * @param threshold the size in bytes from which encoded values are compressed
+     * @param level the deflate compression level, from 1 to 9
+     */
+    public CompressionCodec(Codec innerCodec, int threshold, int level) {
+        if (innerCodec == null) {
+            throw new IllegalArgumentException("Inner codec must not be null!");
+        }
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative!");
+        }
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Level must be between 1 and 9!");
+        }
+        this.innerCodec = innerCodec;
+        this.threshold = threshold;
+        this.level = level;
+        this.valueEncoder = compressing(innerCodec.getValueEncoder());
+        this.valueDecoder = decompressing(innerCodec.getValueDecoder());
+        this.mapValueEncoder = compressing(innerCodec.getMapValueEncoder());
+        this.mapValueDecoder = decompressing(innerCodec.getMapValueDecoder());
+    }
+
+    @Override
+    public Decoder<Object> getValueDecoder() {
+        return this.valueDecoder;
+    }
+
+    @Override
+    public Encoder getValueEncoder() {
+        return this.valueEncoder;
+    }
+
+    @Override
+    public Decoder<Object> getMapValueDecoder() {
+        return this.mapValueDecoder;
+    }
+
+    @Override
+    public Encoder getMapValueEncoder() {
+        return this.mapValueEncoder;
+    }
+
+    @Override
+    public Decoder<Object> getMapKeyDecoder() {
+        return this.innerCodec.getMapKeyDecoder();
+    }
+
+    @Override
+    public Encoder getMapKeyEncoder() {
+        return this.innerCodec.getMapKeyEncoder();
+    }
+
+    @Override
+    public ClassLoader getClassLoader() {
+        return this.innerCodec.getClassLoader();
+    }
+
+    public Codec getInnerCodec() {
+        return innerCodec;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    private Encoder compressing(Encoder encoder) {
+        return in -> {
+            ByteBuf raw = encoder.encode(in);
+            int length = raw.readableBytes();
+            boolean tagged = length > 0 && raw.getByte(raw.readerIndex()) == HEADER;
+            if (length == 0 || (length < this.threshold && !tagged)) {
+                return raw;
+            }
+            ByteBuf out;
+            try {
+                out = compress(raw);
+            } catch (RuntimeException e) {
+                raw.release();
+                throw e;
+            }
+            if (out.readableBytes() >= length && !tagged) {
+                out.release();
+                return raw;
+            }
+            raw.release();
+            return out;
+        };
+    }
+
+    private Decoder<Object> decompressing(Decoder<Object> decoder) {
+        return (buf, state) -> {
+            if (buf.readableBytes() < HEADER_SIZE || buf.getByte(buf.readerIndex()) != HEADER) {
+                return decoder.decode(buf, state);
+            }
+            buf.skipBytes(1);
+            int length = buf.readInt();
+            byte[] input = new byte[buf.readableBytes()];
+            buf.readBytes(input);
+            return decoder.decode(Unpooled.wrappedBuffer(decompress(input, length)), state);
+        };
+    }
+
+    private ByteBuf compress(ByteBuf raw) {
+        int length = raw.readableBytes();
+        byte[] input = new byte[length];
+        raw.getBytes(raw.readerIndex(), input);
+
+        Deflater deflater = new Deflater(this.level);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteBuf out = ByteBufAllocator.DEFAULT.buffer(HEADER_SIZE + length / 2 + 16);
+            out.writeByte(HEADER);
+            out.writeInt(length);
+            byte[] chunk = new byte[Math.min(Math.max(length, 64), 8192)];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                out.writeBytes(chunk, 0, n);
+            }
+            return out;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] input, int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("Illegal compressed value length: " + length);
+        }
+        byte[] output = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            int offset = 0;
+            while (offset < length) {
+                int n = inflater.inflate(output, offset, length - offset);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += n;
+            }
+            if (offset != length) {
+                throw new IOException("Truncated compressed value, " + offset + " of " + length + " bytes");
+            }
+            return output;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed value", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.streamone.shiro.session;
+
+import org.apache.shiro.session.ExpiredSessionException;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.annotation.Resource;
+import java.io.Serializable;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>RedissonReactiveSession test case.</p>
+ *
+ * @author streamone
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration("/sessionContext.xml")
+public class RedissonReactiveSessionTest {
+
+    @Resource(name = "sessionDao")
+    private RedissonSessionDao sessionDao;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateByIllegalArguments() {
+        new RedissonReactiveSession(null);
+    }
+
+    @Test
+    public void testReactiveSession() {
+        Serializable sessionId = this.sessionDao.create(new SimpleSession());
+        RedissonReactiveSession session = new RedissonReactiveSession(
+            this.sessionDao.getRedissonSession(sessionId));
+        assertEquals(sessionId, session.getId());
+
+        session.setAttribute("foo", "bar").block();
+        assertEquals("bar", session.getAttribute("foo").block());
+        assertNull(session.getAttribute("notExistKey").block());
+        assertEquals(1, session.getAttributes().block().size());
+        assertEquals("bar", session.removeAttribute("foo").block());
+        session.touch().block();
+        assertTrue(session.getAttributes().block().isEmpty());
+    }
+
+    @Test(expected = ExpiredSessionException.class)
+    public void testExpiredReactiveSession() {
+        RedissonReactiveSession session = new RedissonReactiveSession(
+            this.sessionDao.getRedissonSession(UUID.randomUUID().toString()));
+        session.getAttribute("foo").block();
+    }
+}
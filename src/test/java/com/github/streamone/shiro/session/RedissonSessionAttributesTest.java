@@ -0,0 +1,70 @@
+package com.github.streamone.shiro.session;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import org.junit.Test;
+import org.redisson.client.codec.Codec;
+import org.redisson.codec.JsonJacksonCodec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>RedissonSessionAttributes test case.</p>
+ *
+ * @author streamone
+ */
+public class RedissonSessionAttributesTest {
+
+    private final Codec codec = new JsonJacksonCodec();
+
+    @Test
+    public void testLazyDecoding() throws Exception {
+        RedissonSessionAttributes attributes = new RedissonSessionAttributes();
+        attributes.putEncoded("foo", encode(Collections.singletonList("bar")), this.codec);
+        attributes.putEncoded("broken", "not json".getBytes(StandardCharsets.UTF_8), this.codec);
+        attributes.putEncoded("none", null, this.codec);
+
+        //only the values read are decoded, and decoded once
+        Object foo = attributes.get("foo");
+        assertEquals(Collections.singletonList("bar"), foo);
+        assertSame(foo, attributes.get("foo"));
+        assertNull(attributes.get("none"));
+        assertTrue(attributes.containsKey("broken"));
+        assertTrue(attributes.hasValue("broken"));
+        assertFalse(attributes.hasValue("none"));
+        assertEquals(3, attributes.size());
+        try {
+            attributes.get("broken");
+            fail("expect IllegalStateException");
+        } catch (IllegalStateException e) {
+            //expected exception
+        }
+
+        RedissonSessionAttributes copy = attributes.copy(Arrays.<Object>asList("foo", "none", "missing"));
+        assertEquals(1, copy.size());
+        assertSame(foo, copy.get("foo"));
+
+        attributes.set("broken", "fixed");
+        assertEquals("fixed", attributes.remove("broken"));
+        Map<Object, Object> expected = new HashMap<>();
+        expected.put("foo", Collections.singletonList("bar"));
+        expected.put("none", null);
+        assertEquals(expected, attributes);
+        assertEquals(expected, new HashMap<>(attributes));
+    }
+
+    private byte[] encode(Object value) throws Exception {
+        ByteBuf buf = this.codec.getValueEncoder().encode(value);
+        try {
+            return ByteBufUtil.getBytes(buf);
+        } finally {
+            buf.release();
+        }
+    }
+}
@@ -1,12 +1,39 @@
 package com.github.streamone.shiro.session;
 
+import org.apache.shiro.session.ExpiredSessionException;
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.StoppedSessionException;
+import org.apache.shiro.session.UnknownSessionException;
 import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.redisson.Redisson;
+import org.redisson.api.RMap;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.redisson.config.Config;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import javax.annotation.Resource;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
 import static org.junit.Assert.*;
 
 /**
@@ -22,6 +49,75 @@ public class RedissonSessionDaoTest {
     @Resource(name = "sessionDao")
     private RedissonSessionDao sessionDao;
 
+    private final List<RedissonSessionDao> daos = new ArrayList<>();
+    private final Map<Serializable, RedissonSessionDao> createdSessions = new LinkedHashMap<>();
+    private final List<RedissonClient> shardClients = new ArrayList<>();
+
+    /**
+     * <p>Delete the sessions and indexes written by a test, so the next ones start from an empty
+     * database whatever the order they run in.</p>
+     */
+    @After
+    public void tearDown() {
+        try {
+            for (Map.Entry<Serializable, RedissonSessionDao> entry : this.createdSessions.entrySet()) {
+                SimpleSession session = new SimpleSession();
+                session.setId(entry.getKey());
+                entry.getValue().delete(session);
+            }
+            for (RedissonSessionDao dao : this.daos) {
+                if (dao.isActiveSessionIndexEnabled()) {
+                    for (RedissonClient redisson : dao.getRedissonClients()) {
+                        redisson.getKeys().delete(dao.getActiveSessionIndexKey());
+                    }
+                }
+                dao.destroy();
+            }
+        } finally {
+            this.createdSessions.clear();
+            this.daos.clear();
+            for (RedissonClient redisson : this.shardClients) {
+                redisson.shutdown();
+            }
+            this.shardClients.clear();
+        }
+    }
+
+    private RedissonSessionDao newDao(Consumer<RedissonSessionDao> options) {
+        RedissonSessionDao dao = new RedissonSessionDao();
+        dao.setRedisson(this.sessionDao.getRedisson());
+        options.accept(dao);
+        this.daos.add(dao);
+        return dao;
+    }
+
+    private Map<String, RedissonClient> newShards() {
+        Config config = new Config(this.sessionDao.getRedisson().getConfig());
+        config.useSingleServer().setDatabase(1);
+        RedissonClient otherRedisson = Redisson.create(config);
+        this.shardClients.add(otherRedisson);
+
+        Map<String, RedissonClient> shards = new LinkedHashMap<>();
+        shards.put("shard-0", this.sessionDao.getRedisson());
+        shards.put("shard-1", otherRedisson);
+        return shards;
+    }
+
+    private Serializable create(RedissonSessionDao dao, Session session) {
+        return track(dao, dao.create(session));
+    }
+
+    private RedissonSession changeSessionId(RedissonSessionDao dao, Session session) {
+        RedissonSession renamed = dao.changeSessionId(session);
+        track(dao, renamed.getId());
+        return renamed;
+    }
+
+    private Serializable track(RedissonSessionDao dao, Serializable sessionId) {
+        this.createdSessions.put(sessionId, dao);
+        return sessionId;
+    }
+
     @Test
     public void testDeleteNull() {
         this.sessionDao.delete(null);
@@ -37,4 +133,467 @@ public class RedissonSessionDaoTest {
     public void testGetActiveSessions() {
         assertTrue(this.sessionDao.getActiveSessions().isEmpty());
     }
+
+    @Test
+    public void testReadInvalidSnapshot() {
+        RedissonSessionDao snapshotDao = newDao(dao -> dao.setSnapshotEnabled(true));
+
+        //an info hash missing its timestamps, e.g. left by a partial write
+        String sessionId = UUID.randomUUID().toString();
+        track(snapshotDao, sessionId);
+        RMap<String, String> info = this.sessionDao.getRedisson().getMap(
+            snapshotDao.getSessionInfoKey(sessionId), StringCodec.INSTANCE);
+        info.put("\"" + RedissonSession.INFO_HOST_KEY + "\"", "\"localhost\"");
+        info.expire(60, TimeUnit.SECONDS);
+        assertUnknown(snapshotDao, sessionId);
+    }
+
+    @Test
+    public void testTouchInterval() throws InterruptedException {
+        RedissonSessionDao debouncedDao = newDao(dao -> dao.setTouchInterval(60000));
+        assertEquals(60000, debouncedDao.getTouchInterval());
+
+        Serializable sessionId = create(debouncedDao, new SimpleSession());
+        Session session = debouncedDao.readSession(sessionId);
+        Date lastAccessTime = session.getLastAccessTime();
+        TimeUnit.MILLISECONDS.sleep(10);
+        session.touch();
+        assertEquals(lastAccessTime, debouncedDao.readSession(sessionId).getLastAccessTime());
+
+        debouncedDao.setTouchInterval(1);
+        TimeUnit.MILLISECONDS.sleep(10);
+        session = debouncedDao.readSession(sessionId);
+        session.touch();
+        assertTrue(session.getLastAccessTime().after(lastAccessTime));
+    }
+
+    @Test
+    public void testSingleHashLayout() {
+        RedissonSessionDao singleHashDao = newDao(dao -> dao.setSingleHashEnabled(true));
+        assertTrue(singleHashDao.isSingleHashEnabled());
+
+        Serializable sessionId = create(singleHashDao, new SimpleSession());
+        Session session = singleHashDao.readSession(sessionId);
+        session.setAttribute("foo", "bar");
+        session.setAttribute("hash", "code");
+        assertEquals("bar", session.getAttribute("foo"));
+        assertEquals(2, session.getAttributeKeys().size());
+        assertEquals("code", session.removeAttribute("hash"));
+        assertEquals(1, session.getAttributeKeys().size());
+        session.touch();
+        session.setTimeout(60000);
+        assertEquals(60000, session.getTimeout());
+
+        RedissonSession snapshotSession = (RedissonSession) singleHashDao.readSession(sessionId);
+        snapshotSession.loadSnapshot();
+        assertEquals(1, snapshotSession.getAttributeKeys().size());
+        assertEquals("bar", snapshotSession.getAttribute("foo"));
+
+        assertEquals(0, this.sessionDao.getRedisson().getKeys().countExists(
+            RedissonSessionDao.SESSION_ATTR_KEY_PREFIX + "{" + sessionId + "}"));
+        singleHashDao.delete(session);
+        assertNull(singleHashDao.doReadSession(sessionId));
+    }
+
+    @Test
+    public void testAttributeSpill() {
+        RedissonSessionDao spillDao = newDao(dao -> {
+            dao.setSingleHashEnabled(true);
+            dao.setAttributeSpillThreshold(64);
+        });
+        assertEquals(64, spillDao.getAttributeSpillThreshold());
+        char[] chars = new char[1024];
+        Arrays.fill(chars, 'x');
+        String large = new String(chars);
+
+        Serializable sessionId = create(spillDao, new SimpleSession());
+        RedissonSession session = (RedissonSession) spillDao.readSession(sessionId);
+        session.setAttribute("foo", "bar");
+        session.setAttribute("large", large);
+        String spillKey = RedissonSessionScript.SPILL_KEY_PREFIX + "{" + sessionId + "}";
+        RedissonClient redisson = this.sessionDao.getRedisson();
+        assertEquals(1, redisson.getSet(spillKey, StringCodec.INSTANCE).size());
+        assertEquals(large, session.getAttribute("large"));
+        assertEquals(large, session.getAllAttributes().get("large"));
+        assertEquals("bar", session.getAllAttributes().get("foo"));
+        session.touch();
+        session.setTimeout(60000);
+        assertTrue(redisson.getSet(spillKey).remainTimeToLive() > 30000);
+
+        //readable without the option, e.g. by nodes where it is not enabled yet
+        RedissonSessionDao singleHashDao = newDao(dao -> dao.setSingleHashEnabled(true));
+        assertEquals(large, singleHashDao.readSession(sessionId).getAttribute("large"));
+
+        //small values replace spilled ones
+        session.setAttribute("large", "small");
+        assertEquals(0, redisson.getKeys().countExists(spillKey));
+        Map<Object, Object> attributes = new LinkedHashMap<>();
+        attributes.put("large", large);
+        attributes.put("foo", null);
+        session.setAttributes(attributes);
+        assertEquals(large, session.removeAttribute("large"));
+        assertEquals(0, redisson.getKeys().countExists(spillKey));
+
+        session.setAttribute("large", large);
+        RedissonSession renamed = changeSessionId(spillDao, session);
+        assertEquals(large, renamed.getAttribute("large"));
+        assertEquals(0, redisson.getKeys().countExists(spillKey));
+        spillDao.delete(renamed);
+        assertEquals(0, redisson.getKeys().countExists(
+            RedissonSessionScript.SPILL_KEY_PREFIX + "{" + renamed.getId() + "}"));
+        assertFalse(redisson.getKeys().getKeysByPattern(
+            RedissonSessionScript.SPILL_KEY_PREFIX + "{" + renamed.getId() + "}:*").iterator().hasNext());
+    }
+
+    @Test
+    public void testStatusProtocol() throws Exception {
+        RedissonSessionDao statusDao = newDao(dao -> dao.setStatusProtocolEnabled(true));
+        assertTrue(statusDao.isStatusProtocolEnabled());
+
+        Serializable sessionId = create(statusDao, new SimpleSession());
+        RedissonSession session = (RedissonSession) statusDao.readSession(sessionId);
+        session.setAttribute("foo", "bar");
+        session.touch();
+        assertEquals("bar", session.getAttribute("foo"));
+        assertNull(session.getAttribute("hash"));
+        assertEquals("bar", session.getAttributeAsync("foo").get());
+        assertEquals(1, session.getAllAttributes().size());
+        assertEquals(1, session.getAttributeKeys().size());
+        session.loadSnapshot();
+        assertEquals("bar", session.getAttribute("foo"));
+        session.clearSnapshot();
+        session.stop();
+        try {
+            session.getAttribute("foo");
+            fail();
+        } catch (StoppedSessionException e) {
+            assertNull(e.getCause());
+        }
+
+        RedissonSession expired = statusDao.getRedissonSession(UUID.randomUUID().toString());
+        try {
+            expired.getAttributeAsync("foo").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ExpiredSessionException);
+        }
+    }
+
+    @Test
+    public void testReplicaRead() throws Exception {
+        RedissonSessionDao replicaDao = newDao(dao -> {
+            dao.setReplicaReadEnabled(true);
+            dao.setReplicaReadStaleness(0);
+        });
+        assertTrue(replicaDao.isReplicaReadEnabled());
+
+        Serializable sessionId = create(replicaDao, new SimpleSession());
+        RedissonSession session = (RedissonSession) replicaDao.readSession(sessionId);
+        session.setAttribute("foo", "bar");
+        assertEquals("bar", session.getAttribute("foo"));
+        assertNull(session.getAttribute("hash"));
+        assertEquals("bar", session.getAttributeAsync("foo").get());
+        assertEquals(1, session.getAttributeKeys().size());
+
+        replicaDao.delete(session);
+        try {
+            replicaDao.readSession(sessionId);
+            fail();
+        } catch (UnknownSessionException e) {
+            assertNull(e.getCause());
+        }
+    }
+
+    @Test
+    public void testCreateWithAttributes() {
+        SimpleSession simpleSession = new SimpleSession();
+        simpleSession.setTimeout(60000);
+        simpleSession.setAttribute("foo", "bar");
+        simpleSession.setAttribute("hash", "code");
+        Serializable sessionId = create(this.sessionDao, simpleSession);
+
+        Session session = this.sessionDao.readSession(sessionId);
+        assertEquals("bar", session.getAttribute("foo"));
+        assertEquals(2, session.getAttributeKeys().size());
+        long attrTimeToLive = this.sessionDao.getRedisson().getBucket(
+            this.sessionDao.getSessionAttrKey(sessionId.toString())).remainTimeToLive();
+        assertTrue(attrTimeToLive > 0 && attrTimeToLive <= 60000);
+        this.sessionDao.delete(session);
+    }
+
+    @Test
+    public void testStopAndDelete() {
+        Serializable sessionId = create(this.sessionDao, new SimpleSession());
+        RedissonSession session = (RedissonSession) this.sessionDao.readSession(sessionId);
+        session.setAttribute("foo", "bar");
+        session.loadSnapshot();
+        this.sessionDao.stopAndDelete(session);
+        assertTrue(session.getSnapshot().isStopped());
+        RedissonClient redisson = this.sessionDao.getRedisson();
+        assertFalse(redisson.getBucket(this.sessionDao.getSessionInfoKey(sessionId.toString())).isExists());
+        assertFalse(redisson.getBucket(this.sessionDao.getSessionAttrKey(sessionId.toString())).isExists());
+
+        //deleted anyway, like by a stop followed by a delete
+        Serializable stoppedId = create(this.sessionDao, new SimpleSession());
+        Session stopped = this.sessionDao.readSession(stoppedId);
+        stopped.stop();
+        try {
+            this.sessionDao.stopAndDelete(stopped);
+            fail();
+        } catch (StoppedSessionException e) {
+            assertFalse(redisson.getBucket(this.sessionDao.getSessionInfoKey(stoppedId.toString())).isExists());
+        }
+        try {
+            this.sessionDao.stopAndDelete(session);
+            fail();
+        } catch (ExpiredSessionException e) {
+            assertNull(e.getCause());
+        }
+    }
+
+    @Test
+    public void testLegacyMigration() {
+        Serializable sessionId = create(this.sessionDao, new SimpleSession());
+        this.sessionDao.readSession(sessionId).setAttribute("foo", "bar");
+
+        RedissonSessionDao singleHashDao = newDao(dao -> {
+            dao.setSingleHashEnabled(true);
+            dao.setLegacyMigrationEnabled(true);
+        });
+        assertTrue(singleHashDao.isLegacyMigrationEnabled());
+
+        Session session = singleHashDao.readSession(sessionId);
+        assertEquals("bar", session.getAttribute("foo"));
+        assertEquals(0, this.sessionDao.getRedisson().getKeys().countExists(
+            RedissonSessionDao.SESSION_ATTR_KEY_PREFIX + "{" + sessionId + "}"));
+    }
+
+    @Test
+    public void testCompactInfo() {
+        RedissonSessionDao compactDao = newDao(dao -> dao.setCompactInfoEnabled(true));
+        assertTrue(compactDao.isCompactInfoEnabled());
+
+        SimpleSession simpleSession = new SimpleSession("localhost");
+        Serializable sessionId = create(compactDao, simpleSession);
+        String infoKey = RedissonSessionDao.SESSION_INFO_KEY_PREFIX + "{" + sessionId + "}";
+        RMap<String, String> info = this.sessionDao.getRedisson().getMap(infoKey, StringCodec.INSTANCE);
+        assertEquals(String.valueOf(simpleSession.getTimeout()), info.get("\"" + RedissonSession.INFO_TIMEOUT_KEY + "\""));
+        assertEquals("localhost", info.get("\"" + RedissonSession.INFO_HOST_KEY + "\""));
+
+        Session session = compactDao.readSession(sessionId);
+        assertEquals(simpleSession.getStartTimestamp(), session.getStartTimestamp());
+        assertEquals("localhost", session.getHost());
+        session.setTimeout(60000);
+        session.touch();
+        assertEquals(60000, session.getTimeout());
+        assertTrue(info.remainTimeToLive() > 0 && info.remainTimeToLive() <= 60000);
+        assertEquals(String.valueOf(session.getLastAccessTime().getTime()),
+            info.get("\"" + RedissonSession.INFO_LAST_KEY + "\""));
+
+        //either format is readable in both modes
+        Session jsonSession = this.sessionDao.readSession(sessionId);
+        assertEquals(60000, jsonSession.getTimeout());
+        jsonSession.touch();
+        assertEquals(session.getStartTimestamp(), jsonSession.getStartTimestamp());
+        assertTrue(session.getLastAccessTime().getTime() <= jsonSession.getLastAccessTime().getTime());
+        RedissonSession snapshotSession = (RedissonSession) compactDao.readSession(sessionId);
+        snapshotSession.loadSnapshot();
+        assertEquals(60000, snapshotSession.getTimeout());
+        assertEquals(jsonSession.getLastAccessTime(), snapshotSession.getLastAccessTime());
+        compactDao.delete(session);
+    }
+
+    @Test
+    public void testActiveSessionIndex() throws InterruptedException {
+        assertEquals(-1, newDao(dao -> { }).getActiveSessionCount());
+        RedissonSessionDao indexedDao = newDao(dao -> {
+            dao.setActiveSessionIndexEnabled(true);
+            dao.setActiveSessionIndexKey("session:index:" + UUID.randomUUID());
+            dao.setActiveSessionPageSize(2);
+        });
+        assertTrue(indexedDao.isActiveSessionIndexEnabled());
+
+        Set<String> sessionIds = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            sessionIds.add(create(indexedDao, new SimpleSession()).toString());
+        }
+        assertEquals(5, indexedDao.getActiveSessionCount());
+
+        Set<String> activeIds = new HashSet<>();
+        for (Session session : indexedDao.getActiveSessions()) {
+            activeIds.add(session.getId().toString());
+            session.touch();
+        }
+        assertEquals(sessionIds, activeIds);
+
+        Iterator<String> iterator = sessionIds.iterator();
+        indexedDao.delete(indexedDao.readSession(iterator.next()));
+        Session shortSession = indexedDao.readSession(iterator.next());
+        shortSession.setTimeout(100);
+        assertEquals(4, this.sessionDao.getRedisson().getScoredSortedSet(
+            indexedDao.getActiveSessionIndexKey()).size());
+        Thread.sleep(200);
+        assertEquals(3, indexedDao.getActiveSessionCount());
+        assertEquals(1, indexedDao.purgeActiveSessionIndex());
+        assertEquals(3, indexedDao.getActiveSessions().size());
+
+        for (Session session : indexedDao.getActiveSessions()) {
+            indexedDao.delete(session);
+        }
+        assertEquals(0, indexedDao.getActiveSessionCount());
+        assertFalse(indexedDao.getActiveSessions().iterator().hasNext());
+    }
+
+    @Test
+    public void testActiveSessionPurge() throws InterruptedException {
+        RedissonSessionDao indexedDao = newDao(dao -> {
+            dao.setActiveSessionIndexEnabled(true);
+            dao.setActiveSessionIndexKey("session:index:" + UUID.randomUUID());
+            dao.setActiveSessionPurgeInterval(50);
+        });
+        assertEquals(50, indexedDao.getActiveSessionPurgeInterval());
+        indexedDao.init();
+
+        Serializable sessionId = create(indexedDao, new SimpleSession());
+        indexedDao.readSession(sessionId).setTimeout(100);
+        create(indexedDao, new SimpleSession());
+        Thread.sleep(300);
+
+        //expired by redis and purged without being read
+        assertEquals(1, this.sessionDao.getRedisson().getScoredSortedSet(
+            indexedDao.getActiveSessionIndexKey()).size());
+    }
+
+    @Test
+    public void testPrincipalIndex() throws InterruptedException {
+        String principal = "user-" + UUID.randomUUID();
+        assertEquals(-1, newDao(dao -> { }).getPrincipalSessionCount(principal));
+        RedissonSessionDao indexedDao = newDao(dao -> dao.setPrincipalIndexEnabled(true));
+        assertTrue(indexedDao.isPrincipalIndexEnabled());
+
+        SimplePrincipalCollection principals = new SimplePrincipalCollection(principal, "realm");
+        Set<String> sessionIds = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            Serializable sessionId = create(indexedDao, new SimpleSession());
+            indexedDao.readSession(sessionId).setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, principals);
+            sessionIds.add(sessionId.toString());
+        }
+        assertEquals(sessionIds, new HashSet<>(indexedDao.getPrincipalSessionIds(principal)));
+        assertEquals(4, indexedDao.getPrincipalSessionCount(principals));
+
+        Iterator<String> iterator = sessionIds.iterator();
+        indexedDao.delete(indexedDao.readSession(iterator.next()));
+        indexedDao.readSession(iterator.next()).setTimeout(100);
+        Thread.sleep(200);
+        assertEquals(2, indexedDao.getPrincipalSessions(principal).size());
+        assertEquals(2, this.sessionDao.getRedisson().getSet(
+            indexedDao.getPrincipalIndex().getIndexKey(principal)).size());
+
+        assertEquals(2, indexedDao.invalidatePrincipalSessions(principal));
+        assertEquals(0, indexedDao.getPrincipalSessionCount(principal));
+        while (iterator.hasNext()) {
+            assertFalse(indexedDao.getRedisson().getBucket(
+                indexedDao.getSessionInfoKey(iterator.next())).isExists());
+        }
+    }
+
+    @Test
+    public void testUnknownSessionCache() throws InterruptedException {
+        String sessionId = UUID.randomUUID().toString();
+        RedissonSessionDao cachedDao = newDao(dao -> dao.setUnknownSessionCacheTimeToLive(200));
+        assertEquals(200, cachedDao.getUnknownSessionCacheTimeToLive());
+        RedissonSessionDao creatingDao = newDao(dao -> dao.setSessionIdGenerator(session -> sessionId));
+
+        assertUnknown(cachedDao, sessionId);
+        create(creatingDao, new SimpleSession());
+        //the id is answered from the cache until it expires
+        assertUnknown(cachedDao, sessionId);
+        Thread.sleep(300);
+        Session session = cachedDao.readSession(sessionId);
+        assertEquals(sessionId, session.getId());
+
+        cachedDao.delete(session);
+        assertUnknown(cachedDao, sessionId);
+    }
+
+    @Test
+    public void testUnknownDeferredSession() {
+        RedissonSessionDao cachedDao = newDao(dao -> dao.setUnknownSessionCacheTimeToLive(60000));
+
+        RedissonSession deferred = cachedDao.createDeferred(new SimpleSession());
+        track(cachedDao, deferred.getId());
+        //e.g. a concurrent request carrying the new id
+        assertUnknown(cachedDao, deferred.getId());
+        deferred.setAttribute("foo", "bar");
+        Session session = cachedDao.readSession(deferred.getId());
+        assertEquals("bar", session.getAttribute("foo"));
+    }
+
+    private void assertUnknown(RedissonSessionDao dao, Serializable sessionId) {
+        try {
+            dao.readSession(sessionId);
+            fail("Session " + sessionId + " should be unknown");
+        } catch (UnknownSessionException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testShards() {
+        Map<String, RedissonClient> shards = newShards();
+        RedissonSessionDao shardedDao = newDao(dao -> dao.setShards(shards));
+        assertSame(this.sessionDao.getRedisson(), shardedDao.getRedisson());
+        assertEquals(2, shardedDao.getRedissonClients().size());
+
+        Set<RedissonClient> usedShards = new HashSet<>();
+        Set<Serializable> sessionIds = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            Serializable sessionId = create(shardedDao, new SimpleSession());
+            shardedDao.readSession(sessionId).setAttribute("foo", "bar");
+            sessionIds.add(sessionId);
+
+            RedissonClient owner = shardedDao.getRedisson(sessionId.toString());
+            usedShards.add(owner);
+            for (RedissonClient shard : shards.values()) {
+                assertEquals(shard == owner ? 1 : 0, shard.getKeys().countExists(
+                    RedissonSessionDao.SESSION_INFO_KEY_PREFIX + "{" + sessionId + "}"));
+            }
+        }
+        assertEquals(2, usedShards.size());
+
+        for (Serializable sessionId : sessionIds) {
+            Session session = shardedDao.readSession(sessionId);
+            assertEquals("bar", session.getAttribute("foo"));
+            shardedDao.delete(session);
+        }
+    }
+
+    @Test
+    public void testChangeShard() {
+        Map<String, RedissonClient> shards = newShards();
+        RedissonSessionDao shardedDao = newDao(dao -> {
+            dao.setShards(shards);
+            dao.setActiveSessionIndexEnabled(true);
+            dao.setActiveSessionIndexKey("session:active:" + UUID.randomUUID());
+        });
+
+        Serializable sessionId = create(shardedDao, new SimpleSession());
+        Session session = shardedDao.readSession(sessionId);
+        RedissonClient owner = shardedDao.getRedisson(sessionId.toString());
+        RedissonSession renamed;
+        do {
+            renamed = changeSessionId(shardedDao, session);
+            session = renamed;
+        } while (shardedDao.getRedisson(renamed.getId().toString()) == owner);
+
+        //copied by DUMP and RESTORE, indexed on the new shard right away
+        Iterator<Session> activeSessions = shardedDao.getActiveSessions().iterator();
+        assertEquals(renamed.getId(), activeSessions.next().getId());
+        assertFalse(activeSessions.hasNext());
+        assertEquals(1, shardedDao.getActiveSessionCount());
+
+        shardedDao.delete(renamed);
+        assertEquals(0, shardedDao.getActiveSessionCount());
+    }
+
 }
@@ -0,0 +1,126 @@
+package com.github.streamone.shiro.session;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.SessionListenerAdapter;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.redisson.api.RPatternTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.Codec;
+import org.redisson.config.Config;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * <p>RedissonSessionExpirationListener test case.</p>
+ *
+ * @author streamone
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration("/sessionContext.xml")
+public class RedissonSessionExpirationListenerTest {
+
+    @Resource(name = "sessionDao")
+    private RedissonSessionDao sessionDao;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateByIllegalArguments() {
+        new RedissonSessionExpirationListener(null, RedissonSessionDao.SESSION_INFO_KEY_PREFIX,
+            key -> key, id -> {}, Executors.newSingleThreadExecutor(), 10, 10);
+    }
+
+    @Test
+    public void testClaimOncePerCluster() throws InterruptedException {
+        List<String> expired = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        RedissonSessionExpirationListener node1 = newListener(expired, executor);
+        RedissonSessionExpirationListener node2 = newListener(expired, executor);
+
+        String sessionId = UUID.randomUUID().toString();
+        String infoKey = RedissonSessionDao.SESSION_INFO_KEY_PREFIX + "{" + sessionId + "}";
+        node1.onExpired(infoKey);
+        node2.onExpired(infoKey);
+        node1.onExpired(RedissonSessionDao.SESSION_ATTR_KEY_PREFIX + "{" + sessionId + "}");
+        node1.onExpired("foo");
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(sessionId), expired);
+    }
+
+    @Test
+    public void testNotifyExpiration() {
+        List<Session> expired = new CopyOnWriteArrayList<>();
+        RedissonSessionManager sessionManager = new RedissonSessionManager();
+        sessionManager.setSessionDAO(this.sessionDao);
+        sessionManager.setSessionListeners(Collections.singletonList(new SessionListenerAdapter() {
+            @Override
+            public void onExpiration(Session session) {
+                expired.add(session);
+            }
+        }));
+        sessionManager.setExpirationEventsEnabled(true);
+        assertTrue(sessionManager.isExpirationEventsEnabled());
+        sessionManager.init();
+        assertNotNull(sessionManager.getExpirationEventExecutor());
+
+        sessionManager.onExpiration("foo");
+        assertEquals(1, expired.size());
+        assertEquals("foo", expired.get(0).getId());
+
+        sessionManager.destroy();
+        assertNull(sessionManager.getExpirationEventExecutor());
+    }
+
+    @Test
+    public void testExpirationEventClients() {
+        List<RedissonClient> masters = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            RedissonClient master = mock(RedissonClient.class);
+            when(master.getConfig()).thenReturn(new Config());
+            when(master.getPatternTopic(anyString(), any(Codec.class))).thenReturn(mock(RPatternTopic.class));
+            masters.add(master);
+        }
+        RedissonSessionManager sessionManager = new RedissonSessionManager();
+        sessionManager.setSessionDAO(this.sessionDao);
+        sessionManager.setExpirationEventsEnabled(true);
+        sessionManager.setExpirationEventClients(masters);
+        assertSame(masters, sessionManager.getExpirationEventClients());
+        sessionManager.init();
+        try {
+            //every master publishes the events of its own keys
+            for (RedissonClient master : masters) {
+                verify(master).getPatternTopic(eq(RedissonSessionExpirationListener.EXPIRED_EVENT_PATTERN),
+                    any(Codec.class));
+            }
+        } finally {
+            sessionManager.destroy();
+        }
+    }
+
+    private RedissonSessionExpirationListener newListener(List<String> expired, ExecutorService executor) {
+        RedissonSessionExpirationListener listener = new RedissonSessionExpirationListener(
+            this.sessionDao.getRedisson(), RedissonSessionDao.SESSION_INFO_KEY_PREFIX,
+            this.sessionDao::getSessionIdByInfoKey, expired::add, executor, 10, 10);
+        listener.setClaimTimeToLive(1000);
+        return listener;
+    }
+}
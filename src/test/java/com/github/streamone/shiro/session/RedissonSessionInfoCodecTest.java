@@ -0,0 +1,62 @@
+package com.github.streamone.shiro.session;
+
+import io.netty.buffer.ByteBuf;
+import org.junit.Test;
+import org.redisson.client.codec.Codec;
+import org.redisson.codec.JsonJacksonCodec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>RedissonSessionInfoCodec test case.</p>
+ *
+ * @author streamone
+ */
+public class RedissonSessionInfoCodecTest {
+
+    @Test
+    public void testCompactEncoding() throws Exception {
+        Codec codec = RedissonSessionInfoCodec.COMPACT;
+        assertTrue(RedissonSessionInfoCodec.COMPACT.isCompact());
+        assertEquals("1500", encode(codec, new Date(1500)));
+        assertEquals("1800000", encode(codec, 1800000L));
+        assertEquals("127.0.0.1", encode(codec, "127.0.0.1"));
+
+        assertEquals(new Date(1500), RedissonSessionInfoCodec.toDate(decode(codec, "1500")));
+        assertEquals(Long.valueOf(1800000L), RedissonSessionInfoCodec.toLong(decode(codec, "1800000")));
+        assertEquals("127.0.0.1", RedissonSessionInfoCodec.toText(decode(codec, "127.0.0.1")));
+        assertEquals("[::1]", RedissonSessionInfoCodec.toText(decode(codec, "[::1]")));
+        assertEquals("", RedissonSessionInfoCodec.toText(decode(codec, "")));
+        assertEquals("8080", RedissonSessionInfoCodec.toText(decode(codec, "8080")));
+    }
+
+    @Test
+    public void testJsonCompatibility() throws Exception {
+        Codec json = new JsonJacksonCodec();
+        for (Codec codec : new Codec[]{RedissonSessionInfoCodec.COMPACT, RedissonSessionInfoCodec.JSON}) {
+            assertEquals(new Date(1500), decode(codec, encode(json, new Date(1500))));
+            assertEquals(1800000L, decode(codec, encode(json, 1800000L)));
+            assertEquals("localhost", decode(codec, encode(json, "localhost")));
+            assertEquals(1500L, decode(codec, "1500"));
+        }
+        assertFalse(RedissonSessionInfoCodec.JSON.isCompact());
+        assertEquals(encode(json, new Date(1500)), encode(RedissonSessionInfoCodec.JSON, new Date(1500)));
+    }
+
+    private static String encode(Codec codec, Object value) throws Exception {
+        ByteBuf buf = codec.getValueEncoder().encode(value);
+        try {
+            return buf.toString(StandardCharsets.UTF_8);
+        } finally {
+            buf.release();
+        }
+    }
+
+    private static Object decode(Codec codec, String value) throws Exception {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return RedissonSession.decode(codec, bytes);
+    }
+}
@@ -1,6 +1,7 @@
 package com.github.streamone.shiro.session;
 
 import org.apache.shiro.session.Session;
+import org.apache.shiro.session.SessionListener;
 import org.apache.shiro.session.UnknownSessionException;
 import org.apache.shiro.session.mgt.*;
 import org.apache.shiro.session.mgt.eis.JavaUuidSessionIdGenerator;
@@ -10,12 +11,16 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import javax.annotation.Resource;
+import java.util.Collections;
 
 import static org.apache.shiro.session.mgt.AbstractSessionManager.DEFAULT_GLOBAL_SESSION_TIMEOUT;
 import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -117,4 +122,38 @@ public class RedissonSessionManagerTest {
         sessionManager.doGetSession(key);
     }
 
+    @Test
+    public void testStopDelete() {
+        RedissonSessionManager sessionManager = new RedissonSessionManager();
+        RedissonSessionDao sessionDao = mock(RedissonSessionDao.class);
+        sessionManager.setSessionDAO(sessionDao);
+        sessionManager.setStopDeleteEnabled(true);
+        assertTrue(sessionManager.isStopDeleteEnabled());
+        SessionListener listener = mock(SessionListener.class);
+        sessionManager.setSessionListeners(Collections.singletonList(listener));
+
+        String sessionId = new JavaUuidSessionIdGenerator().generateId(null).toString();
+        Session session = mock(Session.class);
+        when(session.getId()).thenReturn(sessionId);
+        when(sessionDao.readSession(sessionId)).thenReturn(session);
+        sessionManager.stop(new DefaultSessionKey(sessionId));
+
+        verify(sessionDao).stopAndDelete(session);
+        verify(sessionDao, never()).delete(any(Session.class));
+        verify(session, never()).stop();
+        verify(listener).onStop(any(Session.class));
+    }
+
+    @Test
+    public void testInitialAttributes() {
+        RedissonSessionManager sessionManager = new RedissonSessionManager();
+        RedissonSessionDao sessionDao = mock(RedissonSessionDao.class);
+        sessionManager.setSessionDAO(sessionDao);
+
+        SessionContext context = new DefaultSessionContext();
+        context.put(RedissonSessionManager.INITIAL_ATTRIBUTES_KEY, Collections.singletonMap("foo", "bar"));
+        Session session = sessionManager.createSession(context);
+        assertEquals("bar", session.getAttribute("foo"));
+        verify(sessionDao).create(session);
+    }
 }
@@ -0,0 +1,183 @@
+package com.github.streamone.shiro.session;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.annotation.Resource;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>RedissonSessionNearCache test case.</p>
+ *
+ * @author streamone
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration("/sessionContext.xml")
+public class RedissonSessionNearCacheTest {
+
+    @Resource(name = "sessionDao")
+    private RedissonSessionDao sessionDao;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateByIllegalArguments() {
+        new RedissonSessionNearCache(null, RedissonSessionNearCache.DEFAULT_TOPIC_NAME, 1, 1, 1);
+    }
+
+    @Test
+    public void testBounds() {
+        RedissonSessionNearCache nearCache = new RedissonSessionNearCache(this.sessionDao.getRedisson(),
+            UUID.randomUUID().toString(), 2, 250, 60000);
+
+        nearCache.put("1", newSnapshot(100), nearCache.getStamp());
+        nearCache.put("2", newSnapshot(100), nearCache.getStamp());
+        assertEquals(2, nearCache.size());
+
+        //exceeds the size bound, the least recently used one is evicted
+        assertNotNull(nearCache.get("1"));
+        nearCache.put("3", newSnapshot(10), nearCache.getStamp());
+        assertEquals(2, nearCache.size());
+        assertNull(nearCache.get("2"));
+
+        //exceeds the memory bound
+        nearCache.put("4", newSnapshot(245), nearCache.getStamp());
+        assertNull(nearCache.get("1"));
+        assertNull(nearCache.get("3"));
+        assertNotNull(nearCache.get("4"));
+
+        //larger than the memory bound
+        nearCache.put("5", newSnapshot(300), nearCache.getStamp());
+        assertNull(nearCache.get("5"));
+
+        //evicted since the stamp was taken
+        long stamp = nearCache.getStamp();
+        nearCache.evict("6");
+        nearCache.put("6", newSnapshot(10), stamp);
+        assertNull(nearCache.get("6"));
+
+        //incomplete and stopped snapshots are not cached
+        RedissonSessionSnapshot incomplete = new RedissonSessionSnapshot(false);
+        incomplete.setLastAccessTime(new Date());
+        incomplete.setTimeout(60000L);
+        nearCache.put("7", incomplete, nearCache.getStamp());
+        assertNull(nearCache.get("7"));
+        RedissonSessionSnapshot stopped = newSnapshot(10);
+        stopped.setStopTimestamp(new Date());
+        nearCache.put("8", stopped, nearCache.getStamp());
+        assertNull(nearCache.get("8"));
+    }
+
+    @Test
+    public void testConcurrentEvictions() {
+        RedissonSessionNearCache nearCache = new RedissonSessionNearCache(this.sessionDao.getRedisson(),
+            UUID.randomUUID().toString(), 4, 1000, 60000);
+
+        //writes of other sessions during the loads don't drop the snapshots
+        for (int i = 0; i < 4; i++) {
+            long stamp = nearCache.getStamp();
+            nearCache.evict("other-" + i);
+            nearCache.put(String.valueOf(i), newSnapshot(10), stamp);
+        }
+        assertEquals(4, nearCache.size());
+
+        //a snapshot loaded before a write of its own session is dropped
+        long stamp = nearCache.getStamp();
+        nearCache.evict("0");
+        nearCache.put("0", newSnapshot(10), stamp);
+        assertNull(nearCache.get("0"));
+        nearCache.put("0", newSnapshot(10), nearCache.getStamp());
+        assertNotNull(nearCache.get("0"));
+
+        //once its tombstone is forgotten, snapshots loaded before are dropped
+        stamp = nearCache.getStamp();
+        nearCache.evict("1");
+        for (int i = 0; i < 4; i++) {
+            nearCache.evict("other-" + i);
+        }
+        nearCache.put("1", newSnapshot(10), stamp);
+        assertNull(nearCache.get("1"));
+
+        stamp = nearCache.getStamp();
+        nearCache.clear();
+        nearCache.put("2", newSnapshot(10), stamp);
+        assertNull(nearCache.get("2"));
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        RedissonSessionNearCache nearCache = new RedissonSessionNearCache(this.sessionDao.getRedisson(),
+            UUID.randomUUID().toString(), 10, 1000, 60000);
+        RedissonSessionSnapshot snapshot = newSnapshot(10);
+        snapshot.setTimeout(100L);
+        nearCache.put("1", snapshot, nearCache.getStamp());
+        assertNotNull(nearCache.get("1"));
+        Thread.sleep(200);
+        assertNull(nearCache.get("1"));
+    }
+
+    @Test
+    public void testInvalidation() throws InterruptedException {
+        String topic = UUID.randomUUID().toString();
+        RedissonSessionDao node1 = newNearCacheDao(topic);
+        RedissonSessionDao node2 = newNearCacheDao(topic);
+        try {
+            Serializable sessionId = node1.create(new SimpleSession());
+            node1.readSession(sessionId).setAttribute("foo", "bar");
+
+            Session session1 = node1.readSession(sessionId);
+            assertEquals("bar", session1.getAttribute("foo"));
+            assertEquals(1, node1.getNearCache().size());
+            Session session2 = node2.readSession(sessionId);
+            assertEquals("bar", session2.getAttribute("foo"));
+            assertEquals(1, node2.getNearCache().size());
+
+            //a touch is not published
+            session2.touch();
+            assertEquals(1, node2.getNearCache().size());
+
+            session2.setAttribute("foo", "baz");
+            assertEquals(0, node2.getNearCache().size());
+            waitForEviction(node1.getNearCache());
+            assertEquals("baz", node1.readSession(sessionId).getAttribute("foo"));
+
+            node2.delete(node2.readSession(sessionId));
+            waitForEviction(node1.getNearCache());
+            assertNull(node1.doReadSession(sessionId));
+        } finally {
+            node1.destroy();
+            node2.destroy();
+        }
+    }
+
+    private RedissonSessionDao newNearCacheDao(String topic) {
+        RedissonSessionDao dao = new RedissonSessionDao();
+        dao.setRedisson(this.sessionDao.getRedisson());
+        dao.setNearCacheEnabled(true);
+        dao.setNearCacheTopic(topic);
+        dao.init();
+        return dao;
+    }
+
+    private void waitForEviction(RedissonSessionNearCache nearCache) throws InterruptedException {
+        for (int i = 0; i < 50 && nearCache.size() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, nearCache.size());
+    }
+
+    private RedissonSessionSnapshot newSnapshot(long estimatedSize) {
+        RedissonSessionSnapshot snapshot = new RedissonSessionSnapshot(true);
+        snapshot.setStartTimestamp(new Date());
+        snapshot.setLastAccessTime(new Date());
+        snapshot.setTimeout(60000L);
+        snapshot.setEstimatedSize(estimatedSize);
+        return snapshot;
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.streamone.shiro.session;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.redisson.api.RMap;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.annotation.Resource;
+import java.io.Serializable;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>RedissonSessionReaper test case.</p>
+ *
+ * @author streamone
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration("/sessionContext.xml")
+public class RedissonSessionReaperTest {
+
+    @Resource(name = "sessionDao")
+    private RedissonSessionDao sessionDao;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateByIllegalArguments() {
+        new RedissonSessionReaper(null, RedissonSessionDao.SESSION_ATTR_KEY_PREFIX,
+            key -> key, Executors.newSingleThreadScheduledExecutor());
+    }
+
+    @Test
+    public void testReap() {
+        RedissonClient redisson = this.sessionDao.getRedisson();
+        String orphanId = UUID.randomUUID().toString();
+        RMap<String, String> orphan = redisson.getMap(
+            this.sessionDao.getSessionAttrKey(orphanId), StringCodec.INSTANCE);
+        orphan.put("foo", "bar");
+
+        Serializable sessionId = this.sessionDao.create(new SimpleSession());
+        Session session = this.sessionDao.readSession(sessionId);
+        session.setAttribute("foo", "bar");
+        RMap<String, String> persisted = redisson.getMap(
+            this.sessionDao.getSessionAttrKey(sessionId.toString()), StringCodec.INSTANCE);
+        assertTrue(persisted.clearExpire());
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        RedissonSessionReaper reaper = new RedissonSessionReaper(redisson, RedissonSessionDao.SESSION_ATTR_KEY_PREFIX,
+            key -> this.sessionDao.getSessionInfoKey(this.sessionDao.getSessionIdByInfoKey(key)), executor);
+        reaper.setBatchSize(10);
+        while (reaper.getCompletedPasses() == 0) {
+            reaper.reap();
+        }
+        executor.shutdown();
+
+        assertEquals(0, reaper.getFailedBatches());
+        assertTrue(reaper.getScannedKeys() >= 2);
+        assertTrue(reaper.getReapedKeys() >= 1);
+        assertTrue(reaper.getRepairedKeys() >= 1);
+        assertTrue(reaper.getLastPassTime() > 0);
+        assertFalse(orphan.isExists());
+        assertTrue(persisted.remainTimeToLive() > 0);
+        assertEquals("bar", session.getAttribute("foo"));
+        this.sessionDao.delete(session);
+    }
+
+    @Test
+    public void testStartByDao() {
+        RedissonSessionDao reaperDao = new RedissonSessionDao();
+        reaperDao.setRedisson(this.sessionDao.getRedisson());
+        reaperDao.setOrphanReaperEnabled(true);
+        reaperDao.setOrphanReaperRateLimit(100000);
+        assertTrue(reaperDao.isOrphanReaperEnabled());
+        reaperDao.init();
+        assertEquals(1, reaperDao.getOrphanReapers().size());
+        reaperDao.destroy();
+        assertTrue(reaperDao.getOrphanReapers().isEmpty());
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.streamone.shiro.session;
+
+import org.junit.Test;
+import org.redisson.api.RedissonClient;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * <p>RedissonSessionRing test case.</p>
+ *
+ * @author streamone
+ */
+public class RedissonSessionRingTest {
+
+    private static final int SESSIONS = 20000;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateByEmptyShards() {
+        new RedissonSessionRing(new HashMap<>(), RedissonSessionRing.DEFAULT_VIRTUAL_NODES);
+    }
+
+    @Test
+    public void testSingleShard() {
+        RedissonClient client = mock(RedissonClient.class);
+        RedissonSessionRing ring = new RedissonSessionRing(shards(client), 4);
+        assertSame(client, ring.getShard("foo"));
+        assertEquals(1, ring.getShards().size());
+    }
+
+    @Test
+    public void testBalance() {
+        Map<String, RedissonClient> shards = shards(mock(RedissonClient.class), mock(RedissonClient.class),
+            mock(RedissonClient.class), mock(RedissonClient.class));
+        RedissonSessionRing ring = new RedissonSessionRing(shards, RedissonSessionRing.DEFAULT_VIRTUAL_NODES);
+
+        Map<RedissonClient, Integer> counts = new HashMap<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            counts.merge(ring.getShard(UUID.randomUUID().toString()), 1, Integer::sum);
+        }
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("unbalanced shard: " + count, Math.abs(count - SESSIONS / 4) < SESSIONS / 4 * 0.2);
+        }
+    }
+
+    @Test
+    public void testMinimalRemapping() {
+        Map<String, RedissonClient> shards = shards(mock(RedissonClient.class), mock(RedissonClient.class),
+            mock(RedissonClient.class));
+        RedissonSessionRing ring = new RedissonSessionRing(shards, RedissonSessionRing.DEFAULT_VIRTUAL_NODES);
+        RedissonClient added = mock(RedissonClient.class);
+        Map<String, RedissonClient> resized = new LinkedHashMap<>(shards);
+        resized.put("shard-3", added);
+        RedissonSessionRing resizedRing = new RedissonSessionRing(resized, RedissonSessionRing.DEFAULT_VIRTUAL_NODES);
+
+        int moved = 0;
+        for (int i = 0; i < SESSIONS; i++) {
+            String sessionId = UUID.randomUUID().toString();
+            RedissonClient before = ring.getShard(sessionId);
+            RedissonClient after = resizedRing.getShard(sessionId);
+            if (before != after) {
+                //sessions only move to the new shard
+                assertSame(added, after);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, Math.abs(moved - SESSIONS / 4) < SESSIONS / 4 * 0.2);
+    }
+
+    private static Map<String, RedissonClient> shards(RedissonClient... clients) {
+        Map<String, RedissonClient> shards = new LinkedHashMap<>();
+        for (int i = 0; i < clients.length; i++) {
+            shards.put("shard-" + i, clients[i]);
+        }
+        return shards;
+    }
+}
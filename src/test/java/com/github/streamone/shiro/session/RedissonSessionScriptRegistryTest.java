@@ -0,0 +1,70 @@
+package com.github.streamone.shiro.session;
+
+import org.apache.shiro.session.Session;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.redisson.api.RScript;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.annotation.Resource;
+import java.io.Serializable;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>RedissonSessionScriptRegistry test case.</p>
+ *
+ * @author streamone
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration("/sessionContext.xml")
+public class RedissonSessionScriptRegistryTest {
+
+    @Resource(name = "sessionDao")
+    private RedissonSessionDao sessionDao;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateByIllegalArguments() {
+        new RedissonSessionScriptRegistry(null);
+    }
+
+    @Test
+    public void testSha1() {
+        assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", RedissonSessionScriptRegistry.sha1(""));
+        assertTrue(RedissonSessionScriptRegistry.getSessionScripts().contains(RedissonSessionScript.TOUCH_SCRIPT));
+        assertTrue(RedissonSessionScriptRegistry.getSessionScripts().contains(
+            RedissonSessionScript.toStatusScript(RedissonSessionScript.TOUCH_SCRIPT)));
+    }
+
+    @Test
+    public void testLoadScripts() {
+        RedissonSessionScriptRegistry registry = new RedissonSessionScriptRegistry(this.sessionDao.getRedisson());
+        registry.load();
+        String sha = RedissonSessionScriptRegistry.sha1(RedissonSessionScript.READ_SCRIPT);
+        assertTrue(this.sessionDao.getRedisson().getScript().scriptExists(sha).get(0));
+    }
+
+    @Test
+    public void testReloadAfterFlush() {
+        RedissonSessionDao cachedDao = new RedissonSessionDao();
+        cachedDao.setRedisson(this.sessionDao.getRedisson());
+        cachedDao.setScriptCacheEnabled(true);
+        cachedDao.init();
+
+        Serializable sessionId = cachedDao.create(new SimpleSession());
+        Session session = cachedDao.readSession(sessionId);
+        session.setAttribute("foo", "bar");
+
+        this.sessionDao.getRedisson().getScript().scriptFlush();
+        assertEquals("bar", cachedDao.readSession(sessionId).getAttribute("foo"));
+
+        RedissonSessionScriptRegistry registry = new RedissonSessionScriptRegistry(this.sessionDao.getRedisson());
+        Long res = registry.eval(StringCodec.INSTANCE, "foo", RScript.Mode.READ_ONLY,
+            "return 1", RScript.ReturnType.INTEGER, Collections.<Object>singletonList("foo"));
+        assertEquals(Long.valueOf(1), res);
+    }
+}
@@ -4,6 +4,7 @@ import org.apache.shiro.session.*;
 import org.apache.shiro.session.mgt.DefaultSessionContext;
 import org.apache.shiro.session.mgt.DefaultSessionKey;
 import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.redisson.Redisson;
@@ -13,14 +14,21 @@ import org.redisson.api.RScript;
 import org.redisson.api.RedissonClient;
 import org.redisson.client.RedisException;
 import org.redisson.client.codec.Codec;
+import org.redisson.client.codec.StringCodec;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import javax.annotation.Resource;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import static com.github.streamone.shiro.session.RedissonSessionScript.RETURN_CODE_EXPIRED;
@@ -28,6 +36,9 @@ import static org.apache.shiro.session.mgt.AbstractSessionManager.DEFAULT_GLOBAL
 import static org.junit.Assert.*;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -45,6 +56,9 @@ public class RedissonSessionTest {
     @Resource(name = "webSessionManager")
     private RedissonWebSessionManager webSessionManager;
 
+    @Resource(name = "sessionDao")
+    private RedissonSessionDao sessionDao;
+
     @Test(expected = IllegalArgumentException.class)
     public void testCreateSessionByIllegalArguments() {
         new RedissonSession(null,null, null, null, (Serializable) null);
@@ -85,6 +99,205 @@ public class RedissonSessionTest {
         newSession.getAttributeKeys();
     }
 
+    @Test
+    public void testStatusProtocol() {
+        RedissonScript mockedScript = mock(RedissonScript.class);
+        when(mockedScript.eval(anyString(), any(RScript.Mode.class), contains("local function run()"),
+            eq(RScript.ReturnType.MAPVALUELIST), anyList(), any()))
+            .thenReturn(Arrays.asList(0L, "bar"), Arrays.asList(0L), Arrays.asList(-2L));
+        RedissonClient mockedRedisson = mock(RedissonClient.class);
+        when(mockedRedisson.getScript(any(Codec.class))).thenReturn(mockedScript);
+
+        RedissonSession session = new RedissonSession(mockedRedisson, null, "", "", UUID.randomUUID());
+        session.setStatusProtocol(true);
+        assertEquals("bar", session.getAttribute("foo"));
+        assertNull(session.getAttribute("foo"));
+        try {
+            session.getAttribute("foo");
+            fail();
+        } catch (StoppedSessionException e) {
+            assertNull(e.getCause());
+        }
+    }
+
+    @Test
+    public void testReplicaRead() {
+        RedissonScript mockedScript = mock(RedissonScript.class);
+        when(mockedScript.eval(anyString(), eq(RScript.Mode.READ_ONLY), anyString(),
+            any(RScript.ReturnType.class), anyList(), any()))
+            .thenReturn("replica", null)
+            .thenThrow(new RedisException(RETURN_CODE_EXPIRED));
+        when(mockedScript.eval(anyString(), eq(RScript.Mode.READ_WRITE), anyString(),
+            any(RScript.ReturnType.class), anyList(), any()))
+            .thenReturn("master");
+        RedissonClient mockedRedisson = mock(RedissonClient.class);
+        when(mockedRedisson.getScript(any(Codec.class))).thenReturn(mockedScript);
+
+        RedissonSession session = new RedissonSession(mockedRedisson, null, "", "", UUID.randomUUID());
+        Map<Serializable, Long> writeRecords = new HashMap<>();
+        session.setReplicaRead(60000, writeRecords);
+        assertEquals("replica", session.getAttribute("foo"));
+        //an absent attribute is final
+        assertNull(session.getAttribute("hash"));
+        //a session missing on the replica is read again on the master
+        assertEquals("master", session.getAttribute("foo"));
+        verify(mockedScript, times(3)).eval(anyString(), eq(RScript.Mode.READ_ONLY), anyString(),
+            any(RScript.ReturnType.class), anyList(), any());
+        verify(mockedScript, times(1)).eval(anyString(), eq(RScript.Mode.READ_WRITE), anyString(),
+            any(RScript.ReturnType.class), anyList(), any());
+
+        //touches do not pin the session to the master
+        session.touch();
+        assertTrue(writeRecords.isEmpty());
+        session.setAttribute("foo", "bar");
+        assertTrue(writeRecords.containsKey(session.getId()));
+        assertEquals("master", session.getAttribute("foo"));
+        verify(mockedScript, times(3)).eval(anyString(), eq(RScript.Mode.READ_ONLY), anyString(),
+            any(RScript.ReturnType.class), anyList(), any());
+    }
+
+    @Test
+    public void testCreateWithAttributes() {
+        RedissonScript mockedScript = mock(RedissonScript.class);
+        RedissonClient mockedRedisson = mock(RedissonClient.class);
+        when(mockedRedisson.getScript(any(Codec.class))).thenReturn(mockedScript);
+
+        SimpleSession simpleSession = new SimpleSession();
+        simpleSession.setId(UUID.randomUUID());
+        simpleSession.setAttribute("foo", "bar");
+        new RedissonSession(mockedRedisson, null, "", "", (Session) simpleSession);
+        verify(mockedScript).eval(anyString(), eq(RScript.Mode.READ_WRITE), eq(RedissonSessionScript.CREATE_SCRIPT),
+            eq(RScript.ReturnType.VALUE), anyList(), any());
+
+        //the first write of a deferred session creates it
+        RedissonSession deferred = new RedissonSession(mockedRedisson, null, "", "", UUID.randomUUID());
+        deferred.defer(new SimpleSession());
+        deferred.setAttribute("foo", "bar");
+        assertFalse(deferred.isDeferred());
+        verify(mockedScript, times(2)).eval(anyString(), eq(RScript.Mode.READ_WRITE),
+            eq(RedissonSessionScript.CREATE_SCRIPT), eq(RScript.ReturnType.VALUE), anyList(), any());
+        verify(mockedScript, never()).eval(anyString(), any(RScript.Mode.class),
+            eq(RedissonSessionScript.SET_ATTR_SCRIPT), any(RScript.ReturnType.class), anyList(), any());
+    }
+
+    @Test
+    public void testFlushRetry() {
+        RedissonScript mockedScript = mock(RedissonScript.class);
+        when(mockedScript.eval(anyString(), any(RScript.Mode.class), eq(RedissonSessionScript.UPDATE_ATTRS_SCRIPT),
+            any(RScript.ReturnType.class), anyList(), any()))
+            .thenThrow(new RedisException("timeout"))
+            .thenReturn(null)
+            .thenThrow(new RedisException(RETURN_CODE_EXPIRED));
+        RedissonClient mockedRedisson = mock(RedissonClient.class);
+        when(mockedRedisson.getScript(any(Codec.class))).thenReturn(mockedScript);
+
+        RedissonSession session = new RedissonSession(mockedRedisson, null, "", "", UUID.randomUUID());
+        session.setWriteBuffered(true);
+        session.setAttribute("foo", "bar");
+        try {
+            session.flush();
+            fail();
+        } catch (RedisException e) {
+            //the write is kept for a retry
+            assertEquals("bar", session.getAttribute("foo"));
+        }
+        session.flush();
+        session.flush();
+        verify(mockedScript, times(2)).eval(anyString(), any(RScript.Mode.class),
+            eq(RedissonSessionScript.UPDATE_ATTRS_SCRIPT), any(RScript.ReturnType.class), anyList(), any());
+
+        session.setAttribute("foo", "baz");
+        try {
+            session.flush();
+            fail();
+        } catch (ExpiredSessionException e) {
+            session.flush();
+        }
+        verify(mockedScript, times(3)).eval(anyString(), any(RScript.Mode.class),
+            eq(RedissonSessionScript.UPDATE_ATTRS_SCRIPT), any(RScript.ReturnType.class), anyList(), any());
+    }
+
+    @Test
+    public void testSkippedTouch() throws Exception {
+        RedissonScript mockedScript = mock(RedissonScript.class);
+        when(mockedScript.eval(anyString(), any(RScript.Mode.class), eq(RedissonSessionScript.GET_TIMEOUT_SCRIPT),
+            any(RScript.ReturnType.class), anyList(), any()))
+            .thenReturn(1800000L)
+            .thenThrow(new RedisException(RedissonSessionScript.RETURN_CODE_STOPPED));
+        RedissonClient mockedRedisson = mock(RedissonClient.class);
+        when(mockedRedisson.getScript(any(Codec.class))).thenReturn(mockedScript);
+
+        RedissonSession session = new RedissonSession(mockedRedisson, null, "", "", UUID.randomUUID());
+        session.setTouchInterval(60000, new HashMap<>());
+        session.touch();
+        session.touch();
+        //stopped by another node within the touch interval
+        try {
+            session.touch();
+            fail();
+        } catch (StoppedSessionException e) {
+            assertNull(e.getCause());
+        }
+        verify(mockedScript, times(1)).eval(anyString(), any(RScript.Mode.class),
+            eq(RedissonSessionScript.TOUCH_SCRIPT), any(RScript.ReturnType.class), anyList(), any());
+        verify(mockedScript, times(2)).eval(anyString(), eq(RScript.Mode.READ_ONLY),
+            eq(RedissonSessionScript.GET_TIMEOUT_SCRIPT), any(RScript.ReturnType.class), anyList(), any());
+
+        //the snapshot is checked without a round trip
+        RedissonSessionSnapshot snapshot = new RedissonSessionSnapshot(true);
+        snapshot.setStartTimestamp(new Date());
+        snapshot.setLastAccessTime(new Date());
+        snapshot.setTimeout(1800000L);
+        snapshot.setHost("localhost");
+        snapshot.setStopTimestamp(new Date());
+        RedissonSession snapshotSession = new RedissonSession(mockedRedisson, null, "", "", UUID.randomUUID());
+        snapshotSession.setTouchInterval(60000, new HashMap<>());
+        snapshotSession.setSnapshot(snapshot);
+        try {
+            snapshotSession.touchAsync().get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof StoppedSessionException);
+        }
+        verify(mockedScript, times(2)).eval(anyString(), eq(RScript.Mode.READ_ONLY),
+            eq(RedissonSessionScript.GET_TIMEOUT_SCRIPT), any(RScript.ReturnType.class), anyList(), any());
+    }
+
+    @Test
+    public void testReindexPrincipals() {
+        RedissonScript mockedScript = mock(RedissonScript.class);
+        when(mockedScript.eval(anyString(), any(RScript.Mode.class), eq(RedissonSessionScript.SET_ATTR_SCRIPT),
+            any(RScript.ReturnType.class), anyList(), any()))
+            .thenReturn("alice".getBytes(StandardCharsets.UTF_8));
+        when(mockedScript.eval(anyString(), any(RScript.Mode.class), eq(RedissonSessionScript.UPDATE_ATTRS_SCRIPT),
+            any(RScript.ReturnType.class), anyList(), any()))
+            .thenReturn("bob".getBytes(StandardCharsets.UTF_8));
+        RedissonClient mockedRedisson = mock(RedissonClient.class);
+        when(mockedRedisson.getScript(any(Codec.class))).thenReturn(mockedScript);
+        RedissonPrincipalSessionIndex principalIndex = mock(RedissonPrincipalSessionIndex.class);
+        when(principalIndex.getIndexKey(any())).thenAnswer(invocation -> "index:" + invocation.getArgument(0));
+
+        Serializable id = UUID.randomUUID();
+        RedissonSession session = new RedissonSession(mockedRedisson, StringCodec.INSTANCE, "", "", id);
+        session.setPrincipalIndex(principalIndex);
+        session.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, "bob");
+        verify(principalIndex).remove("alice", id);
+        verify(principalIndex).add("bob", id);
+
+        //the same principal stays indexed
+        session.setWriteBuffered(true);
+        session.setAttribute(DefaultSubjectContext.PRINCIPALS_SESSION_KEY, "bob");
+        session.flush();
+        verify(principalIndex, never()).remove("bob", id);
+        verify(principalIndex, times(2)).add("bob", id);
+
+        //other attributes don't read the previous value
+        session.setWriteBuffered(false);
+        session.setAttribute("foo", "bar");
+        verify(mockedScript).eval(anyString(), any(RScript.Mode.class), eq(RedissonSessionScript.SET_ATTR_SCRIPT),
+            any(RScript.ReturnType.class), anyList(), any(), any(), any());
+    }
+
     @Test
     public void testModifySession() {
         Session newSession = this.sessionManager.start(new DefaultSessionContext());
@@ -143,4 +356,143 @@ public class RedissonSessionTest {
         this.sessionManager.getSession(new DefaultSessionKey(newSession.getId()));
     }
 
+    @Test
+    public void testSessionSnapshot() {
+        Session newSession = this.sessionManager.start(new DefaultSessionContext());
+        newSession.setAttribute("foo", "bar");
+        newSession.setAttribute("hash", "code");
+
+        RedissonSession session = (RedissonSession) this.sessionDao.readSession(newSession.getId());
+        session.loadSnapshot();
+        assertTrue(session.isSnapshotLoaded());
+        assertEquals(DEFAULT_GLOBAL_SESSION_TIMEOUT, session.getTimeout());
+        assertEquals(newSession.getStartTimestamp(), session.getStartTimestamp());
+
+        //reads are served by the snapshot
+        newSession.setAttribute("foo", "changed");
+        assertEquals("bar", session.getAttribute("foo"));
+        assertNull(session.getAttribute("notExistKey"));
+        assertEquals(2, session.getAttributeKeys().size());
+
+        //writes are applied to both redis and the snapshot
+        session.setAttribute("hash", "map");
+        assertEquals("map", session.getAttribute("hash"));
+        assertEquals("map", newSession.getAttribute("hash"));
+        session.removeAttribute("hash");
+        assertNull(session.getAttribute("hash"));
+        assertNull(newSession.getAttribute("hash"));
+
+        session.loadSnapshot(Collections.<Object>singletonList("foo"));
+        assertEquals("changed", session.getAttribute("foo"));
+
+        session.clearSnapshot();
+        assertFalse(session.isSnapshotLoaded());
+    }
+
+    @Test(expected = StoppedSessionException.class)
+    public void testStoppedSessionSnapshot() {
+        Session newSession = this.sessionManager.start(new DefaultSessionContext());
+        RedissonSession session = (RedissonSession) this.sessionDao.readSession(newSession.getId());
+        session.loadSnapshot();
+        session.stop();
+        session.getAttribute("foo");
+    }
+
+    @Test
+    public void testBufferedWrites() {
+        Session newSession = this.sessionManager.start(new DefaultSessionContext());
+        newSession.setAttribute("foo", "bar");
+
+        RedissonSession session = (RedissonSession) this.sessionDao.readSession(newSession.getId());
+        session.setWriteBuffered(true);
+        assertTrue(session.isWriteBuffered());
+        session.setAttribute("hash", "code");
+        assertEquals("bar", session.removeAttribute("foo"));
+        assertEquals("code", session.getAttribute("hash"));
+        assertNull(session.getAttribute("foo"));
+        assertEquals("bar", newSession.getAttribute("foo"));
+        assertNull(newSession.getAttribute("hash"));
+
+        session.flush();
+        assertNull(newSession.getAttribute("foo"));
+        assertEquals("code", newSession.getAttribute("hash"));
+
+        session.setAttribute("foo", "baz");
+        session.setWriteBuffered(false);
+        assertFalse(session.isWriteBuffered());
+        assertEquals("baz", newSession.getAttribute("foo"));
+    }
+
+    @Test
+    public void testAsyncSession() throws Exception {
+        Session newSession = this.sessionManager.start(new DefaultSessionContext());
+        RedissonSession session = this.sessionDao.getRedissonSession(newSession.getId());
+
+        session.setAttributeAsync("foo", "bar").get();
+        session.setAttributeAsync("hash", "code").get();
+        assertEquals("bar", session.getAttributeAsync("foo").get());
+        Map<Object, Object> attributes = session.getAttributesAsync().get();
+        assertEquals(2, attributes.size());
+        assertEquals("code", attributes.get("hash"));
+        assertEquals(1, session.getAttributesAsync(Collections.<Object>singletonList("foo")).get().size());
+        assertEquals("code", session.removeAttributeAsync("hash").get());
+        session.touchAsync().get();
+
+        session.stop();
+        try {
+            session.getAttributeAsync("foo").get();
+            fail("expect StoppedSessionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof StoppedSessionException);
+        }
+    }
+
+    @Test
+    public void testMultipleAttributes() {
+        Session newSession = this.sessionManager.start(new DefaultSessionContext());
+        RedissonSession session = (RedissonSession) this.sessionDao.readSession(newSession.getId());
+        assertTrue(session.getAllAttributes().isEmpty());
+
+        Map<Object, Object> attributes = new HashMap<>();
+        attributes.put("foo", "bar");
+        attributes.put("hash", "code");
+        attributes.put("number", 1);
+        session.setAttributes(attributes);
+        assertEquals(attributes, session.getAllAttributes());
+        assertEquals("code", newSession.getAttribute("hash"));
+
+        Map<Object, Object> some = session.getAttributes(Arrays.<Object>asList("foo", "number", "none"));
+        assertEquals(2, some.size());
+        assertEquals("bar", some.get("foo"));
+        assertEquals(1, some.get("number"));
+
+        Map<Object, Object> changes = new HashMap<>();
+        changes.put("foo", "baz");
+        changes.put("hash", null);
+        session.setAttributes(changes);
+        assertEquals("baz", newSession.getAttribute("foo"));
+        assertNull(newSession.getAttribute("hash"));
+        assertEquals(2, session.getAllAttributes().size());
+
+        //served by the snapshot
+        session.loadSnapshot();
+        session.setAttributes(attributes);
+        assertEquals(attributes, session.getAllAttributes());
+
+        session.stop();
+        try {
+            session.getAttributes(Collections.<Object>singletonList("foo"));
+            fail("expect StoppedSessionException");
+        } catch (StoppedSessionException e) {
+            //expected exception
+        }
+        session.clearSnapshot();
+        try {
+            session.getAllAttributes();
+            fail("expect StoppedSessionException");
+        } catch (StoppedSessionException e) {
+            //expected exception
+        }
+    }
+
 }
@@ -1,5 +1,6 @@
 package com.github.streamone.shiro.session;
 
+import org.apache.shiro.session.InvalidSessionException;
 import org.apache.shiro.session.Session;
 import org.apache.shiro.session.UnknownSessionException;
 import org.apache.shiro.session.mgt.DefaultSessionContext;
@@ -13,16 +14,19 @@ import org.apache.shiro.web.session.mgt.WebSessionContext;
 import org.apache.shiro.web.session.mgt.WebSessionKey;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.redisson.codec.JsonJacksonCodec;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import javax.annotation.Resource;
+import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.Cookie;
 
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -227,4 +231,199 @@ public class RedissonWebSessionManagerTest {
                 validUriSessionIdHttpRequest.getAttribute(ShiroHttpServletRequest.REFERENCED_SESSION_ID_SOURCE));
     }
 
+    @Test
+    public void testWriteBuffer() {
+        RedissonWebSessionManager bufferedSessionManager = new RedissonWebSessionManager();
+        bufferedSessionManager.setSessionDAO(this.webSessionManager.getSessionDAO());
+        bufferedSessionManager.setWriteBufferEnabled(true);
+        assertTrue(bufferedSessionManager.isWriteBufferEnabled());
+
+        Session newSession = this.webSessionManager.start(new DefaultSessionContext());
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        request.setCookies(new Cookie("JSESSIONID", newSession.getId().toString()));
+        Session bufferedSession = bufferedSessionManager.getSession(new WebSessionKey(request, response));
+        bufferedSession.setAttribute("foo", "bar");
+        bufferedSession.setAttribute("hash", "code");
+        bufferedSession.removeAttribute("hash");
+
+        //read-your-writes within the request
+        assertEquals("bar", bufferedSession.getAttribute("foo"));
+        assertNull(bufferedSession.getAttribute("hash"));
+        assertEquals(1, bufferedSession.getAttributeKeys().size());
+        assertNull(newSession.getAttribute("foo"));
+
+        //a second session looked up by the same request keeps its own buffer
+        Session otherSession = this.webSessionManager.start(new DefaultSessionContext());
+        Session bufferedOther = bufferedSessionManager.getSession(
+            new WebSessionKey(otherSession.getId(), request, response));
+        bufferedOther.setAttribute("foo", "baz");
+        assertEquals("bar", bufferedSession.getAttribute("foo"));
+
+        bufferedSessionManager.flush(request);
+        assertEquals("bar", newSession.getAttribute("foo"));
+        assertNull(newSession.getAttribute("hash"));
+        assertEquals("baz", otherSession.getAttribute("foo"));
+    }
+
+    @Test
+    public void testRequestCache() {
+        RedissonWebSessionManager cachedSessionManager = new RedissonWebSessionManager();
+        cachedSessionManager.setSessionDAO(this.webSessionManager.getSessionDAO());
+        cachedSessionManager.setRequestCacheEnabled(true);
+        assertTrue(cachedSessionManager.isRequestCacheEnabled());
+
+        Session newSession = this.webSessionManager.start(new DefaultSessionContext());
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        request.setCookies(new Cookie("JSESSIONID", newSession.getId().toString()));
+        WebSessionKey key = new WebSessionKey(request, response);
+
+        Session session = cachedSessionManager.doGetSession(key);
+        assertSame(session, ((Map<?, ?>) request.getAttribute(RedissonWebSessionManager.REQUEST_SESSIONS_KEY))
+            .get(newSession.getId()));
+        assertSame(session, cachedSessionManager.doGetSession(key));
+
+        //another session looked up by the same request is kept alongside
+        Session otherSession = this.webSessionManager.start(new DefaultSessionContext());
+        WebSessionKey otherKey = new WebSessionKey(otherSession.getId(), request, response);
+        Session other = cachedSessionManager.doGetSession(otherKey);
+        assertEquals(otherSession.getId(), other.getId());
+        assertSame(session, cachedSessionManager.doGetSession(key));
+        assertSame(other, cachedSessionManager.doGetSession(otherKey));
+
+        //the session is not read again, operations check its state by themselves
+        this.webSessionManager.getSessionDAO().delete(newSession);
+        assertSame(session, cachedSessionManager.doGetSession(key));
+        try {
+            session.getAttribute("foo");
+            fail("expect InvalidSessionException");
+        } catch (InvalidSessionException e) {
+            //expected exception
+        }
+
+        //disabled by default
+        assertFalse(this.webSessionManager.isRequestCacheEnabled());
+        MockHttpServletRequest otherRequest = new MockHttpServletRequest();
+        otherRequest.setCookies(new Cookie("JSESSIONID", otherSession.getId().toString()));
+        this.webSessionManager.doGetSession(new WebSessionKey(otherRequest, response));
+        assertNull(otherRequest.getAttribute(RedissonWebSessionManager.REQUEST_SESSIONS_KEY));
+    }
+
+    @Test
+    public void testFlushFilter() throws Exception {
+        RedissonWebSessionManager mockedManager = mock(RedissonWebSessionManager.class);
+        doThrow(new IllegalStateException("redis is down")).when(mockedManager).flush(any(ServletRequest.class));
+        RedissonSessionFlushFilter filter = new RedissonSessionFlushFilter();
+        filter.setSessionManager(mockedManager);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        //the error of the request is kept
+        ServletException error = new ServletException("request failed");
+        try {
+            filter.doFilterInternal(request, response, (req, res) -> {
+                throw error;
+            });
+            fail();
+        } catch (ServletException e) {
+            assertSame(error, e);
+            assertEquals("redis is down", e.getSuppressed()[0].getMessage());
+        }
+
+        try {
+            filter.doFilterInternal(request, response, (req, res) -> { });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("redis is down", e.getMessage());
+        }
+        verify(mockedManager, times(2)).flush(request);
+    }
+
+    @Test
+    public void testLazyCreation() {
+        RedissonWebSessionManager lazySessionManager = new RedissonWebSessionManager();
+        lazySessionManager.setSessionDAO(this.webSessionManager.getSessionDAO());
+        lazySessionManager.setLazyCreationEnabled(true);
+        assertTrue(lazySessionManager.isLazyCreationEnabled());
+        RedissonSessionDao sessionDao = (RedissonSessionDao) lazySessionManager.getSessionDAO();
+
+        WebSessionContext sc = new DefaultWebSessionContext();
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        sc.setServletRequest(request);
+        sc.setServletResponse(response);
+        Session newSession = lazySessionManager.start(sc);
+        assertNotNull(response.getHeader("Set-Cookie"));
+        newSession.touch();
+        assertEquals(DEFAULT_GLOBAL_SESSION_TIMEOUT, newSession.getTimeout());
+        assertNull(newSession.getAttribute("foo"));
+        assertTrue(newSession.getAttributeKeys().isEmpty());
+        String sessionId = newSession.getId().toString();
+        assertEquals(0, sessionDao.getRedisson().getKeys().countExists(
+            RedissonSessionDao.SESSION_INFO_KEY_PREFIX + "{" + sessionId + "}"));
+
+        //not written yet, so unknown to other requests
+        MockHttpServletRequest otherRequest = new MockHttpServletRequest();
+        otherRequest.setCookies(new Cookie("JSESSIONID", sessionId));
+        try {
+            lazySessionManager.getSession(new WebSessionKey(otherRequest, new MockHttpServletResponse()));
+            fail("expect UnknownSessionException");
+        } catch (UnknownSessionException e) {
+            //expected exception
+        }
+
+        newSession.setAttribute("foo", "bar");
+        MockHttpServletRequest newRequest = new MockHttpServletRequest();
+        newRequest.setCookies(new Cookie("JSESSIONID", sessionId));
+        Session retrievedSession = lazySessionManager.getSession(
+            new WebSessionKey(newRequest, new MockHttpServletResponse()));
+        assertEquals("bar", retrievedSession.getAttribute("foo"));
+        assertEquals(newSession.getStartTimestamp(), retrievedSession.getStartTimestamp());
+    }
+
+    @Test
+    public void testChangeSessionId() {
+        WebSessionContext sc = new DefaultWebSessionContext();
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        sc.setServletRequest(request);
+        sc.setServletResponse(response);
+        Session session = this.webSessionManager.start(sc);
+        session.setAttribute("foo", "bar");
+        session.setTimeout(60000);
+        String oldId = session.getId().toString();
+
+        MockHttpServletResponse changeResponse = new MockHttpServletResponse();
+        Session changed = this.webSessionManager.changeSessionId(
+            new WebSessionKey(oldId, request, changeResponse));
+        String newId = changed.getId().toString();
+        assertNotEquals(oldId, newId);
+        assertTrue(changeResponse.getHeader("Set-Cookie").startsWith("JSESSIONID=" + newId));
+        assertEquals("bar", changed.getAttribute("foo"));
+        assertEquals(60000, changed.getTimeout());
+        assertEquals(session.getStartTimestamp(), changed.getStartTimestamp());
+        //the previous id still resolves within the request
+        assertEquals(newId, this.webSessionManager.getSession(
+            new WebSessionKey(oldId, request, changeResponse)).getId());
+
+        MockHttpServletRequest oldRequest = new MockHttpServletRequest();
+        oldRequest.setCookies(new Cookie("JSESSIONID", oldId));
+        try {
+            this.webSessionManager.getSession(new WebSessionKey(oldRequest, new MockHttpServletResponse()));
+            fail("expect UnknownSessionException");
+        } catch (UnknownSessionException e) {
+            //expected exception
+        }
+
+        MockHttpServletRequest newRequest = new MockHttpServletRequest();
+        newRequest.setCookies(new Cookie("JSESSIONID", newId));
+        Session retrievedSession = this.webSessionManager.getSession(
+            new WebSessionKey(newRequest, new MockHttpServletResponse()));
+        assertEquals("bar", retrievedSession.getAttribute("foo"));
+        assertEquals(newId, ((RedissonSessionDao) this.webSessionManager.getSessionDAO())
+            .getRedisson().getMap(RedissonSessionDao.SESSION_INFO_KEY_PREFIX + "{" + newId + "}", new JsonJacksonCodec())
+            .get(RedissonSession.INFO_ID_KEY));
+    }
+
 }
@@ -0,0 +1,129 @@
+package com.github.streamone.shiro.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+import org.redisson.client.codec.ByteArrayCodec;
+import org.redisson.client.codec.Codec;
+import org.redisson.client.handler.State;
+import org.redisson.codec.JsonJacksonCodec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>CompressionCodec test case.</p>
+ *
+ * @author streamone
+ */
+public class CompressionCodecTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateByIllegalArguments() {
+        new CompressionCodec(new JsonJacksonCodec(), -1);
+    }
+
+    @Test
+    public void testSmallValues() throws Exception {
+        Codec json = new JsonJacksonCodec();
+        CompressionCodec codec = new CompressionCodec(json);
+        assertEquals(CompressionCodec.DEFAULT_THRESHOLD, codec.getThreshold());
+        assertSame(json, codec.getInnerCodec());
+
+        assertArrayEquals(encode(json, "bar"), encode(codec, "bar"));
+        assertEquals("bar", decode(codec, encode(codec, "bar")));
+        assertEquals(42L, ((Number) decode(codec, encode(codec, 42L))).longValue());
+    }
+
+    @Test
+    public void testLargeValues() throws Exception {
+        Codec json = new JsonJacksonCodec();
+        List<String> value = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            value.add("permission:resource:" + i);
+        }
+        byte[] raw = encode(json, value);
+        for (int level : new int[]{1, 6, 9}) {
+            CompressionCodec codec = new CompressionCodec(json, 256, level);
+            byte[] compressed = encode(codec, value);
+            assertEquals(CompressionCodec.HEADER, compressed[0]);
+            assertTrue(compressed.length < raw.length / 2);
+            assertEquals(value, decode(codec, compressed));
+        }
+    }
+
+    @Test
+    public void testLegacyValues() throws Exception {
+        Codec json = new JsonJacksonCodec();
+        CompressionCodec codec = new CompressionCodec(json, 0);
+        char[] chars = new char[4096];
+        Arrays.fill(chars, 'a');
+        String value = new String(chars);
+        //written before compression was enabled
+        assertEquals(value, decode(codec, encode(json, value)));
+        assertEquals(CompressionCodec.HEADER, encode(codec, value)[0]);
+        assertEquals(value, decode(codec, encode(codec, value)));
+    }
+
+    @Test
+    public void testIncompressibleValues() throws Exception {
+        Codec bytes = ByteArrayCodec.INSTANCE;
+        CompressionCodec codec = new CompressionCodec(bytes, 16);
+        byte[] value = new byte[4096];
+        new Random(42).nextBytes(value);
+        value[0] = 0;
+        assertArrayEquals(value, encode(codec, value));
+        assertArrayEquals(value, (byte[]) decode(codec, encode(codec, value)));
+
+        //binary values starting with the header byte are always tagged
+        byte[] tagged = {CompressionCodec.HEADER, 1, 2};
+        byte[] encoded = encode(codec, tagged);
+        assertEquals(CompressionCodec.HEADER, encoded[0]);
+        assertTrue(encoded.length > tagged.length);
+        assertArrayEquals(tagged, (byte[]) decode(codec, encoded));
+    }
+
+    @Test
+    public void testMapKeys() throws Exception {
+        Codec json = new JsonJacksonCodec();
+        CompressionCodec codec = new CompressionCodec(json, 0);
+        ByteBuf key = codec.getMapKeyEncoder().encode("foo");
+        ByteBuf value = codec.getMapValueEncoder().encode("foofoofoofoofoofoofoofoofoofoofoofoofoo");
+        try {
+            assertEquals('"', key.getByte(key.readerIndex()));
+            assertEquals(CompressionCodec.HEADER, value.getByte(value.readerIndex()));
+            assertEquals("foofoofoofoofoofoofoofoofoofoofoofoofoo", codec.getMapValueDecoder().decode(value, new State()));
+        } finally {
+            key.release();
+            value.release();
+        }
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        CompressionCodec codec = new CompressionCodec(new JsonJacksonCodec(), 128, 9);
+        CompressionCodec copy = new CompressionCodec(getClass().getClassLoader(), codec);
+        assertEquals(128, copy.getThreshold());
+        assertEquals(9, copy.getLevel());
+        assertTrue(copy.getInnerCodec() instanceof JsonJacksonCodec);
+    }
+
+    private static byte[] encode(Codec codec, Object value) throws Exception {
+        ByteBuf buf = codec.getValueEncoder().encode(value);
+        try {
+            byte[] bytes = new byte[buf.readableBytes()];
+            buf.readBytes(bytes);
+            return bytes;
+        } finally {
+            buf.release();
+        }
+    }
+
+    private static Object decode(Codec codec, byte[] bytes) throws Exception {
+        return codec.getValueDecoder().decode(Unpooled.wrappedBuffer(bytes), new State());
+    }
+}